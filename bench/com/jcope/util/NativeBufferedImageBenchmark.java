@@ -0,0 +1,168 @@
+package com.jcope.util;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+
+/**
+ *
+ * Tile writes through NativeBufferedImage against BufferedImage.setRGB one
+ * pixel at a time, for TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR and,
+ * unless headless, the type the screen's compatible image has.
+ *
+ * Every pass writes each TILE by TILE tile of a SCREEN_WIDTH by
+ * SCREEN_HEIGHT image once, either as a solid colour (fillRGB) or from a
+ * tile's pixels (setRGB row blits).
+ *
+ * ant bench
+ * java -cp bin:bench.bin com.jcope.util.NativeBufferedImageBenchmark
+ *
+ */
+
+public class NativeBufferedImageBenchmark
+{
+    private static final int SCREEN_WIDTH = 1920;
+    private static final int SCREEN_HEIGHT = 1080;
+    private static final int TILE = 64;
+    private static final int WARMUP_PASSES = 20;
+    private static final int PASSES = 50;
+
+    private static abstract class Pass
+    {
+        final String name;
+
+        Pass(String name)
+        {
+            this.name = name;
+        }
+
+        abstract void run(NativeBufferedImage image, int[] tile, int color);
+    }
+
+    private static final Pass[] PASS_TYPES = new Pass[]{
+        new Pass("fill per pixel") {
+
+            @Override
+            void run(NativeBufferedImage image, int[] tile, int color)
+            {
+                BufferedImage img = image.get();
+
+                for (int y0=0; y0<SCREEN_HEIGHT; y0+=TILE)
+                {
+                    for (int x0=0; x0<SCREEN_WIDTH; x0+=TILE)
+                    {
+                        int w = Math.min(TILE, SCREEN_WIDTH - x0);
+                        int h = Math.min(TILE, SCREEN_HEIGHT - y0);
+                        for (int x=x0; x<x0+w; x++)
+                        {
+                            for (int y=y0; y<y0+h; y++)
+                            {
+                                img.setRGB(x, y, color);
+                            }
+                        }
+                    }
+                }
+            }
+
+        },
+        new Pass("fillRGB") {
+
+            @Override
+            void run(NativeBufferedImage image, int[] tile, int color)
+            {
+                for (int y0=0; y0<SCREEN_HEIGHT; y0+=TILE)
+                {
+                    for (int x0=0; x0<SCREEN_WIDTH; x0+=TILE)
+                    {
+                        image.fillRGB(x0, y0, Math.min(TILE, SCREEN_WIDTH - x0), Math.min(TILE, SCREEN_HEIGHT - y0), color);
+                    }
+                }
+            }
+
+        },
+        new Pass("blit per pixel") {
+
+            @Override
+            void run(NativeBufferedImage image, int[] tile, int color)
+            {
+                BufferedImage img = image.get();
+
+                for (int y0=0; y0<SCREEN_HEIGHT; y0+=TILE)
+                {
+                    for (int x0=0; x0<SCREEN_WIDTH; x0+=TILE)
+                    {
+                        int w = Math.min(TILE, SCREEN_WIDTH - x0);
+                        int h = Math.min(TILE, SCREEN_HEIGHT - y0);
+                        for (int y=0; y<h; y++)
+                        {
+                            for (int x=0; x<w; x++)
+                            {
+                                img.setRGB(x0 + x, y0 + y, tile[y * w + x]);
+                            }
+                        }
+                    }
+                }
+            }
+
+        },
+        new Pass("setRGB rows") {
+
+            @Override
+            void run(NativeBufferedImage image, int[] tile, int color)
+            {
+                for (int y0=0; y0<SCREEN_HEIGHT; y0+=TILE)
+                {
+                    for (int x0=0; x0<SCREEN_WIDTH; x0+=TILE)
+                    {
+                        int w = Math.min(TILE, SCREEN_WIDTH - x0);
+                        int h = Math.min(TILE, SCREEN_HEIGHT - y0);
+                        image.setRGB(x0, y0, tile, 0, 0, w, h, w, h);
+                    }
+                }
+            }
+
+        }
+    };
+
+    public static void main(String[] args)
+    {
+        int[] tile = new int[TILE * TILE];
+
+        for (int i=0; i<tile.length; i++)
+        {
+            tile[i] = 0xFF000000 | (i * 0x010203);
+        }
+
+        run("TYPE_INT_RGB", new NativeBufferedImage(new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB)), tile);
+        run("TYPE_INT_ARGB", new NativeBufferedImage(new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_ARGB)), tile);
+        run("TYPE_INT_BGR", new NativeBufferedImage(new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_BGR)), tile);
+        if (GraphicsEnvironment.isHeadless())
+        {
+            System.out.println("compatible: skipped, headless");
+        }
+        else
+        {
+            NativeBufferedImage image = new NativeBufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+            run(String.format("compatible (type %d)", image.getType()), image, tile);
+        }
+    }
+
+    private static void run(String typeName, NativeBufferedImage image, int[] tile)
+    {
+        for (Pass pass : PASS_TYPES)
+        {
+            for (int i=0; i<WARMUP_PASSES; i++)
+            {
+                pass.run(image, tile, 0xFF000000 | i);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i=0; i<PASSES; i++)
+            {
+                long startedAt = System.nanoTime();
+                pass.run(image, tile, 0xFF000000 | i);
+                best = Math.min(best, System.nanoTime() - startedAt);
+            }
+            double mpixels = ((double) SCREEN_WIDTH * SCREEN_HEIGHT) / (best / 1e9) / 1e6;
+            System.out.println(String.format("%s %s %.1f Mpixel/s", typeName, pass.name, mpixels));
+        }
+    }
+}
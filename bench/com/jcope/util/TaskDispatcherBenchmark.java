@@ -0,0 +1,127 @@
+package com.jcope.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Dispatch throughput of TaskDispatcher with 1, 4 and 16 producers.
+ *
+ * Every producer dispatches TASKS_PER_ROUND / producers tasks, either under
+ * keys of its own (every task runs) or under KEY_SPACE shared keys (most
+ * tasks replace a pending one). A round ends once every task was run or
+ * destroyed, which for each task is exactly one call of its onDestroy.
+ *
+ * ant bench
+ * java -cp bin:bench.bin com.jcope.util.TaskDispatcherBenchmark
+ *
+ */
+
+public class TaskDispatcherBenchmark
+{
+    private static final int TASKS_PER_ROUND = 1 << 21;
+    private static final int KEY_SPACE = 64;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int[] PRODUCERS = new int[]{1, 4, 16};
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        for (boolean sharedKeys : new boolean[]{false, true})
+        {
+            for (int producers : PRODUCERS)
+            {
+                for (int i=0; i<WARMUP_ROUNDS; i++)
+                {
+                    round(producers, sharedKeys);
+                }
+                double best = 0d;
+                for (int i=0; i<ROUNDS; i++)
+                {
+                    best = Math.max(best, round(producers, sharedKeys));
+                }
+                System.out.println(String.format("keys=%s producers=%d %.2f Mdispatch/s", sharedKeys ? "shared" : "unique", producers, best / 1e6));
+            }
+        }
+    }
+
+    /**
+     * @return dispatches per second
+     */
+    private static double round(final int producers, final boolean sharedKeys) throws InterruptedException
+    {
+        final TaskDispatcher<Integer> dispatcher = new TaskDispatcher<Integer>("Benchmark dispatcher");
+        final int perProducer = TASKS_PER_ROUND / producers;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicLong remaining = new AtomicLong((long) perProducer * producers);
+        final Integer[] keys = new Integer[sharedKeys ? KEY_SPACE : perProducer * producers];
+        final Runnable task = new Runnable() {
+
+            @Override
+            public void run()
+            {
+                // Do Nothing
+            }
+
+        };
+        final Runnable onDestroy = new Runnable() {
+
+            @Override
+            public void run()
+            {
+                if (remaining.decrementAndGet() == 0L)
+                {
+                    finished.countDown();
+                }
+            }
+
+        };
+        Thread[] threads = new Thread[producers];
+        long startedAt;
+
+        for (int i=0; i<keys.length; i++)
+        {
+            keys[i] = Integer.valueOf(i);
+        }
+        for (int p=0; p<producers; p++)
+        {
+            final int first = p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i=0; i<perProducer; i++)
+                    {
+                        dispatcher.dispatch(keys[(first + i) % keys.length], task, onDestroy);
+                    }
+                }
+
+            }, String.format("Producer %d", p));
+            threads[p].start();
+        }
+
+        startedAt = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        finished.await();
+        double rval = ((double) perProducer * producers) / ((System.nanoTime() - startedAt) / 1e9);
+
+        dispatcher.dispose();
+        dispatcher.join();
+
+        return rval;
+    }
+}
@@ -0,0 +1,180 @@
+package com.jcope.vnc.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jcope.util.GraphicsSegment;
+import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
+
+/**
+ *
+ * Bytes allocated per tile on the way from ClientHandler.sendTile to the
+ * socket, counted with ThreadMXBean.getThreadAllocatedBytes over every
+ * thread of the JVM. Exits with 1 once a pass allocates more than its
+ * maximum.
+ *
+ * Each frame sends TILES_PER_FRAME tiles followed by END_OF_FRAME, the way
+ * a push transaction does, to a client on a loopback socket that reads and
+ * acknowledges everything. With unchanged tiles the cached encoding is
+ * resent, which is to allocate nothing but the END_OF_FRAME each frame
+ * ends with. With changing tiles a fresh tile is encoded per send, on top
+ * come the encoding's leak tracking and what ObjectOutputStream allocates,
+ * which is shared by every client the tile is sent to.
+ *
+ * ant check-send-path
+ * or
+ * ant bench
+ * java -cp bin:bench.bin com.jcope.vnc.server.SendPathAllocationBenchmark
+ *
+ */
+
+public class SendPathAllocationBenchmark
+{
+    private static final int TILE_PIXELS = 64 * 64;
+    private static final int TILES_PER_FRAME = 16;
+    private static final int WARMUP_FRAMES = 500;
+    private static final int FRAMES = 2000;
+    private static final double MAX_UNCHANGED_BYTES_PER_TILE = 16.0;
+    private static final double MAX_CHANGING_BYTES_PER_TILE = 256.0;
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+        final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel accepted = server.accept();
+        // frames wait for the last to be acknowledged, Nagle would hold back every END_OF_FRAME
+        accepted.socket().setTcpNoDelay(true);
+        final AtomicLong bytesRead = new AtomicLong(0L);
+        final ClientHandler handler = new ClientHandler(accepted);
+        GraphicsSegment[] segments = new GraphicsSegment[TILES_PER_FRAME];
+        Thread drain;
+        boolean failed = false;
+
+        for (int i=0; i<TILES_PER_FRAME; i++)
+        {
+            segments[i] = new GraphicsSegment(TILE_PIXELS);
+        }
+
+        drain = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+                int count;
+
+                try
+                {
+                    while ((count = client.read(buffer)) >= 0)
+                    {
+                        buffer.clear();
+                        handler.acknowledgeBytes(bytesRead.addAndGet(count));
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Do Nothing
+                    // closed once measured
+                }
+            }
+
+        }, "Drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        for (boolean changing : new boolean[]{true, false})
+        {
+            run(handler, segments, changing, WARMUP_FRAMES);
+            long before = allocatedBytes();
+            long startedAt = System.nanoTime();
+            run(handler, segments, changing, FRAMES);
+            long elapsedNanos = System.nanoTime() - startedAt;
+            long allocated = allocatedBytes() - before;
+            long tiles = (long) FRAMES * TILES_PER_FRAME;
+            double bytesPerTile = ((double) allocated) / tiles;
+            double maxBytesPerTile = changing ? MAX_CHANGING_BYTES_PER_TILE : MAX_UNCHANGED_BYTES_PER_TILE;
+            System.out.println(String.format("tiles=%s frames=%d %.1f B/tile %.1f B/frame %.1f us/frame", changing ? "changing" : "unchanged", FRAMES, bytesPerTile, ((double) allocated) / FRAMES, (elapsedNanos / 1e3) / FRAMES));
+            if (bytesPerTile > maxBytesPerTile)
+            {
+                System.err.println(String.format("FAILED: tiles=%s allocated %.1f B/tile, at most %.1f expected", changing ? "changing" : "unchanged", bytesPerTile, maxBytesPerTile));
+                failed = true;
+            }
+        }
+
+        // not killed, that would start the event dispatch thread and keep the JVM up
+        client.close();
+        accepted.close();
+        server.close();
+        if (failed)
+        {
+            System.exit(1);
+        }
+    }
+
+    private static void run(ClientHandler handler, GraphicsSegment[] segments, boolean changing, int frames)
+    {
+        for (int frame=0; frame<frames; frame++)
+        {
+            for (int i=0; i<segments.length; i++)
+            {
+                if (changing)
+                {
+                    seed = frame * segments.length + i;
+                    segments[i].synchronously(CHANGE);
+                }
+                handler.sendTile(i, segments[i]);
+            }
+            handler.sendEndOfFrame(0);
+            // one frame in flight, as with a client that keeps up
+            while (handler.getQueuedBytes() > 0L || handler.getBytesInFlight() > 0L)
+            {
+                Thread.yield();
+            }
+            // as the client does once it has applied the frame
+            handler.handleEventAck(SERVER_EVENT.END_OF_FRAME, null, 0);
+        }
+    }
+
+    private static int seed = 0;
+
+    // what a scan does to a tile whose pixels differ
+    private static final GraphicsSegment.Synchronously CHANGE = new GraphicsSegment.Synchronously() {
+
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            for (int i=0; i<pixels.length; i++)
+            {
+                pixels[i] = seed + (i & 0xff) * 0x010101;
+            }
+            receiver.setVersion(receiver.getVersion() + 1);
+            receiver.releaseJitCompressedEvent();
+
+            return null;
+        }
+
+    };
+
+    private static long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long rval = 0L;
+
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+        {
+            if (allocated > 0L)
+            {
+                rval += allocated;
+            }
+        }
+
+        return rval;
+    }
+}
@@ -152,7 +152,10 @@ public class LLog
                 || event == SERVER_EVENT.CURSOR_GONE
                 || event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE
                 || event == SERVER_EVENT.READ_INPUT_EVENTS
-                || event == SERVER_EVENT.END_OF_FRAME)
+                || event == SERVER_EVENT.END_OF_FRAME
+                || event == SERVER_EVENT.PING
+                || event == SERVER_EVENT.INTERACTIVE_CHANNEL_TOKEN
+                || event == SERVER_EVENT.SESSION_TOKEN)
 	    {
 	        return;
 	    }
@@ -164,7 +167,11 @@ public class LLog
 	    if (!DEBUG){return;}
 	    if ((event == CLIENT_EVENT.GET_SCREEN_SEGMENT && !(args[0] instanceof Integer))
 	            || event == CLIENT_EVENT.OFFER_INPUT
-	            || event == CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT)
+	            || event == CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT
+	            || event == CLIENT_EVENT.ACKNOWLEDGE_BYTES
+	            || event == CLIENT_EVENT.PONG
+	            || event == CLIENT_EVENT.ATTACH_INTERACTIVE_CHANNEL
+	            || event == CLIENT_EVENT.RESUME_SESSION)
 	    {
 	        return;
 	    }
@@ -0,0 +1,102 @@
+package com.jcope.debug;
+
+import static com.jcope.debug.Debug.DEBUG;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Reports reference counted resources that became unreachable without
+ * their last reference having been released.
+ *
+ * Only active in DEBUG, tracking costs one phantom reference per resource
+ * handed out.
+ *
+ */
+
+public class LeakDetector
+{
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private static final ConcurrentHashMap<Handle, Boolean> tracked = new ConcurrentHashMap<Handle, Boolean>();
+    private static final Thread reportThread;
+
+    static
+    {
+        if (DEBUG)
+        {
+            reportThread = new Thread() {
+                @Override
+                public void run()
+                {
+                    Handle handle;
+                    while (true)
+                    {
+                        try
+                        {
+                            handle = (Handle) queue.remove();
+                            if (tracked.remove(handle) != null)
+                            {
+                                LLog.w(String.format("Leaked %s (%s), it was never released", handle.kind, handle.description));
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            LLog.e(e, Boolean.FALSE);
+                        }
+                    }
+                }
+            };
+            reportThread.setName("LeakDetector-report-thread");
+            reportThread.setDaemon(true);
+            reportThread.start();
+        }
+        else
+        {
+            reportThread = null;
+        }
+    }
+
+    public static class Handle extends PhantomReference<Object>
+    {
+        private final String kind;
+        private final Object description;
+
+        private Handle(Object resource, Object description)
+        {
+            super(resource, queue);
+            kind = resource.getClass().getSimpleName();
+            this.description = description;
+        }
+    }
+
+    /**
+     * @param resource
+     * @param description names the resource in the leak report, only
+     *        turned into a string should it leak
+     * @return the handle to untrack once the resource is released,
+     *         null unless DEBUG
+     */
+    public static Handle track(Object resource, Object description)
+    {
+        if (!DEBUG)
+        {
+            return null;
+        }
+
+        Handle rval = new Handle(resource, description);
+        tracked.put(rval, Boolean.TRUE);
+
+        return rval;
+    }
+
+    public static void untrack(Handle handle)
+    {
+        if (handle != null)
+        {
+            tracked.remove(handle);
+            handle.clear();
+        }
+    }
+}
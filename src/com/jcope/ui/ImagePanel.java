@@ -6,11 +6,14 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Toolkit;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.util.Arrays;
 import java.util.concurrent.Semaphore;
 
@@ -19,7 +22,9 @@ import javax.swing.SwingUtilities;
 
 import com.jcope.debug.LLog;
 import com.jcope.util.DimensionF;
+import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.NativeBufferedImage;
+import com.jcope.util.PackedIntArray;
 import com.jcope.util.SegmentationInfo;
 import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
 
@@ -278,6 +283,265 @@ public class ImagePanel extends JPanel
         }
     }
     
+    /**
+     * Composites flushed tiles into a VolatileImage and blits only those
+     * rectangles to the screen from a thread of its own, at most once per
+     * MIN_PRESENT_INTERVAL_NANOS however busy the EDT is. The EDT paints
+     * from the same VolatileImage on expose.
+     */
+    class RenderThread extends Thread
+    {
+        private static final long MIN_PRESENT_INTERVAL_NANOS = 1000000000L / 60L;
+        
+        private final Semaphore dirtySema = new Semaphore(0);
+        private int[] dirtyRects = new int[64];
+        private int dirtyLength = 0;
+        private int[] spareRects = new int[64];
+        private boolean dirtyAll = true;
+        private volatile boolean disposed = false;
+        private final int[] presentOffsets = new int[2];
+        private final float[] presentScaleFactors = new float[2];
+        
+        // guarded by this
+        private VolatileImage volatileImage = null;
+        
+        RenderThread()
+        {
+            super("Render thread");
+            setDaemon(true);
+        }
+        
+        /**
+         * @param rects x, y, width and height of each tile
+         * @param length
+         */
+        void addDirty(int[] rects, int length)
+        {
+            synchronized(dirtySema)
+            {
+                if (!dirtyAll)
+                {
+                    if (dirtyLength + length > dirtyRects.length)
+                    {
+                        dirtyRects = Arrays.copyOf(dirtyRects, Math.max(dirtyRects.length * 2, dirtyLength + length));
+                    }
+                    System.arraycopy(rects, 0, dirtyRects, dirtyLength, length);
+                    dirtyLength += length;
+                }
+            }
+            dirtySema.release();
+        }
+        
+        void addDirtyAll()
+        {
+            synchronized(dirtySema)
+            {
+                dirtyAll = true;
+                dirtyLength = 0;
+            }
+            dirtySema.release();
+        }
+        
+        void dispose()
+        {
+            disposed = true;
+            dirtySema.release();
+        }
+        
+        @Override
+        public void run()
+        {
+            long lastPresentNanos = System.nanoTime() - MIN_PRESENT_INTERVAL_NANOS;
+            long waitNanos;
+            int[] rects;
+            int length;
+            boolean all;
+            
+            while (!disposed)
+            {
+                try
+                {
+                    dirtySema.acquire();
+                    waitNanos = lastPresentNanos + MIN_PRESENT_INTERVAL_NANOS - System.nanoTime();
+                    if (waitNanos > 0)
+                    {
+                        // pace presents, tiles flushed meanwhile are taken along
+                        Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LLog.e(e);
+                }
+                dirtySema.drainPermits();
+                if (disposed)
+                {
+                    break;
+                }
+                synchronized(dirtySema)
+                {
+                    rects = dirtyRects;
+                    length = dirtyLength;
+                    all = dirtyAll;
+                    dirtyRects = spareRects;
+                    dirtyLength = 0;
+                    dirtyAll = false;
+                }
+                try
+                {
+                    if (!present(rects, length, all))
+                    {
+                        // not on screen yet, or the contents were lost,
+                        // redrawn whole with the next tiles or the next expose
+                        synchronized(dirtySema)
+                        {
+                            dirtyAll = true;
+                            dirtyLength = 0;
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    LLog.e(e, false);
+                }
+                finally {
+                    spareRects = rects;
+                }
+                lastPresentNanos = System.nanoTime();
+            }
+            synchronized(this)
+            {
+                if (volatileImage != null)
+                {
+                    volatileImage.flush();
+                    volatileImage = null;
+                }
+            }
+        }
+        
+        /**
+         * @return false if nothing could be drawn, true once the rectangles
+         *         made it to the screen or are scrolled out of view
+         */
+        private synchronized boolean present(int[] rects, int length, boolean all)
+        {
+            int idx,x,y,w,h;
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            
+            if (gc == null)
+            {
+                return false;
+            }
+            
+            BufferedImage src = image.get();
+            int width = src.getWidth();
+            int height = src.getHeight();
+            
+            if (volatileImage == null || volatileImage.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE)
+            {
+                if (volatileImage != null)
+                {
+                    volatileImage.flush();
+                }
+                volatileImage = gc.createCompatibleVolatileImage(width, height);
+                all = true;
+            }
+            else if (volatileImage.contentsLost())
+            {
+                all = true;
+            }
+            
+            Graphics2D g2d = volatileImage.createGraphics();
+            try
+            {
+                if (all)
+                {
+                    g2d.drawImage(src, 0, 0, null);
+                }
+                else
+                {
+                    idx = 0;
+                    while (idx < length)
+                    {
+                        x = rects[idx++];
+                        y = rects[idx++];
+                        w = rects[idx++];
+                        h = rects[idx++];
+                        g2d.drawImage(src, x, y, x+w, y+h, x, y, x+w, y+h, null);
+                    }
+                }
+            }
+            finally {
+                g2d.dispose();
+            }
+            if (volatileImage.contentsLost())
+            {
+                return false;
+            }
+            
+            Graphics g = getGraphics();
+            if (g == null)
+            {
+                return false;
+            }
+            g2d = (Graphics2D) g;
+            try
+            {
+                final int[] offsets = presentOffsets;
+                final float[] scaleFactors = presentScaleFactors;
+                transform.getValues(offsets, scaleFactors);
+                setRenderingHints(g2d);
+                if (all)
+                {
+                    g2d.drawImage(volatileImage, transform.get(), null);
+                }
+                else
+                {
+                    idx = 0;
+                    while (idx < length)
+                    {
+                        x = rects[idx++];
+                        y = rects[idx++];
+                        w = rects[idx++];
+                        h = rects[idx++];
+                        final int x1dst = offsets[0] + Math.round(scaleFactors[0]*((float)x));
+                        final int y1dst = offsets[1] + Math.round(scaleFactors[1]*((float)y));
+                        final int x2dst = offsets[0] + Math.round(scaleFactors[0]*((float)(x+w)));
+                        final int y2dst = offsets[1] + Math.round(scaleFactors[1]*((float)(y+h)));
+                        g2d.drawImage(volatileImage, x1dst, y1dst, x2dst, y2dst, x, y, x+w, y+h, null);
+                    }
+                }
+                drawCursor(g2d);
+            }
+            finally {
+                g2d.dispose();
+            }
+            Toolkit.getDefaultToolkit().sync();
+            
+            return !volatileImage.contentsLost();
+        }
+        
+        /**
+         * Paints on behalf of the EDT.
+         * 
+         * @return false if there is nothing valid to paint from
+         */
+        synchronized boolean paint(Graphics2D g2d)
+        {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            
+            if (volatileImage == null || gc == null || volatileImage.validate(gc) != VolatileImage.IMAGE_OK)
+            {
+                return false;
+            }
+            
+            setRenderingHints(g2d);
+            g2d.drawImage(volatileImage, transform.get(), null);
+            
+            return !volatileImage.contentsLost();
+        }
+    }
+    
     // Generated: serialVersionUID
     private static final long serialVersionUID = -4538018101380490678L;
     private static final int cursorSideLength = 32;
@@ -293,13 +557,38 @@ public class ImagePanel extends JPanel
     
     private Rectangle pixelsUnderCursorRect = new Rectangle();
     private volatile BufferedImage scaledImageCache = null;
+    // set to rescale all of scaledImageCache, which is otherwise kept and
+    // only rescaled where tiles were flushed
+    private volatile boolean scaledImageStale = true;
     private final SynchronousTransform transform;
     
     private volatile int frameBufferIdx = 0;
     private int[][] frameBuffer = new int[][]{null};
+    // segments already queued in frameBuffer, frames skipped by the pacer
+    // update the same tiles again before the next flush
+    private FixedLengthBitSet queuedSegments = null;
+    private boolean frameBufferOverflow = false;
     private final Semaphore frameBufferLock = new Semaphore(1, true);
+    private final int[] segmentPos = new int[2];
+    private final int[] segmentDim = new int[2];
+    // only used on the EDT, by repaintRects and repaint
+    private final int[] repaintOffsets = new int[2];
+    private final float[] repaintScaleFactors = new float[2];
+    private final byte[] repaintScaleState = new byte[1];
+    private final RenderThread renderThread;
     
     public ImagePanel(int width, int height)
+    {
+        this(width, height, false);
+    }
+    
+    /**
+     * @param width
+     * @param height
+     * @param accelerated to present tiles from a render thread of its own
+     *                    through a VolatileImage rather than on the EDT
+     */
+    public ImagePanel(int width, int height, boolean accelerated)
     {
         setBackground(Color.BLACK);
         image = new NativeBufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
@@ -308,6 +597,26 @@ public class ImagePanel extends JPanel
         preferredSize.height = height;
         transform = new SynchronousTransform();
         syncPreferredSize(null);
+        if (accelerated)
+        {
+            renderThread = new RenderThread();
+            renderThread.start();
+        }
+        else
+        {
+            renderThread = null;
+        }
+    }
+    
+    /**
+     * Stops the render thread, if any, once the panel is replaced.
+     */
+    public void dispose()
+    {
+        if (renderThread != null)
+        {
+            renderThread.dispose();
+        }
     }
     
     private static void setRenderingHints(Graphics2D g2d)
@@ -331,6 +640,17 @@ public class ImagePanel extends JPanel
         Graphics2D g2d = (Graphics2D) g;
         super.paintComponent(g);
         
+        if (renderThread != null)
+        {
+            if (!renderThread.paint(g2d))
+            {
+                g2d.drawImage(image.get(), transform.get(), null);
+                renderThread.addDirtyAll();
+            }
+            drawCursor(g2d);
+            return;
+        }
+        
         int[] offsets = transform.getOffsets();
         
         if (transform.isScalingDown())
@@ -364,16 +684,28 @@ public class ImagePanel extends JPanel
         }
     }
 
-    private void loadScreenPixels(int[] pixels)
+    private void loadScreenPixels(Object pixels)
     {
         int screenWidth = image.getWidth();
         int screenHeight = image.getHeight();
-        image.setRGB(0, 0, pixels, 0, 0, screenWidth, screenHeight, screenWidth, screenHeight);
+        if (pixels instanceof PackedIntArray)
+        {
+            image.setRGB(0, 0, (PackedIntArray) pixels, screenWidth, screenHeight);
+        }
+        else
+        {
+            image.setRGB(0, 0, (int[]) pixels, 0, 0, screenWidth, screenHeight, screenWidth, screenHeight);
+        }
     }
     
     private void nts_clearFrameBuffer()
     {
         frameBufferIdx = 0;
+        frameBufferOverflow = false;
+        if (queuedSegments != null)
+        {
+            queuedSegments.fill(false);
+        }
     }
     
     /**
@@ -404,23 +736,31 @@ public class ImagePanel extends JPanel
     public void repaintBuffers()
     {
         clearFrameBuffer();
-    	scaledImageCache = null;
+    	scaledImageStale = true;
+    	if (renderThread != null)
+    	{
+    	    renderThread.addDirtyAll();
+    	}
     	repaint();
     }
     
-    private void setSegment(int segmentID, final SEGMENT_ALGORITHM alg, Object... args)
+    /**
+     * Writes the segment straight into the image from the calling thread,
+     * with no allocation, and queues its bounds for flushFrameBuffer.
+     * 
+     * @param segmentID -1 for the entire screen
+     * @param alg
+     * @param pixels int[] or PackedIntArray for PIXELS
+     * @param solidPixelColor for SOLID_COLOR
+     */
+    private void setSegment(int segmentID, SEGMENT_ALGORITHM alg, Object pixels, int solidPixelColor)
     {
-        final int solidPixelColor;
-        final int[] pixels;
-        
         assert_(segmentID >= -1);
-        assert_(args.length == 1);
         
         switch (alg)
         {
             case PIXELS:
-                pixels = (int[]) args[0];
-                solidPixelColor = 0;
+                assert_(pixels != null);
                 if (segmentID == -1)
                 {
                     loadScreenPixels(pixels);
@@ -430,8 +770,6 @@ public class ImagePanel extends JPanel
                 break;
             case SOLID_COLOR:
                 assert_(segmentID >= 0);
-                pixels = null;
-                solidPixelColor = (Integer) args[0];
                 if (segmentID == -1)
                 {
                 	image.fillRGB(solidPixelColor);
@@ -441,46 +779,67 @@ public class ImagePanel extends JPanel
                 break;
             default:
                 assert_(false);
-                pixels = null;
-                solidPixelColor = 0;
         }
         
-        final int[] tmp = new int[2];
-        final int startX;
-        final int startY;
-        segInfo.getPos(segmentID, tmp);
-        startX = tmp[0];
-        startY = tmp[1];
-        segInfo.getDim(segmentID, tmp);
-        
-        
-        addToFrameBuffer(new Runnable() {
-
-            @Override
-            public void run()
+        try
+        {
+            frameBufferLock.acquire();
+        } catch (InterruptedException e) {
+            LLog.e(e);
+        }
+        try
+        {
+            segInfo.getPos(segmentID, segmentPos);
+            segInfo.getDim(segmentID, segmentDim);
+            final int startX = segmentPos[0];
+            final int startY = segmentPos[1];
+            final int width = segmentDim[0];
+            final int height = segmentDim[1];
+            
+            switch (alg)
             {
-                switch (alg)
-                {
-                    case PIXELS:
-                    	image.setRGB(startX, startY, pixels, 0, 0, tmp[0], tmp[1], tmp[0], tmp[1]);
-                        break;
-                    case SOLID_COLOR:
-                        int endX = startX + tmp[0];
-                        int endY = startY + tmp[1];
-                        
-                        for (int x=startX; x<endX; x++)
-                        {
-                            for (int y=startY; y<endY; y++)
-                            {
-                                image.setRGB(x, y, solidPixelColor);
-                            }
-                        }
-                        break;
-                }
+                case PIXELS:
+                    if (pixels instanceof PackedIntArray)
+                    {
+                        image.setRGB(startX, startY, (PackedIntArray) pixels, width, height);
+                    }
+                    else
+                    {
+                        image.setRGB(startX, startY, (int[]) pixels, 0, 0, width, height, width, height);
+                    }
+                    break;
+                case SOLID_COLOR:
+                    image.fillRGB(startX, startY, width, height, solidPixelColor);
+                    break;
             }
-        
-        },
-        startX, startY, tmp[0], tmp[1]);
+            if (!queuedSegments.get(segmentID))
+            {
+                queuedSegments.set(segmentID, true);
+                nts_addToFrameBuffer(startX, startY, width, height);
+            }
+        }
+        finally {
+            frameBufferLock.release();
+        }
+    }
+    
+    private void nts_addToFrameBuffer(int x, int y, int w, int h)
+    {
+        synchronized(frameBuffer) {
+            int idx = frameBufferIdx;
+            int[] buffer = frameBuffer[0];
+            if (idx + 4 > buffer.length)
+            {
+                // repaint everything at the next flush instead
+                frameBufferOverflow = true;
+                return;
+            }
+            buffer[idx++] = x;
+            buffer[idx++] = y;
+            buffer[idx++] = w;
+            buffer[idx++] = h;
+            frameBufferIdx = idx;
+        }
     }
     
     public void addToFrameBuffer(Runnable syncAction, int x, int y, int w, int h)
@@ -494,15 +853,7 @@ public class ImagePanel extends JPanel
     	try
     	{
             syncAction.run();
-    	    synchronized(frameBuffer) {
-    		    int idx = frameBufferIdx;
-	    		int[] buffer = frameBuffer[0];
-	    		buffer[idx++] = x;
-		        buffer[idx++] = y;
-		        buffer[idx++] = w;
-		        buffer[idx++] = h;
-		        frameBufferIdx = idx;
-    		}
+            nts_addToFrameBuffer(x, y, w, h);
     	}
     	finally {
     		frameBufferLock.release();
@@ -531,24 +882,37 @@ public class ImagePanel extends JPanel
         try
         {
             f_frameBufferIdx = frameBufferIdx;
-            if (f_frameBufferIdx == 0)
+            if (f_frameBufferIdx == 0 && !frameBufferOverflow)
             {
                 return;
             }
-        	if (f_frameBufferIdx == segInfo.numSegments * 4)
+        	if (f_frameBufferIdx == segInfo.numSegments * 4 || frameBufferOverflow)
             {
         	    nts_clearFrameBuffer();
+        	    if (renderThread != null)
+        	    {
+        	        renderThread.addDirtyAll();
+        	        return;
+        	    }
         	    runOnUIThread(new Runnable() {
 
         			@Override
         			public void run() {
         				// repaint all buffers, post frame clear
-        			    scaledImageCache = null;
+        			    scaledImageStale = true;
         		        repaint();
         			}
                 });
                 return;
             }
+        	if (renderThread != null)
+        	{
+        	    synchronized(frameBuffer) {
+        	        renderThread.addDirty(frameBuffer[0], f_frameBufferIdx);
+        	    }
+        	    nts_clearFrameBuffer();
+        	    return;
+        	}
         	synchronized(frameBuffer) {
 	        	f_frameBuffer = Arrays.copyOf(frameBuffer[0], f_frameBufferIdx);
         	}
@@ -561,16 +925,7 @@ public class ImagePanel extends JPanel
 
 			@Override
 			public void run() {
-				int idx,x,y,w,h;
-		        idx = 0;
-		        while (idx < f_frameBufferIdx)
-		        {
-		            x = f_frameBuffer[idx++];
-		            y = f_frameBuffer[idx++];
-		            w = f_frameBuffer[idx++];
-		            h = f_frameBuffer[idx++];
-		            repaint(x, y, w, h);
-		        }
+				repaintRects(f_frameBuffer, f_frameBufferIdx);
 			}
         	
         });
@@ -578,12 +933,21 @@ public class ImagePanel extends JPanel
     
     public void setSegmentPixels(int segmentID, int[] pixels)
     {
-        setSegment(segmentID, SEGMENT_ALGORITHM.PIXELS, pixels);
+        setSegment(segmentID, SEGMENT_ALGORITHM.PIXELS, pixels, 0);
+    }
+    
+    /**
+     * @param segmentID
+     * @param pixels only read during the call
+     */
+    public void setSegmentPixels(int segmentID, PackedIntArray pixels)
+    {
+        setSegment(segmentID, SEGMENT_ALGORITHM.PIXELS, pixels, 0);
     }
 
     public void setSegmentSolidColor(int segmentID, int solidPixelColor)
     {
-        setSegment(segmentID, SEGMENT_ALGORITHM.SOLID_COLOR, solidPixelColor);
+        setSegment(segmentID, SEGMENT_ALGORITHM.SOLID_COLOR, null, solidPixelColor);
     }
     
     private boolean _repaint()
@@ -595,15 +959,26 @@ public class ImagePanel extends JPanel
     {
         boolean didRepaint = forceRepaint;
         
-        if (transform.isScalingDown() && (scaledImageCache == null || scaledImageCache.getWidth() != preferredSize.width || scaledImageCache.getHeight() != preferredSize.height))
+        if (renderThread == null && transform.isScalingDown())
         {
-            // pull the entire image out and place into scaledImageCache
-            scaledImageCache = new BufferedImage(preferredSize.width, preferredSize.height, image.getType());
-            Graphics2D g2d = scaledImageCache.createGraphics();
-            setRenderingHints(g2d);
-            g2d.drawImage(image.get(), 0, 0, scaledImageCache.getWidth(), scaledImageCache.getHeight(), 0, 0, image.getWidth(), image.getHeight(), null);
-            g2d.dispose();
-            didRepaint = true;
+            BufferedImage l_scaledImageCache = scaledImageCache;
+            if (l_scaledImageCache == null || l_scaledImageCache.getWidth() != preferredSize.width || l_scaledImageCache.getHeight() != preferredSize.height)
+            {
+                l_scaledImageCache = new BufferedImage(preferredSize.width, preferredSize.height, image.getType());
+                scaledImageCache = l_scaledImageCache;
+                scaledImageStale = true;
+            }
+            if (scaledImageStale)
+            {
+                // cleared first, so going stale again while drawing redraws it once more
+                scaledImageStale = false;
+                // pull the entire image out and place into scaledImageCache
+                Graphics2D g2d = l_scaledImageCache.createGraphics();
+                setRenderingHints(g2d);
+                g2d.drawImage(image.get(), 0, 0, l_scaledImageCache.getWidth(), l_scaledImageCache.getHeight(), 0, 0, image.getWidth(), image.getHeight(), null);
+                g2d.dispose();
+                didRepaint = true;
+            }
         }
         
         if (didRepaint)
@@ -675,6 +1050,68 @@ public class ImagePanel extends JPanel
         }
     }
     
+    /**
+     * Repaints flushed tiles. When scaled down each tile is rescaled into
+     * scaledImageCache on its own, through one Graphics2D, so the cost of a
+     * frame follows the area that changed.
+     * 
+     * @param rects x, y, width and height of each tile
+     * @param length
+     */
+    private void repaintRects(int[] rects, int length)
+    {
+        int idx,x,y,w,h;
+        final int[] offsets = repaintOffsets;
+        final float[] scaleFactors = repaintScaleFactors;
+        
+        if (!transform.isScalingDown())
+        {
+            transform.getValues(offsets, scaleFactors, repaintScaleState);
+            idx = 0;
+            while (idx < length)
+            {
+                x = rects[idx++];
+                y = rects[idx++];
+                w = rects[idx++];
+                h = rects[idx++];
+                nts_repaint(x, y, w, h, offsets, scaleFactors, repaintScaleState[0]);
+            }
+            return;
+        }
+        if (_repaint())
+        {
+            // rescaled and repainted whole
+            return;
+        }
+        
+        transform.getValues(offsets, scaleFactors);
+        BufferedImage src = image.get();
+        Graphics2D g2d = scaledImageCache.createGraphics();
+        try
+        {
+            setRenderingHints(g2d);
+            idx = 0;
+            while (idx < length)
+            {
+                x = rects[idx++];
+                y = rects[idx++];
+                w = rects[idx++];
+                h = rects[idx++];
+                final int x2src = x+w;
+                final int y2src = y+h;
+                final int x1dst = Math.round(scaleFactors[0]*((float)x));
+                final int y1dst = Math.round(scaleFactors[1]*((float)y));
+                final int x2dst = Math.round(scaleFactors[0]*((float)x2src));
+                final int y2dst = Math.round(scaleFactors[1]*((float)y2src));
+                g2d.drawImage(src, x1dst, y1dst, x2dst, y2dst, x, y, x2src, y2src, null);
+                super.repaint(offsets[0] + x1dst, offsets[1] + y1dst, x2dst - x1dst, y2dst - y1dst);
+            }
+        }
+        finally {
+            g2d.dispose();
+        }
+    }
+    
     @Override
     public void repaint(final int x, final int y, final int w, final int h)
     {
@@ -683,16 +1120,30 @@ public class ImagePanel extends JPanel
             super.repaint(x, y, w, h);
             return;
         }
-        int[] offsets = new int[2];
-        float[] scaleFactors = new float[2];
-        byte[] scaleStateRef = new byte[1];
-        byte scaleState;
+        int[] offsets;
+        float[] scaleFactors;
+        byte[] scaleStateRef;
+        if (SwingUtilities.isEventDispatchThread())
+        {
+            offsets = repaintOffsets;
+            scaleFactors = repaintScaleFactors;
+            scaleStateRef = repaintScaleState;
+        }
+        else
+        {
+            offsets = new int[2];
+            scaleFactors = new float[2];
+            scaleStateRef = new byte[1];
+        }
         transform.getValues(offsets, scaleFactors, scaleStateRef);
-        scaleState = scaleStateRef[0];
-        scaleStateRef = null;
+        nts_repaint(x, y, w, h, offsets, scaleFactors, scaleStateRef[0]);
+    }
+    
+    private void nts_repaint(final int x, final int y, final int w, final int h, int[] offsets, float[] scaleFactors, byte scaleState)
+    {
         if ((scaleState & SynchronousTransform.SCALING_MASK) != 0)
         {
-            if ((scaleState & SynchronousTransform.SCALING_DOWN_MASK) != 0)
+            if ((scaleState & SynchronousTransform.SCALING_DOWN_MASK) != 0 && renderThread == null)
             {
                 if (!_repaint())
                 {
@@ -746,6 +1197,10 @@ public class ImagePanel extends JPanel
 		            frameBuffer[0] = new int[numSegmentInfoValues];
 		        }
         	}
+        	if (queuedSegments == null || queuedSegments.length != segInfo.numSegments)
+        	{
+        	    queuedSegments = new FixedLengthBitSet(segInfo.numSegments);
+        	}
         }
         finally {
         	frameBufferLock.release();
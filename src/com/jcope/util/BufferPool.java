@@ -2,304 +2,280 @@ package com.jcope.util;
 
 import static com.jcope.debug.Debug.assert_;
 
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.jcope.debug.LLog;
+import com.jcope.debug.LeakDetector;
+
+/**
+ *
+ * Buffers pooled by power of two size class.
+ *
+ * A buffer is handed out with the capacity of its class, at least the size
+ * asked for, so one class serves every size that rounds up to it. Each
+ * thread keeps the last buffer it released of every small class for
+ * itself, anything else goes back to a free list shared by all threads.
+ * Buffers idle in the shared lists are capped at maxPooledBytes, past that
+ * a released buffer is left to the collector and counted as evicted.
+ *
+ * The cap is not a bound on the memory the pool holds: buffers handed out
+ * are not counted, nor are the per-thread caches, which hold up to one
+ * buffer of each class up to 64 KiB, just under 128 KiB per thread that
+ * ever released one. A thread's cache goes to the collector with it.
+ *
+ */
 
 public abstract class BufferPool<T>
 {
-    private final HashMap<Integer, Object> poolMap;
-    private final Semaphore listSema;
-    
-    @SuppressWarnings("rawtypes")
-    private static final ReferenceQueue queue = new ReferenceQueue();
-    private static final Thread cleanupThread;
-    
-    static
+    private static final int MIN_CLASS = 6; // 64
+    private static final int MAX_CLASS = 30; // 1 GiB
+    private static final int MAX_THREAD_CACHED_CLASS = 16; // 64 KiB
+
+    private final long maxPooledBytes;
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_CLASS + 1];
+    private final ThreadLocal<Object[]> threadCache = new ThreadLocal<Object[]>() {
+
+        @Override
+        protected Object[] initialValue()
+        {
+            return new Object[MAX_THREAD_CACHED_CLASS + 1];
+        }
+
+    };
+    private final AtomicLong pooledBytes = new AtomicLong(0L);
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong evictions = new AtomicLong(0L);
+
+    private static class SizeClass
     {
-        cleanupThread = new Thread() {
-            @SuppressWarnings({
-                    "rawtypes", "unchecked"
-            })
-            @Override
-            public void run() {
-                BufferPool pool;
-                BufferPool.PoolRef ref = null;
-                while (true)
-                {
-                    try
-                    {
-                        if (ref == null)
-                        {
-                            ref = (BufferPool.PoolRef) queue.remove();
-                        }
-                        pool = ref.parentPool;
-                        assert_(pool != null);
-                        try
-                        {
-                            pool.listSema.acquire();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            LLog.e(e);
-                        }
-                        try
-                        {
-                            synchronized(pool.poolMap)
-                            {
-                                do
-                                {
-                                    ref.parentPool = null;
-                                    ref.sema = null;
-                                    ref.hardRef = null;
-                                    pool.remove(ref);
-                                } while ((ref = (BufferPool.PoolRef) queue.poll()) != null && pool == ref.parentPool);
-                            }
-                        }
-                        finally {
-                            pool.listSema.release();
-                        }
-                    }
-                    catch (InterruptedException e)
-                    {
-                        LLog.e(e, Boolean.FALSE);
-                    }
-                }
+        private Object[] stack = new Object[4];
+        private int size = 0;
+
+        synchronized void push(Object ref)
+        {
+            if (size == stack.length)
+            {
+                Object[] tmp = new Object[size * 2];
+                System.arraycopy(stack, 0, tmp, 0, size);
+                stack = tmp;
             }
-        };
-        
-        cleanupThread.setName("BufferPool-cleanup-thread");
-        cleanupThread.setPriority(Thread.MAX_PRIORITY);
-        cleanupThread.setDaemon(true);
-        cleanupThread.start();
+            stack[size++] = ref;
+        }
+
+        synchronized Object pop()
+        {
+            if (size == 0)
+            {
+                return null;
+            }
+            Object rval = stack[--size];
+            stack[size] = null;
+
+            return rval;
+        }
     }
-    
-    public class PoolRef extends SoftReference<T>
+
+    public class PoolRef
     {
-        private volatile int refCount;
-        private Semaphore sema;
-        private volatile T hardRef;
-        private final int order;
-        BufferPool<T> parentPool;
-        
-        @SuppressWarnings("unchecked")
-        private PoolRef(T hardRef, final int order)
+        // zero while pooled so acquiring a released reference is caught
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        private volatile LeakDetector.Handle leakHandle;
+        private final T hardRef;
+        private final int sizeClass;
+        private int length;
+        private volatile Object attachment = null;
+
+        private PoolRef(T hardRef, final int sizeClass)
         {
-            super(hardRef, queue);
-            parentPool = BufferPool.this;
-            sema = new Semaphore(1, true);
-            this.order = order;
             this.hardRef = hardRef;
-            refCount = 1;
+            this.sizeClass = sizeClass;
         }
-        
-        private void stageGet()
-        {
-            hardRef = super.get();
-        }
-        
+
         public T get()
         {
             return hardRef;
         }
-        
+
+        /**
+         * @return the size asked for, the buffer itself may be larger
+         */
+        public int length()
+        {
+            return length;
+        }
+
+        /**
+         * @return what a user of the buffer attached to it, kept while it
+         *         is pooled, null if nothing was
+         */
+        public Object getAttachment()
+        {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment)
+        {
+            this.attachment = attachment;
+        }
+
+        private void handOut(int length)
+        {
+            this.length = length;
+            leakHandle = LeakDetector.track(this, Integer.valueOf(length));
+            refCount.set(1);
+        }
+
         public void release()
         {
-            int newRefCount;
-            try
-            {
-                sema.acquire();
-            }
-            catch (InterruptedException e)
-            {
-                LLog.e(e);
-            }
-            try
-            {
-                newRefCount = refCount;
-                assert_(newRefCount > 0);
-                newRefCount--;
-                refCount = newRefCount;
-            }
-            finally {
-                sema.release();
-            }
+            int newRefCount = refCount.decrementAndGet();
             if (newRefCount <= 0)
             {
                 assert_(newRefCount == 0);
+                LeakDetector.untrack(leakHandle);
+                leakHandle = null;
                 BufferPool.this.release(this);
             }
         }
-        
+
         public void acquire()
         {
             int newRefCount;
-            try
-            {
-                sema.acquire();
-            }
-            catch (InterruptedException e)
-            {
-                LLog.e(e);
-            }
-            try
+            do
             {
-                newRefCount = refCount;
+                newRefCount = refCount.get();
                 assert_(newRefCount > 0);
-                newRefCount++;
-                refCount = newRefCount;
-            }
-            finally {
-                sema.release();
-            }
+            } while (!refCount.compareAndSet(newRefCount, newRefCount + 1));
         }
     }
-    
-    public BufferPool()
-    {
-        poolMap = new HashMap<Integer, Object>();
-        listSema = new Semaphore(1, true);
-    }
-    
-    @SuppressWarnings("unchecked")
-    private void reclaim(final PoolRef ref)
+
+    /**
+     * @param maxPooledBytes cap on the buffers idle in the shared free lists,
+     *        thread caches and buffers handed out come on top of it
+     */
+    public BufferPool(long maxPooledBytes)
     {
-        Object poolSetObj = poolMap.get(ref.order);
-        if (poolSetObj == null)
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i=MIN_CLASS; i<=MAX_CLASS; i++)
         {
-            poolMap.put(ref.order, ref);
-            return;
+            sizeClasses[i] = new SizeClass();
         }
-        LinkedList<PoolRef> poolSet;
-        if (poolSetObj instanceof LinkedList) {
-            poolSet = (LinkedList<PoolRef>) poolSetObj;
-            synchronized(poolSet) {
-                poolSet.add(ref);
-            }
-            return;
-        }
-        poolSet = new LinkedList<PoolRef>();
-        poolSet.add((BufferPool<T>.PoolRef) poolSetObj);
-        poolSet.add(ref);
-        poolMap.put(ref.order, poolSet);
     }
-    
-    private void remove(PoolRef ref)
+
+    private static int sizeClassOf(int size)
     {
-        Object poolSetObj = poolMap.get(ref.order);
-        if (poolSetObj == null) {
-        	// Do Nothing
-        	return;
-        }
-        else if (poolSetObj instanceof LinkedList) {
-            @SuppressWarnings("unchecked")
-            LinkedList<PoolRef> poolSet = (LinkedList<PoolRef>) poolSetObj;
-            synchronized(poolSet) {
-                poolSet.remove(ref);
-                if (poolSet.isEmpty()) {
-                    poolMap.remove(ref.order);
-                }
-            }
-        }
-        else if (poolSetObj == ref) {
-            poolMap.remove(ref.order);
-        }
+        int rval = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+
+        return Math.max(rval, MIN_CLASS);
     }
-    
+
+    /**
+     * @param order the size needed
+     * @return a buffer of at least order, released once done with
+     */
     @SuppressWarnings("unchecked")
     public PoolRef acquire(final int order)
     {
+        assert_(order >= 0);
+
+        int sizeClass = sizeClassOf(order);
         PoolRef rval = null;
-        PoolRef tmp;
-        
-        try
+
+        if (sizeClass > MAX_CLASS)
         {
-            listSema.acquire();
+            // too large to round up, never pooled
+            misses.incrementAndGet();
+            rval = new PoolRef(getInstance(order), sizeClass);
+            rval.handOut(order);
+            return rval;
         }
-        catch (InterruptedException e)
+
+        if (sizeClass <= MAX_THREAD_CACHED_CLASS)
         {
-            LLog.e(e);
+            Object[] cache = threadCache.get();
+            rval = (PoolRef) cache[sizeClass];
+            cache[sizeClass] = null;
         }
-        try
+        if (rval == null)
         {
-            synchronized(poolMap)
+            rval = (PoolRef) sizeClasses[sizeClass].pop();
+            if (rval != null)
             {
-            	Object poolSetObj = poolMap.get(order);
-                if (poolSetObj != null) {
-                    LinkedList<PoolRef> poolSet;
-                    if (poolSetObj instanceof HashMap) {
-                    	boolean poolIsEmpty;
-                        poolSet = (LinkedList<BufferPool<T>.PoolRef>) poolSetObj;
-                        synchronized(poolSet){
-                            while (!(poolIsEmpty = poolSet.isEmpty()))
-                            {
-                                tmp = poolSet.remove();
-                                tmp.stageGet();
-                                if (tmp.hardRef != null) {
-                                    rval = tmp;
-                                    break;
-                                }
-                            }
-                        }
-                        if (poolIsEmpty) {
-                        	poolMap.remove(order);
-                        }
-                    }
-                    else {
-                        poolMap.remove(order);
-                        tmp = (BufferPool<T>.PoolRef) poolSetObj;
-                        tmp.stageGet();
-                        if (tmp.hardRef != null) {
-                            rval = tmp;
-                        }
-                    }
-                }
+                pooledBytes.addAndGet(-(1L << sizeClass));
             }
         }
-        finally {
-            listSema.release();
-        }
-        
         if (rval == null)
         {
-            T hardRef = getInstance(order);
-            rval = new PoolRef(hardRef, order);
+            misses.incrementAndGet();
+            rval = new PoolRef(getInstance(1 << sizeClass), sizeClass);
         }
         else
         {
-            rval.refCount = 1;
+            hits.incrementAndGet();
         }
-        
+        rval.handOut(order);
+
         return rval;
     }
-    
+
     private void release(final PoolRef ref)
     {
-        try
-        {
-            listSema.acquire();
-        }
-        catch (InterruptedException e)
+        int sizeClass = ref.sizeClass;
+
+        if (sizeClass > MAX_CLASS)
         {
-            LLog.e(e);
+            return;
         }
-        try
+        if (sizeClass <= MAX_THREAD_CACHED_CLASS)
         {
-            ref.hardRef = null;
-            synchronized(poolMap)
+            Object[] cache = threadCache.get();
+            if (cache[sizeClass] == null)
             {
-                reclaim(ref);
+                cache[sizeClass] = ref;
+                return;
             }
         }
-        finally {
-            listSema.release();
+
+        long classBytes = 1L << sizeClass;
+
+        if (pooledBytes.addAndGet(classBytes) > maxPooledBytes)
+        {
+            pooledBytes.addAndGet(-classBytes);
+            evictions.incrementAndGet();
+            return;
         }
+        sizeClasses[sizeClass].push(ref);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+
+    public String getStats()
+    {
+        return String.format("%s: hits=%d misses=%d evictions=%d pooled=%d/%d bytes", getClass().getSimpleName(), getHits(), getMisses(), getEvictions(), getPooledBytes(), maxPooledBytes);
     }
-    
-    protected abstract T getInstance(int order);
-    
+
+    /**
+     * @param capacity
+     * @return a new buffer of exactly capacity
+     */
+    protected abstract T getInstance(int capacity);
+
 }
@@ -85,6 +85,18 @@ public class FixedLengthBitSet implements Serializable
         bset.or(flbs.bset);
     }
     
+    /**
+     * Becomes a copy of flbs without allocating, unlike clone.
+     * 
+     * @param flbs
+     */
+    public void copyFrom(FixedLengthBitSet flbs)
+    {
+        assert_(length == flbs.length);
+        bset.clear();
+        bset.or(flbs.bset);
+    }
+    
     public void andNot(FixedLengthBitSet flbs)
     {
         assert_(length == flbs.length);
@@ -1,6 +1,7 @@
 package com.jcope.util;
 
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.jcope.debug.LLog;
 import com.jcope.vnc.server.JitCompressedEvent;
@@ -14,8 +15,9 @@ public class GraphicsSegment
     
     private Semaphore sema = new Semaphore(1, true);
     private Integer[] solidColorPtr = new Integer[]{null};
-    private int[] pixels;
-    private volatile JitCompressedEvent jce = null;
+    private final int[] pixels;
+    private final AtomicReference<JitCompressedEvent> jce = new AtomicReference<JitCompressedEvent>(null);
+    private volatile long version = 0L; // scan in which the pixels last changed
     
     public GraphicsSegment(int size)
     {
@@ -48,24 +50,54 @@ public class GraphicsSegment
         }
     }
     
+    /**
+     * @return the size of the pixels, about the most an update of this
+     *         segment takes once encoded
+     */
+    public int getByteCount()
+    {
+        return 4 * pixels.length;
+    }
+    
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    public void setVersion(long version)
+    {
+        this.version = version;
+    }
+    
     public void releaseJitCompressedEvent()
     {
-    	JitCompressedEvent my_jce = jce;
+    	JitCompressedEvent my_jce = jce.getAndSet(null);
     	if (my_jce != null)
     	{
-    		jce = null;
             my_jce.release();
     	}
     }
     
-    public JitCompressedEvent acquireJitCompressedEvent(Object id, Object serialized)
+    /**
+     * Only from within synchronously, the cached event cannot be released in between.
+     * A new event is encoded straight from the pixels before returning, while
+     * they cannot change, so they are never copied.
+     * 
+     * @param id
+     * @return the cached event, acquired for the caller
+     */
+    public JitCompressedEvent acquireJitCompressedEvent(Object id)
     {
-    	JitCompressedEvent rval = jce;
+    	JitCompressedEvent rval = jce.get();
     	
     	if (rval == null)
     	{
+    	    Integer solidColor = solidColorPtr[0];
+    	    Object serialized = (solidColor == null) ? pixels : solidColor;
     		rval = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{id, serialized});
-    		jce = rval;
+    		// the event outlives the lock, it must not read the pixels later
+    		rval.compress();
+    		jce.set(rval);
     	}
     	rval.acquire();
     	
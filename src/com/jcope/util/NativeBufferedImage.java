@@ -23,6 +23,18 @@ public class NativeBufferedImage {
         
         public abstract int mutate(int pixel);
         
+        /**
+         * Converts pixels[from] up to pixels[to] in place, one call per
+         * row rather than per pixel.
+         */
+        public void mutate(int[] pixels, int from, int to)
+        {
+            for (int idx=from; idx<to; idx++)
+            {
+                pixels[idx] = mutate(pixels[idx]);
+            }
+        }
+        
         public void mutate(int idx, int[] pixels, int pixel)
         {
         	assert_(bytesPerPixel == 3);
@@ -54,6 +66,69 @@ public class NativeBufferedImage {
                 break;
             }
         }
+        
+        /**
+         * Packs count pixels from src[srcPos] on into pixels, starting at
+         * pixel idx. Whole groups of four pixels are written as three ints
+         * at once, only the pixels before and after them share ints with
+         * their neighbours.
+         */
+        public void pack(int idx, int[] pixels, int[] src, int srcPos, int count)
+        {
+            assert_(bytesPerPixel == 3);
+            int end = idx + count;
+            int midx, p0, p1, p2, p3;
+            while (idx < end && (idx % 4) != 0)
+            {
+                mutate(idx++, pixels, src[srcPos++]);
+            }
+            midx = (idx / 4) * 3;
+            while (end - idx >= 4)
+            {
+                p0 = mutate(src[srcPos++]) & 0xFFFFFF;
+                p1 = mutate(src[srcPos++]) & 0xFFFFFF;
+                p2 = mutate(src[srcPos++]) & 0xFFFFFF;
+                p3 = mutate(src[srcPos++]) & 0xFFFFFF;
+                pixels[midx++] = (p0 << 8) | (p1 >>> 16);
+                pixels[midx++] = (p1 << 16) | (p2 >>> 8);
+                pixels[midx++] = (p2 << 24) | p3;
+                idx += 4;
+            }
+            while (idx < end)
+            {
+                mutate(idx++, pixels, src[srcPos++]);
+            }
+        }
+        
+        /**
+         * As pack(int, int[], int[], int, int), decoding src as it goes.
+         */
+        public void pack(int idx, int[] pixels, PackedIntArray src, int srcPos, int count)
+        {
+            assert_(bytesPerPixel == 3);
+            int end = idx + count;
+            int midx, p0, p1, p2, p3;
+            while (idx < end && (idx % 4) != 0)
+            {
+                mutate(idx++, pixels, src.get(srcPos++));
+            }
+            midx = (idx / 4) * 3;
+            while (end - idx >= 4)
+            {
+                p0 = mutate(src.get(srcPos++)) & 0xFFFFFF;
+                p1 = mutate(src.get(srcPos++)) & 0xFFFFFF;
+                p2 = mutate(src.get(srcPos++)) & 0xFFFFFF;
+                p3 = mutate(src.get(srcPos++)) & 0xFFFFFF;
+                pixels[midx++] = (p0 << 8) | (p1 >>> 16);
+                pixels[midx++] = (p1 << 16) | (p2 >>> 8);
+                pixels[midx++] = (p2 << 24) | p3;
+                idx += 4;
+            }
+            while (idx < end)
+            {
+                mutate(idx++, pixels, src.get(srcPos++));
+            }
+        }
     }
     
     private static final Mutator nopMutator = new Mutator(4) {
@@ -63,17 +138,25 @@ public class NativeBufferedImage {
             return pixel;
         }
         
+        @Override
+        public void mutate(int[] pixels, int from, int to) {
+            // Do Nothing
+        }
+        
     };
     
     private final BufferedImage img;
     private final Mutator mutator;
     
     public NativeBufferedImage(int width, int height, int type) {
-        assert_(type == BufferedImage.TYPE_INT_ARGB);
-        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        GraphicsDevice device = env.getDefaultScreenDevice();
-        GraphicsConfiguration config = device.getDefaultConfiguration();
-        img = config.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        this(createCompatibleImage(width, height, type));
+    }
+    
+    /**
+     * Wraps an image of a known type, no graphics environment needed.
+     */
+    NativeBufferedImage(BufferedImage img) {
+        this.img = img;
         switch (img.getType()) {
         case BufferedImage.TYPE_INT_RGB:
             mutator = new Mutator(4) {
@@ -84,6 +167,15 @@ public class NativeBufferedImage {
                     return pixel & 0x00FFFFFF;
                 }
                 
+                @Override
+                public void mutate(int[] pixels, int from, int to)
+                {
+                    for (int idx=from; idx<to; idx++)
+                    {
+                        pixels[idx] &= 0x00FFFFFF;
+                    }
+                }
+                
             };
             break;
         case BufferedImage.TYPE_INT_ARGB:
@@ -97,6 +189,16 @@ public class NativeBufferedImage {
                     return (pixel & 0x0000FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
                 }
                 
+                @Override
+                public void mutate(int[] pixels, int from, int to) {
+                    int pixel;
+                    for (int idx=from; idx<to; idx++)
+                    {
+                        pixel = pixels[idx];
+                        pixels[idx] = (pixel & 0x0000FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
+                    }
+                }
+                
             };
             break;
         case BufferedImage.TYPE_4BYTE_ABGR:
@@ -107,6 +209,16 @@ public class NativeBufferedImage {
                     return (pixel & 0xFF00FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
                 }
                 
+                @Override
+                public void mutate(int[] pixels, int from, int to) {
+                    int pixel;
+                    for (int idx=from; idx<to; idx++)
+                    {
+                        pixel = pixels[idx];
+                        pixels[idx] = (pixel & 0xFF00FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
+                    }
+                }
+                
             };
             break;
         case BufferedImage.TYPE_3BYTE_BGR:
@@ -127,6 +239,14 @@ public class NativeBufferedImage {
                     return pixel | 0xFF000000;
                 }
                 
+                @Override
+                public void mutate(int[] pixels, int from, int to) {
+                    for (int idx=from; idx<to; idx++)
+                    {
+                        pixels[idx] |= 0xFF000000;
+                    }
+                }
+                
             };
             break;
         case BufferedImage.TYPE_4BYTE_ABGR_PRE:
@@ -137,6 +257,16 @@ public class NativeBufferedImage {
                     return 0xFF000000 | (pixel & 0x0000FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
                 }
                 
+                @Override
+                public void mutate(int[] pixels, int from, int to) {
+                    int pixel;
+                    for (int idx=from; idx<to; idx++)
+                    {
+                        pixel = pixels[idx];
+                        pixels[idx] = 0xFF000000 | (pixel & 0x0000FF00) | ((pixel << 16) & 0x00FF0000) | ((pixel >> 16) & 0x000000FF);
+                    }
+                }
+                
             };
             break;
         case BufferedImage.TYPE_BYTE_GRAY:
@@ -162,6 +292,15 @@ public class NativeBufferedImage {
         }
     }
     
+    private static BufferedImage createCompatibleImage(int width, int height, int type) {
+        assert_(type == BufferedImage.TYPE_INT_ARGB);
+        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        GraphicsDevice device = env.getDefaultScreenDevice();
+        GraphicsConfiguration config = device.getDefaultConfiguration();
+        
+        return config.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+    
     public BufferedImage get() {
         return img;
     }
@@ -201,18 +340,10 @@ public class NativeBufferedImage {
         
         if (mutator.bytesPerPixel == 4)
         {
-            if (mutator != nopMutator)
-            {
-                int idx = 0;
-                do
-                {
-                    srcPixels[idx] = mutator.mutate(srcPixels[idx]);
-                    idx++;
-                } while (idx < srcPixels.length);
-            }
             for (int y=0; y<srch; y++)
             {
                 System.arraycopy(srcPixels, src, dstPixels, dst, srcw);
+                mutator.mutate(dstPixels, dst, dst + srcw);
                 dstBlock += dstw;
                 dst = dstBlock;
                 srcBlock += srcScanWidth;
@@ -221,7 +352,6 @@ public class NativeBufferedImage {
         }
         else
         {
-            int srcEnd;
             if (srcw <= 0)
             {
                 if (DEBUG) {LLog.w("Why on earth is src <= 0 ?");}
@@ -229,11 +359,7 @@ public class NativeBufferedImage {
             }
             for (int y=0; y<srch; y++)
             {
-                srcEnd = src + srcw;
-                do
-                {
-                    mutator.mutate(dst++, dstPixels, srcPixels[src++]);
-                } while (src < srcEnd);
+                mutator.pack(dst, dstPixels, srcPixels, src, srcw);
                 dstBlock += dstw;
                 dst = dstBlock;
                 srcBlock += srcScanWidth;
@@ -242,6 +368,39 @@ public class NativeBufferedImage {
         }
     }
     
+    /**
+     * Decodes srcPixels row by row straight into the raster,
+     * no intermediate int[] is needed.
+     */
+    public void setRGB(int dstx, int dsty, PackedIntArray srcPixels, int srcw, int srch)
+    {
+        int dstw = img.getWidth();
+        int dsth = img.getHeight();
+        assert_(srcw * srch <= srcPixels.length());
+        assert_(srcw + dstx <= dstw);
+        assert_(srch + dsty <= dsth);
+
+        int[] dstPixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+
+        int dst = dsty * dstw + dstx;
+        int src = 0;
+
+        for (int y=0; y<srch; y++)
+        {
+            if (mutator.bytesPerPixel == 4)
+            {
+                srcPixels.copyTo(src, dstPixels, dst, srcw);
+                mutator.mutate(dstPixels, dst, dst + srcw);
+            }
+            else
+            {
+                mutator.pack(dst, dstPixels, srcPixels, src, srcw);
+            }
+            dst += dstw;
+            src += srcw;
+        }
+    }
+
     public void fillRGB(int pixelColor)
     {
         int[] dstPixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
@@ -252,11 +411,7 @@ public class NativeBufferedImage {
         }
         else
         {
-            int[] alignedSolidPixels = new int[3];
-            for (int idx=0; idx<4; idx++)
-            {
-            	mutator.mutate(idx, alignedSolidPixels, pixelColor);
-            }
+            int[] alignedSolidPixels = getAlignedSolidPixels(pixelColor);
             int idx = 0;
             int greatest_factor = dstPixels.length - (dstPixels.length % alignedSolidPixels.length);
             while (idx < greatest_factor)
@@ -271,4 +426,67 @@ public class NativeBufferedImage {
             }
         }
     }
+    
+    /**
+     * Fills the w by h rectangle at dstx, dsty a row at a time.
+     */
+    public void fillRGB(int dstx, int dsty, int w, int h, int pixelColor)
+    {
+        int dstw = img.getWidth();
+        assert_(w + dstx <= dstw);
+        assert_(h + dsty <= img.getHeight());
+        
+        int[] dstPixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int dst = dsty * dstw + dstx;
+        
+        if (mutator.bytesPerPixel == 4)
+        {
+            pixelColor = mutator.mutate(pixelColor);
+            for (int y=0; y<h; y++)
+            {
+                Arrays.fill(dstPixels, dst, dst + w, pixelColor);
+                dst += dstw;
+            }
+        }
+        else
+        {
+            int[] alignedSolidPixels = getAlignedSolidPixels(pixelColor);
+            int idx, end;
+            for (int y=0; y<h; y++)
+            {
+                idx = dst;
+                end = dst + w;
+                // the pixels before and after whole groups of four share
+                // ints with their neighbours
+                while (idx < end && (idx % 4) != 0)
+                {
+                    mutator.mutate(idx++, dstPixels, pixelColor);
+                }
+                while (end - idx >= 4)
+                {
+                    System.arraycopy(alignedSolidPixels, 0, dstPixels, (idx / 4) * 3, 3);
+                    idx += 4;
+                }
+                while (idx < end)
+                {
+                    mutator.mutate(idx++, dstPixels, pixelColor);
+                }
+                dst += dstw;
+            }
+        }
+    }
+    
+    /**
+     * @return four pixels of pixelColor packed into three ints
+     */
+    private int[] getAlignedSolidPixels(int pixelColor)
+    {
+        int[] rval = new int[3];
+        for (int idx=0; idx<4; idx++)
+        {
+            mutator.mutate(idx, rval, pixelColor);
+        }
+        
+        return rval;
+    }
 }
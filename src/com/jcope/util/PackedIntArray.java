@@ -0,0 +1,71 @@
+package com.jcope.util;
+
+import static com.jcope.debug.Debug.assert_;
+
+/**
+ *
+ * An int[] still packed big endian in the byte[] it was decoded into, as
+ * serialization writes it.
+ *
+ * Only a window onto someone else's buffer: it is repointed rather than
+ * reallocated and is valid until its owner decodes into the buffer again.
+ *
+ */
+
+public class PackedIntArray
+{
+    private byte[] buffer = null;
+    private int offset = 0;
+    private int length = 0;
+
+    public void set(byte[] buffer, int offset, int length)
+    {
+        assert_(offset >= 0);
+        assert_(length >= 0);
+        assert_(offset + 4 * length <= buffer.length);
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    public int get(int idx)
+    {
+        int pos = offset + 4 * idx;
+
+        return ((buffer[pos] & 0xff) << 24)
+            | ((buffer[pos+1] & 0xff) << 16)
+            | ((buffer[pos+2] & 0xff) << 8)
+            | (buffer[pos+3] & 0xff);
+    }
+
+    /**
+     * @param srcPos first int to copy
+     * @param dst
+     * @param dstPos
+     * @param count ints to copy
+     */
+    public void copyTo(int srcPos, int[] dst, int dstPos, int count)
+    {
+        assert_(srcPos >= 0);
+        assert_(srcPos + count <= length);
+
+        byte[] l_buffer = buffer;
+        int pos = offset + 4 * srcPos;
+        int end = dstPos + count;
+
+        while (dstPos < end)
+        {
+            dst[dstPos++] = ((l_buffer[pos] & 0xff) << 24)
+                | ((l_buffer[pos+1] & 0xff) << 16)
+                | ((l_buffer[pos+2] & 0xff) << 8)
+                | (l_buffer[pos+3] & 0xff);
+            pos += 4;
+        }
+    }
+}
@@ -3,12 +3,14 @@ package com.jcope.util;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class ReusableByteArrayOutputStream extends OutputStream implements Closeable, Flushable
 {
     
-    private ArrayList<Byte> buffer;
+    private byte[] buffer;
+    private int count = 0;
     
     public ReusableByteArrayOutputStream()
     {
@@ -17,17 +19,26 @@ public class ReusableByteArrayOutputStream extends OutputStream implements Close
     
     public ReusableByteArrayOutputStream(int size)
     {
-        buffer = new ArrayList<Byte>(size);
+        buffer = new byte[Math.max(size, 32)];
     }
     
     public int size()
     {
-        return buffer.size();
+        return count;
     }
     
     public void reset()
     {
-        buffer.clear();
+        count = 0;
+    }
+    
+    /**
+     * @return the backing array, the first size() bytes of which were
+     *         written, valid until the next write
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
     }
     
     @Override
@@ -49,25 +60,66 @@ public class ReusableByteArrayOutputStream extends OutputStream implements Close
     
     public byte[] toByteArray(byte[] b)
     {
-        int bsize = buffer.size();
-        
-        if (b == null || b.length < bsize)
+        if (b == null || b.length < count)
         {
-            b = new byte[bsize];
+            b = new byte[count];
         }
         
-        for (int i=0; i<b.length; i++)
-        {
-            b[i] = buffer.get(i);
-        }
+        System.arraycopy(buffer, 0, b, 0, count);
         
         return b;
     }
-
+    
+    public ByteBuffer toByteBuffer(ByteBuffer b)
+    {
+        b.put(buffer, 0, count);
+        
+        return b;
+    }
+    
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+    
     @Override
     public void write(int b)
     {
-        buffer.add((byte) b);
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
     }
     
+    /**
+     * Writes the ints big endian, as DataOutput.writeInt would.
+     */
+    public void writeInts(int[] src, int off, int len)
+    {
+        byte[] l_buffer;
+        int pos, v, end = off + len;
+        
+        ensureCapacity(count + 4 * len);
+        l_buffer = buffer;
+        pos = count;
+        while (off < end)
+        {
+            v = src[off++];
+            l_buffer[pos++] = (byte) (v >>> 24);
+            l_buffer[pos++] = (byte) (v >>> 16);
+            l_buffer[pos++] = (byte) (v >>> 8);
+            l_buffer[pos++] = (byte) v;
+        }
+        count = pos;
+    }
+
 }
@@ -2,313 +2,302 @@ package com.jcope.util;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import com.jcope.debug.LLog;
 
-public class TaskDispatcher<T> extends Thread
-{
+/**
+ *
+ * Runs dispatched tasks one at a time on its own thread.
+ *
+ * A task dispatched under the key of one that is still pending replaces it,
+ * in place unless the key was set immutable, in which case the new task
+ * goes to the back of the queue. Tasks under an immediate key go ahead of
+ * every other pending task.
+ *
+ * Dispatching never blocks: producers append to lock-free multi-producer
+ * single-consumer queues that only the consumer takes from and the pending
+ * task of each key is swapped in with a compare and set. A PooledTask
+ * skips even that, its owner keeps it and its node is linked in again.
+ *
+ * The consumer is either a thread of the dispatcher's own or a strand on a
+ * shared Executor: a run of at most STRAND_BUDGET tasks submitted whenever
+ * there is work and none is already submitted, so tasks still run one at a
+ * time and in order without a thread per dispatcher.
+ *
+ */
 
-	class Dispatchable
+public class TaskDispatcher<T> implements Runnable
+{
+	public static final int STRAND_BUDGET = 64;
+	
+	class Task
 	{
-		public T k;
-		public Semaphore s;
-		public Node n;
-		public Runnable r;
-		public Runnable onDestroy;
+		public final Runnable r;
+		public final Runnable onDestroy;
+		public final Semaphore s;
 		
-		public void dispose()
+		public Task(Runnable r, Runnable onDestroy, Semaphore s)
 		{
-			k = null;
-			
-			s = null;
-			n = null;
-			r = null;
-			onDestroy = null;
+			this.r = r;
+			this.onDestroy = onDestroy;
+			this.s = s;
 		}
 	}
 	
-	class Node
+	/**
+	 * An entry of an IntakeQueue.
+	 */
+	static abstract class Node
 	{
-		public volatile Node n;
-		public volatile Node p;
-		public volatile Dispatchable d;
+		volatile Node n;
 		
-		public void dispose()
-		{
-			Dispatchable cd = d;
-			
-			p = null;
-			n = null;
-			d = null;
-			
-			if (cd != null)
-			{
-				cd.dispose();
-			}
-		}
+		/**
+		 * Runs the entry once the consumer takes it.
+		 * 
+		 * @return true iff. a task was run, false for a spent entry
+		 */
+		abstract boolean take(TaskDispatcher<?> dispatcher);
+		
+		/**
+		 * Drops the entry once the dispatcher is gone.
+		 */
+		abstract void drop(TaskDispatcher<?> dispatcher);
 	}
-
-	class LinkedList
+	
+	class Dispatchable extends Node
 	{
-		private volatile Node a = null;
-		private volatile Node z = null;
-		private volatile int size = 0;
-		private Semaphore s = new Semaphore(1, true);
+		public final T k;
+		// null once taken, replaced by an immutable key or cancelled
+		public final AtomicReference<Task> task;
 		
-		public Node add(Dispatchable d) throws InterruptedException
+		public Dispatchable(T k, Task task)
 		{
-			s.acquire();
-			try
-			{
-				if (size + 1 <= 0)
-				{
-					throw new RuntimeException();
-				}
-				
-				Node b = new Node();
-				b.d = d;
-				b.n = null;
-				b.p = z;
-				if (z == null)
-				{
-					a = b;
-				}
-				else
-				{
-					z.n = b;
-				}
-				size++;
-				z = b;
-				
-				return b;
-			}
-			finally
-			{
-				s.release();
-			}
+			this.k = k;
+			this.task = new AtomicReference<Task>(task);
 		}
 		
-		public Node addFirst(Dispatchable d) throws InterruptedException
+		@Override
+		boolean take(TaskDispatcher<?> dispatcher)
 		{
-			s.acquire();
-			try
-			{
-				if (size + 1 <= 0)
-				{
-					throw new RuntimeException();
-				}
-				
-				Node b = new Node();
-				b.d = d;
-				b.p = null;
-				b.n = a;
-				if (a == null)
-				{
-					z = b;
-				}
-				else
-				{
-					a.p = b;
-				}
-				size++;
-				a = b;
-				
-				return b;
-			}
-			finally
-			{
-				s.release();
-			}
+			return runDispatchable(this);
 		}
 		
-		public Dispatchable peek() throws InterruptedException
+		@Override
+		void drop(TaskDispatcher<?> dispatcher)
 		{
-			s.acquire();
-			try
-			{
-				return (a == null) ? null : a.d;
-			}
-			finally
-			{
-				s.release();
-			}
+			// Do Nothing
+			// a pending task is destroyed through mapSet
 		}
+	}
+	
+	/**
+	 * A task its owner keeps and dispatches again and again, so dispatching
+	 * allocates nothing. Typically one per int key, the owner indexing them
+	 * itself instead of the dispatcher mapping keys.
+	 * 
+	 * Dispatching it while it is pending leaves it where it is in the queue,
+	 * it then runs once, reading whatever state is latest. Dispatched again
+	 * while running, it runs again. It belongs to one dispatcher and is
+	 * never immediate.
+	 */
+	public static abstract class PooledTask extends Node implements Runnable
+	{
+		// from dispatch until run or destroyed
+		private final AtomicBoolean pending = new AtomicBoolean(false);
+		// while the node is linked into the queue
+		private final AtomicBoolean queued = new AtomicBoolean(false);
+		
+		/**
+		 * Called in place of run when cancelled or the dispatcher is
+		 * disposed while pending.
+		 */
+		public abstract void destroy();
 		
-		private Dispatchable _remove()
+		public boolean isPending()
 		{
-			Dispatchable rval = null;
-			
-			if (a != null)
-			{
-				Node b = a;
-				
-				if (a.n == null)
-				{
-					a = null;
-					z = null;
-				}
-				else
-				{
-					a = a.n;
-					a.p = null;
-				}
-				
-				rval = b.d;
-				b.d = null;
-				b.n = null;
-				
-				size--;
-			}
-			
-			return rval;
+			return pending.get();
 		}
 		
-		public Dispatchable remove() throws InterruptedException
+		@Override
+		final boolean take(TaskDispatcher<?> dispatcher)
 		{
-			s.acquire();
-			try
+			// before the run, so dispatching from here on queues it again
+			queued.set(false);
+			if (!pending.compareAndSet(true, false))
 			{
-				return _remove();
+				// cancelled
+				return false;
 			}
-			finally
+			dispatcher.pendingCount.decrementAndGet();
+			try
 			{
-				s.release();
+				run();
 			}
-		}
-		
-		public void remove(Node sn) throws InterruptedException
-		{
-			s.acquire();
-			try
+			catch (Exception e)
 			{
-				if (size - 1 < 0)
-				{
-					throw new RuntimeException();
-				}
-				
-				if (sn == a)
-				{
-					if (a.n == null)
-					{
-						a = null;
-						z = null;
-					}
-					else
-					{
-						a = a.n;
-					}
-				}
-				else if (sn == z)
-				{
-					z = z.p;
-				}
-				else
-				{
-					sn.p.n = sn.n;
-					sn.n.p = sn.p;
-				}
-				
-				size--;
-				sn.dispose();
+				LLog.e(e, false);
 			}
-			finally
+			catch (Throwable e)
 			{
-				s.release();
+				LLog.e(e, false);
 			}
+			
+			return true;
 		}
 		
-		public int size() throws InterruptedException
+		@Override
+		final void drop(TaskDispatcher<?> dispatcher)
 		{
-			s.acquire();
-			try
-			{
-				return size;
-			}
-			finally
-			{
-				s.release();
-			}
+			queued.set(false);
+			dispatcher.cancel(this);
 		}
+	}
+	
+	/**
+	 * Intrusive MPSC queue: producers swap themselves in as the head,
+	 * the dispatcher thread alone walks from the tail.
+	 * 
+	 * A node taken is unlinked entirely, a stub of the queue's own standing
+	 * in whenever it would be the last one left, so a PooledTask can be
+	 * added again as soon as it was taken.
+	 */
+	class IntakeQueue
+	{
+		private final Node stub;
+		private final AtomicReference<Node> head;
+		private volatile Node tail;
 		
-		/**
-		 * Will release all locks by default unless call clear(false)
-		 */
-		public void clear() throws InterruptedException
+		public IntakeQueue()
 		{
-			clear(null);
+			stub = new Dispatchable(null, null);
+			head = new AtomicReference<Node>(stub);
+			tail = stub;
 		}
 		
-		public void clear(Boolean releaseLocks) throws InterruptedException
+		public void add(Node d)
 		{
-		    if (releaseLocks == null)
-		    {
-		        releaseLocks = Boolean.TRUE;
-		    }
-			s.acquire();
-			try
+			d.n = null;
+			Node prev = head.getAndSet(d);
+			prev.n = d;
+		}
+		
+		/**
+		 * Dispatcher thread only
+		 */
+		public Node remove()
+		{
+			Node t = tail;
+			Node next = t.n;
+			
+			if (t == stub)
 			{
-				Dispatchable d;
-				Semaphore ns;
-				Runnable onDestroy;
-				
-				while ((d = _remove()) != null)
+				if (next == null)
 				{
-					ns = d.s;
-					onDestroy = d.onDestroy;
-					d.dispose();
-					try
-					{
-					    if (onDestroy != null)
-					    {
-					        onDestroy.run();
-					    }
-					}
-					finally {
-    					if (releaseLocks && ns != null)
-    					{
-    						ns.release();
-    					}
-					}
+					return null;
 				}
+				tail = next;
+				t = next;
+				next = t.n;
 			}
-			finally
+			if (next == null)
 			{
-				s.release();
+				if (t != head.get())
+				{
+					// a producer swapped itself in but has yet to link
+					return null;
+				}
+				// t is the last node, the stub goes behind it
+				add(stub);
+				next = t.n;
+				if (next == null)
+				{
+					return null;
+				}
 			}
+			tail = next;
+			
+			return t;
+		}
+		
+		public boolean isEmpty()
+		{
+			return tail == stub && head.get() == stub;
 		}
 	}
 	
 	private Semaphore pauseAccess = new Semaphore(1, true);
-	private Semaphore listLock = new Semaphore(1, true);
-	private Semaphore curTaskLock = new Semaphore(1,true);
-	private Semaphore sleepLock = new Semaphore(0,true);
 	private Semaphore pauseLock = new Semaphore(0,true);
-	private volatile LinkedList queue = new LinkedList();
-	private volatile LinkedList inQueue = new LinkedList();
-	private HashMap<T,Dispatchable> mapSet = new HashMap<T, Dispatchable>();
-	private HashMap<T,Dispatchable> inMapSet = new HashMap<T, Dispatchable>();
+	private final IntakeQueue queue = new IntakeQueue();
+	private final IntakeQueue immediateQueue = new IntakeQueue();
+	private final ConcurrentHashMap<T,Dispatchable> mapSet = new ConcurrentHashMap<T, Dispatchable>();
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
 	private HashMap<T,Boolean> immediateSet = new HashMap<T, Boolean>();
 	private HashMap<T,Boolean> mutableSet = new HashMap<T, Boolean>();
-	private volatile Dispatchable curTask = null;
+	private volatile boolean sleeping = false;
 	private volatile boolean disposed = false;
+	private volatile Boolean disposeReleaseLocks = null;
 	private volatile boolean paused = false;
-	private Dispatchable dummyTask = new Dispatchable();
+	
+	// exactly one of these
+	private final Thread thread;
+	private final Executor executor;
+	
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean terminated = new AtomicBoolean(false);
+	private final Semaphore terminatedSema = new Semaphore(0, true);
 	
 	public TaskDispatcher()
 	{
-        init();
+        this(null, null);
     }
-    
+	
 	public TaskDispatcher(String name)
 	{
-        super(name);
-        init();
+        this(name, null);
     }
 	
-	private void init()
+	/**
+	 * @param name of the dispatcher's own thread
+	 * @param executor to run as a strand on instead, null for a thread of its own
+	 */
+	public TaskDispatcher(String name, Executor executor)
 	{
-	    start();
+	    this.executor = executor;
+	    if (executor == null)
+	    {
+	        thread = (name == null) ? new Thread(this) : new Thread(this, name);
+	        thread.start();
+	    }
+	    else
+	    {
+	        thread = null;
+	    }
+	}
+	
+	/**
+	 * Waits for the dispatcher to stop once disposed.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException
+	{
+	    if (thread != null)
+	    {
+	        thread.join();
+	    }
+	    else
+	    {
+	        terminatedSema.acquire();
+	        terminatedSema.release();
+	    }
 	}
     
     public void pause()
@@ -347,27 +336,12 @@ public class TaskDispatcher<T> extends Thread
         finally {
             pauseAccess.release();
         }
+        wakeUp();
     }
 	
 	public boolean queueContains(T k)
 	{
-	    try
-        {
-            listLock.acquire();
-        }
-        catch (InterruptedException e)
-        {
-            dispose(e);
-        }
-	    try
-	    {
-	        boolean rval = (mapSet.get(k) != null || inMapSet.get(k) != null);
-	        
-	        return rval;
-	    }
-	    finally {
-	        listLock.release();
-	    }
+	    return mapSet.containsKey(k);
 	}
 	
 	public Boolean isMutable(T k)
@@ -434,394 +408,382 @@ public class TaskDispatcher<T> extends Thread
 		}
 	}
 	
-	private void _consumeInQueue()
+	private Node nextDispatchable()
 	{
-		Dispatchable d;
+		Node d = immediateQueue.remove();
 		
-		inMapSet.clear();
+		if (d == null)
+		{
+			d = queue.remove();
+		}
 		
-		try
+		return d;
+	}
+	
+	private void wakeUp()
+	{
+		if (thread == null)
 		{
-			while ((d = inQueue.remove()) != null)
-			{
-				_dispatch(d);
-			}
+			schedule();
 		}
-		catch (InterruptedException e)
+		else if (sleeping)
 		{
-			dispose(e);
+			LockSupport.unpark(thread);
 		}
 	}
 	
-	private boolean consumeInQueue()
+	private void schedule()
 	{
-		boolean rval;
-		try
+		if (scheduled.compareAndSet(false, true))
 		{
-			rval = (inQueue.size() > 0);
-		}
-		catch (InterruptedException e)
-		{
-			dispose(e);
-			return false;
+			executor.execute(strand);
 		}
+	}
+	
+	private final Runnable strand = new Runnable()
+	{
 		
-		if (rval)
+		@Override
+		public void run()
 		{
+			Node d;
+			int budget = STRAND_BUDGET;
+			
 			try
 			{
-				listLock.acquire();
-				try
+				while (budget > 0 && !disposed && !paused && (d = nextDispatchable()) != null)
 				{
-					_consumeInQueue();
+					if (d.take(TaskDispatcher.this))
+					{
+						budget--;
+					}
 				}
-				finally
+			}
+			finally {
+				scheduled.set(false);
+				if (disposed)
+				{
+					terminate();
+				}
+				else if (!paused && !(immediateQueue.isEmpty() && queue.isEmpty()))
 				{
-					listLock.release();
+					// yield the worker to other strands, then carry on
+					schedule();
 				}
 			}
-			catch (InterruptedException e)
+		}
+		
+	};
+	
+	private void terminate()
+	{
+		if (terminated.compareAndSet(false, true))
+		{
+			try
 			{
-				dispose(e);
+				// whatever was dispatched while disposing
+				clear(disposeReleaseLocks);
+				dropQueued();
+			}
+			finally {
+				terminatedSema.release();
 			}
 		}
+	}
+	
+	/**
+	 * The pooled tasks still pending are only reachable through the queues,
+	 * which the consumer alone may walk.
+	 */
+	private void dropQueued()
+	{
+		Node d;
 		
-		return rval;
+		while ((d = nextDispatchable()) != null)
+		{
+			d.drop(this);
+		}
 	}
 	
-	public void run()
+	/**
+	 * @param d
+	 * @return true iff. a task was run, false for a spent entry
+	 */
+	private boolean runDispatchable(Dispatchable d)
 	{
-		boolean isNullTask = true;
-		boolean needsRelease;
-		do
+		Task t;
+		
+		mapSet.remove(d.k, d);
+		t = d.task.getAndSet(null);
+		if (t == null)
+		{
+			// replaced by an immutable key or cancelled
+			return false;
+		}
+		pendingCount.decrementAndGet();
+		try
 		{
-		    needsRelease = true;
-		    try
-            {
-                pauseAccess.acquire();
-            }
-            catch (InterruptedException e)
-            {
-                dispose(e);
-                break;
-            }
-		    try
-		    {
-    			if (paused)
-    			{
-    				pauseLock.drainPermits();
-    				try
-    				{
-    				    needsRelease = false;
-    				    pauseAccess.release();
-    					pauseLock.acquire();
-    				}
-    				catch (InterruptedException e)
-    				{
-    					paused = false;
-    					dispose(e);
-    				}
-    			}
-		    }
-		    finally {
-		        if (needsRelease)
-		        {
-		            pauseAccess.release();
-		        }
-		    }
-			if (disposed)
-			{
-				break;
-			}
-			consumeInQueue();
 			try
 			{
-				if (disposed)
-				{
-					break;
-				}
 				try
 				{
-					curTaskLock.acquire();
-				}
-				catch (InterruptedException e)
-				{
-					dispose(e);
-					break;
-				}
-				needsRelease = true;
-				try
-				{
-					curTask = queue.remove();
-					if (curTask == null)
-					{
-					    curTaskLock.release();
-					    needsRelease = false;
-					    if (consumeInQueue())
-					    {
-					        try
-	                        {
-	                            curTaskLock.acquire();
-	                        }
-	                        catch (InterruptedException e)
-	                        {
-	                            dispose(e);
-	                        }
-	                        needsRelease = true;
-					        curTask = queue.remove();
-					    }
-					}
-					isNullTask = (curTask == null || curTask == dummyTask);
+				    t.r.run();
 				}
 				finally {
-				    if (needsRelease)
+				    if (t.onDestroy != null)
 				    {
-				        curTaskLock.release();
+				        t.onDestroy.run();
 				    }
 				}
-				if (isNullTask)
+			}
+			finally {
+				if (t.s != null)
 				{
-					sleepLock.acquire();
-					if (disposed)
-	                {
-	                    break;
-	                }
+					t.s.release();
 				}
-				else
+			}
+		}
+		catch (Exception e)
+		{
+			LLog.e(e, false);
+		}
+		catch (Throwable e)
+		{
+			LLog.e(e, false);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * The dispatcher's own thread
+	 */
+	public void run()
+	{
+		Node d;
+		boolean needsRelease;
+		
+		try
+		{
+			do
+			{
+			    needsRelease = true;
+			    try
+	            {
+	                pauseAccess.acquire();
+	            }
+	            catch (InterruptedException e)
+	            {
+	                dispose(e);
+	                break;
+	            }
+			    try
+			    {
+	    			if (paused)
+	    			{
+	    				pauseLock.drainPermits();
+	    				try
+	    				{
+	    				    needsRelease = false;
+	    				    pauseAccess.release();
+	    					pauseLock.acquire();
+	    				}
+	    				catch (InterruptedException e)
+	    				{
+	    					paused = false;
+	    					dispose(e);
+	    				}
+	    			}
+			    }
+			    finally {
+			        if (needsRelease)
+			        {
+			            pauseAccess.release();
+			        }
+			    }
+				if (disposed)
+				{
+					break;
+				}
+				d = nextDispatchable();
+				if (d == null)
 				{
-					mapSet.remove(curTask.k);
+					// publish intent to sleep before the final look so a
+					// producer either sees it and unparks or is seen here
+					sleeping = true;
 					try
 					{
-						Semaphore s = curTask.s;
-						try
+						if (immediateQueue.isEmpty() && queue.isEmpty() && !disposed && !paused)
 						{
-							Runnable r = curTask.r;
-							Runnable d = curTask.onDestroy;
-							curTask.s = null;
-							curTask.r = null;
-							curTask.onDestroy = null;
-							try
-							{
-							    r.run();
-							}
-							finally {
-							    if (d != null)
-							    {
-							        d.run();
-							    }
-							}
-						}
-						finally {
-							if (s != null)
-							{
-								s.release();
-							}
+							LockSupport.park(this);
 						}
 					}
-					catch (Exception e)
-					{
-						LLog.e(e, false);
+					finally {
+						sleeping = false;
 					}
-					catch (Throwable t)
+					if (Thread.interrupted())
 					{
-						LLog.e(t, false);
+						dispose(new InterruptedException());
+						break;
 					}
+					continue;
 				}
+				d.take(this);
 			}
-			catch (InterruptedException e)
-			{
-				dispose(e);
-			}
+			while(true);
+		}
+		finally {
+			terminate();
 		}
-		while(true);
 	}
 	
-	private void updateNode(Dispatchable d, Runnable r, Runnable onDestroy, Semaphore s)
+	private void destroy(Task t, boolean releaseLocks)
 	{
-		Runnable od = d.onDestroy;
-		Semaphore os = d.s;
-		d.s = s;
-		d.r = r;
-		d.onDestroy = onDestroy;
-		if (od != null)
+		try
 		{
-    		try
-    		{
-    		    od.run();
-    		}
-    		catch (Exception e)
-            {
-                LLog.e(e, false);
-            }
-            catch (Throwable t)
-            {
-                LLog.e(t, false);
-            }
+			if (t.onDestroy != null)
+			{
+				t.onDestroy.run();
+			}
 		}
-		if (os != null)
-		{
-			os.release();
+		catch (Exception e)
+        {
+            LLog.e(e, false);
+        }
+        catch (Throwable e)
+        {
+            LLog.e(e, false);
+        }
+		finally {
+			if (releaseLocks && t.s != null)
+			{
+				t.s.release();
+			}
 		}
 	}
 	
-	private void _dispatch(LinkedList q, HashMap<T,Dispatchable> m, T k, Runnable r, Runnable onDestroy, Semaphore s)
+	private void enqueue(Dispatchable d)
 	{
-		Dispatchable d = m.get(k);
-		if (d != null)
+		pendingCount.incrementAndGet();
+		if (isImmediate(d.k))
 		{
-			if (isMutable(k))
-			{
-				updateNode(d, r, onDestroy, s);
-			}
-			else
-			{
-			    try
-			    {
-    			    if (d.onDestroy != null)
-    			    {
-    			        d.onDestroy.run();
-    			    }
-			    }
-			    finally {
-    				try
-    				{
-    					q.remove(d.n);
-    				}
-    				catch (InterruptedException e)
-    				{
-    					dispose(e);
-    					return;
-    				}
-    				updateNode(d, r, onDestroy, s);
-    				try
-    				{
-    					d.n = q.add(d);
-    				}
-    				catch (InterruptedException e)
-    				{
-    					dispose(e);
-    					d.n = null;
-    					return;
-    				}
-			    }
-			}
+			immediateQueue.add(d);
 		}
 		else
 		{
-			d = new Dispatchable();
-			d.k = k;
-			d.s = s;
-			d.r = r;
-			d.onDestroy = onDestroy;
-			try
+			queue.add(d);
+		}
+		wakeUp();
+	}
+	
+	private void _dispatch(T k, Task t)
+	{
+		Dispatchable d, nd;
+		Task old;
+		
+		do
+		{
+			d = mapSet.get(k);
+			if (d == null)
 			{
-				d.n = isImmediate(k) ? q.addFirst(d) : q.add(d);
+				nd = new Dispatchable(k, t);
+				if (mapSet.putIfAbsent(k, nd) == null)
+				{
+					enqueue(nd);
+					return;
+				}
+				continue;
 			}
-			catch (InterruptedException e)
+			old = d.task.get();
+			if (old == null)
 			{
-				dispose(e);
-				d.n = null;
-				return;
+				// taken by the dispatcher or cancelled, no longer pending
+				mapSet.remove(k, d);
+				continue;
 			}
-			m.put(k, d);
-			if (q == inQueue)
+			if (isMutable(k))
 			{
-				try
+				if (d.task.compareAndSet(old, t))
 				{
-					curTaskLock.acquire();
-				}
-				catch (InterruptedException e)
-				{
-					dispose(e);
+					destroy(old, true);
 					return;
 				}
-				try
-				{
-					if (curTask == null)
-					{
-						// wake up the dispatcher in 1-1 manner
-						// dispatcher will auto consume the inqueue
-						curTask = dummyTask;
-						sleepLock.release();
-					}
-				}
-				finally
+			}
+			else if (d.task.compareAndSet(old, null))
+			{
+				pendingCount.decrementAndGet();
+				destroy(old, true);
+				nd = new Dispatchable(k, t);
+				if (mapSet.replace(k, d, nd))
 				{
-					curTaskLock.release();
+					enqueue(nd);
+					return;
 				}
+				mapSet.remove(k, d);
 			}
-		}
-	}
-	
-	private void _dispatch(T k, Runnable r, Runnable onDestroy, Semaphore s)
-	{
-		_dispatch(inQueue, inMapSet, k, r, onDestroy, s);
-	}
-	
-	private void _dispatch(Dispatchable d)
-	{
-		d.n = null;
-		_dispatch(queue, mapSet, d.k, d.r, d.onDestroy, d.s);
+		} while (true);
 	}
 	
 	/**
 	 * Not very useful unless attempting to do something unique
 	 * in a dispatched task when the dispatcher could be about to go idle
 	 * (E.G. if each task is guaranteed to write to a socket and empty, then flush)
-	 * 
+	 *
 	 * @return
 	 */
 	public boolean isEmpty()
 	{
-	    return (queue.size == 0 && inQueue.size == 0);
+	    return pendingCount.get() <= 0;
 	}
 	
 	public void dispatch(T k, Runnable r, Runnable onDestroy, Semaphore semaphore)
 	{
-		try
+		Task t = new Task(r, onDestroy, semaphore);
+		
+		if (disposed)
 		{
-			listLock.acquire();
-			try
-			{
-			    if (disposed)
-			    {
-			        Semaphore t_semaphore = semaphore;
-			        semaphore = null;
-			        try
-			        {
-    			        if (onDestroy != null)
-    			        {
-    			            Runnable t_onDestroy = onDestroy;
-    			            onDestroy = null;
-    			            t_onDestroy.run();
-    			        }
-			        }
-			        finally {
-			            if (t_semaphore != null)
-                        {
-			                t_semaphore.release();
-                        }
-			        }
-			    }
-			    else
-			    {
-			        _dispatch(k, r, onDestroy, semaphore);
-			    }
-			}
-			finally {
-				listLock.release();
-			}
+			destroy(t, true);
+			return;
 		}
-		catch(InterruptedException e)
+		
+		_dispatch(k, t);
+		
+		if (disposed)
 		{
-			if (onDestroy != null)
-			{
-			    onDestroy.run();
-			}
-			LLog.e(e);
+			// raced with dispose, the dispatcher may already be gone
+			cancel(k);
 		}
 	}
 	
+	/**
+	 * cancel(T...) for a single key, without the generic array
+	 *
+	 * @param k
+	 */
+	public void cancel(T k) {
+		Dispatchable d;
+		Task t;
+
+		d = mapSet.remove(k);
+		if (d == null || (t = d.task.getAndSet(null)) == null) {
+			return;
+		}
+		pendingCount.decrementAndGet();
+		try {
+			if (t.onDestroy != null) {
+				t.onDestroy.run();
+			}
+		}
+		catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if (t.s != null) {
+				t.s.release();
+			}
+		}
+	}
+
 	// Uncomment if on java v1.7
     //@SafeVarargs
 	public void cancel(T... ks) {
@@ -836,8 +798,8 @@ public class TaskDispatcher<T> extends Thread
 	    int size;
 	    Throwable topE = null;
 		Dispatchable d;
-		Semaphore s;
-		ArrayList<Dispatchable> destroyables;
+		Task t;
+		ArrayList<Task> destroyables;
 		
 		if (ks == null || ks.length == 0) {
 			return;
@@ -846,77 +808,26 @@ public class TaskDispatcher<T> extends Thread
 	    {
 	        releaseLocks = Boolean.TRUE;
 	    }
-	    destroyables = new ArrayList<Dispatchable>();
+	    destroyables = new ArrayList<Task>();
 		
-		try {
-			listLock.acquire();
-		} catch (InterruptedException e) {
-			dispose(e);
-			return;
-		}
-		try
-		{
-			try {
-				curTaskLock.acquire();
-			} catch (InterruptedException e) {
-				dispose(e);
-				return;
-			}
-			try {
-				for (T k : ks) {
-					d = mapSet.remove(k);
-					if (d != null) {
-						try {
-							queue.remove(d.n);
-						} catch (InterruptedException e) {
-							dispose(e);
-							break;
-						}
-						if (d.onDestroy != null) {
-							destroyables.add(d);
-						}
-						else {
-							if (releaseLocks && (s = d.s) != null) {
-								s.release();
-							}
-							d.dispose();
-						}
-					}
-					d = inMapSet.remove(k);
-					if (d != null) {
-						try {
-							inQueue.remove(d.n);
-						} catch (InterruptedException e) {
-							dispose(e);
-							break;
-						}
-						if (d.onDestroy != null) {
-							destroyables.add(d);
-						}
-						else {
-							if (releaseLocks && (s = d.s) != null) {
-								s.release();
-							}
-							d.dispose();
-						}
-					}
+		for (T k : ks) {
+			d = mapSet.remove(k);
+			if (d != null && (t = d.task.getAndSet(null)) != null) {
+				pendingCount.decrementAndGet();
+				if (t.onDestroy != null) {
+					destroyables.add(t);
+				}
+				else if (releaseLocks && t.s != null) {
+					t.s.release();
 				}
-				d = null;
-				s = null;
-			}
-			finally {
-				curTaskLock.release();
 			}
 		}
-		finally {
-			listLock.release();
-		}
 		idx = 0;
 		size = destroyables.size();
 		while (idx < size) {
+			t = destroyables.get(idx);
 			try {
-				d = destroyables.get(idx);
-				d.onDestroy.run();
+				t.onDestroy.run();
 			}
 			catch (Exception e) {
 				if (topE == null) {
@@ -926,30 +837,71 @@ public class TaskDispatcher<T> extends Thread
 					LLog.e(e, false);
 				}
 			}
-			catch (Throwable t) {
+			catch (Throwable e) {
 				if (topE == null) {
-					topE = t;
+					topE = e;
 				}
 				else {
-					LLog.e(t, false);
+					LLog.e(e, false);
 				}
 			}
 			finally {
 				destroyables.set(idx, null);
-				if (releaseLocks && (s = d.s) != null) {
-					s.release();
-					s = null;
+				if (releaseLocks && t.s != null) {
+					t.s.release();
 				}
-				d.dispose();
 			}
 			idx++;
 		}
-		d = null;
 		if (topE != null) {
 			throw new RuntimeException(topE);
 		}
 	}
-	
+
+	/**
+	 * Queues t unless it is pending already, allocating nothing.
+	 *
+	 * @param t
+	 * @return true iff. t was not pending, in which case it is either run
+	 *         or destroyed exactly once from here on
+	 */
+	public boolean dispatch(PooledTask t)
+	{
+		if (!t.pending.compareAndSet(false, true))
+		{
+			return false;
+		}
+		pendingCount.incrementAndGet();
+		if (t.queued.compareAndSet(false, true))
+		{
+			// otherwise still linked, the consumer has yet to take it
+			queue.add(t);
+		}
+		wakeUp();
+
+		if (disposed)
+		{
+			// raced with dispose, the dispatcher may already be gone
+			cancel(t);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Destroys t if it is pending, its node is skipped once taken.
+	 *
+	 * @param t
+	 */
+	public void cancel(PooledTask t)
+	{
+		if (t.pending.compareAndSet(true, false))
+		{
+			pendingCount.decrementAndGet();
+			t.destroy();
+		}
+	}
+
 	public void dispatch(T k, Runnable r, Runnable onDestroy)
 	{
 	    dispatch(k, r, onDestroy, null);
@@ -981,6 +933,7 @@ public class TaskDispatcher<T> extends Thread
 					warnAsync = true;
 					return;
 				}
+				disposeReleaseLocks = releaseLocks;
 				disposed = true;
 			}
 		}
@@ -1003,7 +956,7 @@ public class TaskDispatcher<T> extends Thread
         		}
 		    }
 		    finally {
-		        sleepLock.release();
+		        wakeUp();
 		    }
 		}
 	}
@@ -1023,80 +976,35 @@ public class TaskDispatcher<T> extends Thread
 	    clear(null);
 	}
 	
+	/**
+	 * Tasks already handed to the dispatcher thread still run,
+	 * the queues are left holding only spent entries it skips.
+	 * A PooledTask is left to its owner to cancel until disposed.
+	 */
 	public void clear(Boolean releaseLocks)
 	{
-		boolean doUnpause = !paused;
-		pause();
-		try
-		{
-    		try
-    		{
-    			listLock.acquire();
-    		}
-    		catch (InterruptedException e)
-    		{
-    			dispose(e);
-    			return;
-    		}
-    		try
-    		{
-    		    inMapSet.clear();
-    		    inQueue.clear(releaseLocks);
-    		}
-    		catch (InterruptedException e)
-    		{
-    			dispose(e);
-    			return;
-    		}
-    		finally
-    		{
-    			listLock.release();
-    		}
-		}
-		finally {
-    		try
-    		{
-    			curTaskLock.acquire();
-    		}
-    		catch (InterruptedException e)
-    		{
-    			dispose(e);
-    			return;
-    		}
-    		try
-    		{
-    			mapSet.clear();
-    			queue.clear(releaseLocks);
-    		}
-    		catch (InterruptedException e)
-    		{
-    			dispose(e);
-    			return;
-    		}
-    		finally
-    		{
-    			curTaskLock.release();
-    		}
-		}
+		Dispatchable d;
+		Task t;
+		
+		if (releaseLocks == null)
+	    {
+	        releaseLocks = Boolean.TRUE;
+	    }
 		
-		if (doUnpause)
+		for (Map.Entry<T,Dispatchable> entry : mapSet.entrySet())
 		{
-			try
-            {
-                _unpause();
-            }
-            catch (InterruptedException e)
-            {
-                paused = false;
-                try
-                {
-                    dispose(e);
-                }
-                finally {
-                    nts_unpause();
-                }
-            }
+			d = entry.getValue();
+			if (!mapSet.remove(entry.getKey(), d))
+			{
+				continue;
+			}
+			t = d.task.getAndSet(null);
+			if (t != null)
+			{
+				pendingCount.decrementAndGet();
+				destroy(t, releaseLocks);
+			}
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -38,6 +38,12 @@ public class Client
         REMOTE_PORT(1987),
         REMOTE_DISPLAY_NUM(null),
         SYNCHRONIZE_CLIPBOARD(Boolean.FALSE),
+        SERVER_PUSH(Boolean.FALSE),
+        FRAME_REQUEST_WINDOW(1),
+        INTERACTIVE_CHANNEL(Boolean.FALSE),
+        ACCELERATED_RENDERING(Boolean.FALSE),
+        DECODER_THREADS(0),
+        MAX_FPS(30),
         MONITOR_SCANNING_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime)))
         
         ;
@@ -58,12 +64,18 @@ public class Client
                     assert_(obj instanceof String);
                     break;
                 case REMOTE_PORT:
+                case FRAME_REQUEST_WINDOW:
+                case DECODER_THREADS:
+                case MAX_FPS:
                     assert_(obj instanceof Integer);
                     break;
                 case REMOTE_DISPLAY_NUM:
                     assert_(obj == null || obj instanceof Integer);
                     break;
                 case SYNCHRONIZE_CLIPBOARD:
+                case SERVER_PUSH:
+                case INTERACTIVE_CHANNEL:
+                case ACCELERATED_RENDERING:
                     assert_(obj instanceof Boolean);
                     break;
                 case MONITOR_SCANNING_PERIOD:
@@ -96,7 +108,25 @@ public class Client
                         value = Integer.parseInt((String) value);
                     }
                     break;
+                case FRAME_REQUEST_WINDOW:
+                    if (value instanceof String)
+                    {
+                        value = Integer.parseInt((String) value);
+                    }
+                    value = Math.max(1, (Integer) value);
+                    break;
+                case DECODER_THREADS:
+                case MAX_FPS:
+                    if (value instanceof String)
+                    {
+                        value = Integer.parseInt((String) value);
+                    }
+                    value = Math.max(0, (Integer) value);
+                    break;
                 case SYNCHRONIZE_CLIPBOARD:
+                case SERVER_PUSH:
+                case INTERACTIVE_CHANNEL:
+                case ACCELERATED_RENDERING:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
@@ -27,6 +27,8 @@ import com.jcope.debug.LLog;
 import com.jcope.util.CurrentProcessInfo;
 import com.jcope.util.TypeSafeEnumPropertyPattern;
 import com.jcope.vnc.server.VncServer;
+import com.jcope.vnc.server.relay.Upstream;
+import com.jcope.vnc.shared.HashFactory;
 
 /**
  * 
@@ -51,7 +53,17 @@ public class Server
         SERVER_BIND_ADDRESS_SPEC(null),
         SERVER_BIND_ADDRESS_MASK(null),
         MIN_MONITOR_SCANNING_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime))),
-        OBEY_SPEED_LIMITS(Boolean.TRUE)
+        OBEY_SPEED_LIMITS(Boolean.TRUE),
+        MAX_BYTES_IN_FLIGHT(Integer.valueOf(2 * 1024 * 1024)),
+        MAX_QUEUED_BYTES(Integer.valueOf(8 * 1024 * 1024)),
+        STATS_LOG_PERIOD(null),
+        SESSION_RETENTION(null),
+        BROADCAST_RING_SIZE(0),
+        WORKER_THREADS(0),
+        RELAY_UPSTREAM_ADDRESS(null),
+        RELAY_UPSTREAM_PORT(1987),
+        RELAY_UPSTREAM_DISPLAY_NUM(0),
+        RELAY_UPSTREAM_PASSWORD(null)
         
         ;
         
@@ -73,10 +85,18 @@ public class Server
                     break;
                 case SERVER_BIND_ADDRESS:
                 case SERVER_SECURITY_POLICY:
+                case RELAY_UPSTREAM_ADDRESS:
+                case RELAY_UPSTREAM_PASSWORD:
                     assert_(obj instanceof String);
                     break;
                 case SERVER_LISTEN_BACKLOG:
                 case SERVER_PORT:
+                case MAX_BYTES_IN_FLIGHT:
+                case MAX_QUEUED_BYTES:
+                case RELAY_UPSTREAM_PORT:
+                case RELAY_UPSTREAM_DISPLAY_NUM:
+                case BROADCAST_RING_SIZE:
+                case WORKER_THREADS:
                     assert_(obj instanceof Integer);
                     break;
                 case OBEY_SPEED_LIMITS:
@@ -84,6 +104,8 @@ public class Server
                     assert_(obj instanceof Boolean);
                     break;
                 case MIN_MONITOR_SCANNING_PERIOD:
+                case STATS_LOG_PERIOD:
+                case SESSION_RETENTION:
                     assert_(obj instanceof Long);
                     break;
             }
@@ -112,9 +134,17 @@ public class Server
                     break;
                 case SERVER_BIND_ADDRESS:
                 case SERVER_SECURITY_POLICY:
+                case RELAY_UPSTREAM_ADDRESS:
+                case RELAY_UPSTREAM_PASSWORD:
                     break;
                 case SERVER_LISTEN_BACKLOG:
                 case SERVER_PORT:
+                case MAX_BYTES_IN_FLIGHT:
+                case MAX_QUEUED_BYTES:
+                case RELAY_UPSTREAM_PORT:
+                case RELAY_UPSTREAM_DISPLAY_NUM:
+                case BROADCAST_RING_SIZE:
+                case WORKER_THREADS:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
@@ -132,6 +162,8 @@ public class Server
                     }
                     break;
                 case MIN_MONITOR_SCANNING_PERIOD:
+                case STATS_LOG_PERIOD:
+                case SESSION_RETENTION:
                     value = Long.valueOf(mustParseISO8601DurationRP((String) value, startTime));
                     break;
             }
@@ -233,6 +265,24 @@ public class Server
                 LLog.e(new RuntimeException("SERVER_BIND_ADDRESS_SPEC property and SERVER_BIND_ADDRESS_MASK property are not configured for the same network"));
             }
             
+            String relayAddress = (String) SERVER_PROPERTIES.RELAY_UPSTREAM_ADDRESS.getValue();
+            if (relayAddress != null)
+            {
+                // relay mode, the only screen served is the one received from upstream
+                String relayPassword = (String) SERVER_PROPERTIES.RELAY_UPSTREAM_PASSWORD.getValue();
+                Upstream upstream = new Upstream(
+                    relayAddress,
+                    (Integer) SERVER_PROPERTIES.RELAY_UPSTREAM_PORT.getValue(),
+                    (Integer) SERVER_PROPERTIES.RELAY_UPSTREAM_DISPLAY_NUM.getValue(),
+                    (relayPassword == null || relayPassword.length() == 0) ? null : HashFactory.hash(relayPassword.toCharArray()),
+                    (Long) SERVER_PROPERTIES.MIN_MONITOR_SCANNING_PERIOD.getValue()
+                );
+                upstream.start();
+                System.out.println(String.format("Waiting for the first frame from upstream: %s", relayAddress));
+                upstream.awaitFirstFrame();
+                System.out.println(String.format("Relaying screen: %s", upstream.getScreenSource().getDevice().getIDstring()));
+            }
+            
             VncServer vncServer = new VncServer(serverPort, listenBacklog, serverBindAddress, bNSpec, bNMask);
             
             System.out.println("VNCServer is running!");
@@ -248,6 +298,12 @@ public class Server
 	            
 	            prop = SERVER_PROPERTIES.SUPPORT_CLIPBOARD_SYNCHRONIZATION;
 	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
+	            
+	            prop = SERVER_PROPERTIES.MAX_BYTES_IN_FLIGHT;
+	            System.out.println(String.format("%s=%d (bytes)", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MAX_QUEUED_BYTES;
+	            System.out.println(String.format("%s=%d (bytes)", prop.name(), prop.getValue()));
             }
             
             vncServer.run();
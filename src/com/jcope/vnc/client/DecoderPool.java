@@ -0,0 +1,76 @@
+package com.jcope.vnc.client;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcope.vnc.Client.CLIENT_PROPERTIES;
+
+/**
+ *
+ * The DECODER_THREADS threads frames off the server connection are
+ * inflated and deserialized on while the socket keeps being read.
+ *
+ * Decoding is pure CPU work, the reader and the thread applying frames
+ * are busy too, so by default the pool gets the CPUs they leave spare.
+ *
+ */
+
+public class DecoderPool
+{
+    private static volatile Executor executor = null;
+
+    public static Executor getExecutor()
+    {
+        Executor rval = executor;
+
+        if (rval == null)
+        {
+            synchronized(DecoderPool.class)
+            {
+                rval = executor;
+                if (rval == null)
+                {
+                    rval = newExecutor();
+                    executor = rval;
+                }
+            }
+        }
+
+        return rval;
+    }
+
+    /**
+     * @return the number of threads the pool runs
+     */
+    public static int getSize()
+    {
+        Integer size = (Integer) CLIENT_PROPERTIES.DECODER_THREADS.getValue();
+
+        return (size == null || size <= 0) ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : size;
+    }
+
+    private static Executor newExecutor()
+    {
+        int nThreads = getSize();
+        ThreadFactory threadFactory = new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread rval = new Thread(r, String.format("Decoder %d", count.incrementAndGet()));
+                rval.setDaemon(true);
+
+                return rval;
+            }
+
+        };
+
+        return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+}
@@ -0,0 +1,104 @@
+package com.jcope.vnc.client;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jcope.ui.ImagePanel;
+import com.jcope.vnc.Client.CLIENT_PROPERTIES;
+
+/**
+ *
+ * Decides when received frames are flushed to the screen.
+ *
+ * Tiles are already in the image when END_OF_FRAME arrives, only painting
+ * them is left. At most one flush is pending at a time, and flushes are at
+ * least 1/MAX_FPS seconds apart. Frames arriving in between are skipped:
+ * their tiles stay queued in the ImagePanel and go out with the next flush.
+ *
+ */
+
+public class FramePacer
+{
+    private final StateMachine stateMachine;
+    private final long minPeriodMs;
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+    private final AtomicLong framesReceived = new AtomicLong(0L);
+    private final AtomicLong framesPresented = new AtomicLong(0L);
+    private volatile long lastFlushMs = 0L;
+    private Timer timer = null;
+
+    private final Runnable flushAction = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            // cleared first, a frame received while flushing schedules another
+            flushPending.set(false);
+            lastFlushMs = System.currentTimeMillis();
+            framesPresented.incrementAndGet();
+            ImagePanel imagePanel = stateMachine.getFrame().getImagePanel();
+            if (imagePanel != null)
+            {
+                imagePanel.flushFrameBuffer();
+            }
+        }
+
+    };
+
+    public FramePacer(StateMachine stateMachine)
+    {
+        Integer maxFps = (Integer) CLIENT_PROPERTIES.MAX_FPS.getValue();
+        this.stateMachine = stateMachine;
+        minPeriodMs = (maxFps == null || maxFps <= 0) ? 0L : (1000L / maxFps);
+    }
+
+    /**
+     * Call once END_OF_FRAME has been handled, from the reader thread.
+     */
+    public void frameReceived()
+    {
+        long delay;
+
+        framesReceived.incrementAndGet();
+        if (!flushPending.compareAndSet(false, true))
+        {
+            // the pending flush picks up this frame's tiles too
+            return;
+        }
+        delay = lastFlushMs + minPeriodMs - System.currentTimeMillis();
+        if (delay <= 0L)
+        {
+            stateMachine.scheduleGUIAction(flushAction);
+            return;
+        }
+        getTimer().schedule(new TimerTask() {
+
+            @Override
+            public void run()
+            {
+                stateMachine.scheduleGUIAction(flushAction);
+            }
+
+        }, delay);
+    }
+
+    private synchronized Timer getTimer()
+    {
+        if (timer == null)
+        {
+            timer = new Timer("Frame pacer", true);
+        }
+
+        return timer;
+    }
+
+    public String getStats()
+    {
+        long received = framesReceived.get();
+        long presented = framesPresented.get();
+
+        return String.format("frames received=%d presented=%d skipped=%d", received, presented, Math.max(0L, received - presented));
+    }
+}
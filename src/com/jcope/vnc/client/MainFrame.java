@@ -738,6 +738,7 @@ public class MainFrame extends JFrame
         if (this.imagePanel != null)
         {
             scrollPane.remove(this.imagePanel);
+            this.imagePanel.dispose();
         }
         this.imagePanel = imagePanel;
         onReconnect();
@@ -5,14 +5,14 @@ import static com.jcope.debug.Debug.assert_;
 import static com.jcope.ui.util.Style.positionThenShow;
 import static com.jcope.vnc.shared.InputEventInfo.MAX_QUEUE_SIZE;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.concurrent.Semaphore;
 
@@ -29,10 +29,12 @@ import com.jcope.vnc.client.dialogs.ConnectionDialog.InvalidConnectionConfigurat
 import com.jcope.vnc.client.input.Handler;
 import com.jcope.vnc.client.input.handle.ScreenSegmentChanged;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.FlowControl;
 import com.jcope.vnc.shared.IOERunnable;
 import com.jcope.vnc.shared.InputEvent;
 import com.jcope.vnc.shared.Msg;
 import com.jcope.vnc.shared.Msg.CompressedObjectReader;
+import com.jcope.vnc.shared.PipelinedObjectReader;
 import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
@@ -64,7 +66,22 @@ public class StateMachine implements Runnable
     private volatile FixedLengthBitSet changedSegments = null;
     public final Semaphore changedSegmentsSema = new Semaphore(1, true);
     
-    public final Semaphore processingFrameSema = new Semaphore(1, true);
+    // one permit per GET_SCREEN_SEGMENT request allowed in flight
+    private final int frameRequestWindow = (Integer) CLIENT_PROPERTIES.FRAME_REQUEST_WINDOW.getValue();
+    public final Semaphore processingFrameSema = new Semaphore(frameRequestWindow, true);
+    private volatile int requestsAnswered = 0;
+    private final FramePacer framePacer = new FramePacer(this);
+    
+    // optional second connection for interactive events, see openInteractiveChannel
+    private volatile SocketChannel interactiveChannel = null;
+    private volatile BufferedOutputStream interactiveOut = null;
+    
+    // presented with RESUME_SESSION on reconnect so only changed segments are resent
+    private volatile Long sessionToken = null;
+    private volatile int appliedFrameSerial = 0;
+    
+    // frames are pushed by the server, no GET_SCREEN_SEGMENT requests are issued
+    private volatile boolean pushMode = false;
     
     public StateMachine() throws UnknownHostException, IOException
 	{
@@ -126,9 +143,9 @@ public class StateMachine implements Runnable
 			wasConnected = Boolean.FALSE;
 			socket = null;
 			OutputStream os = null;
-			InputStream is = null;
 			out = null;
-			BufferedInputStream in = null;
+			SocketChannel channel = null;
+			PipelinedObjectReader reader = null;
 			do
 			{
     			try
@@ -144,17 +161,19 @@ public class StateMachine implements Runnable
         			        throw usrCancel;
         			    }
         			    
-        				socket = new Socket(   
+        				channel = SocketChannel.open(new InetSocketAddress(
         				    (String) CLIENT_PROPERTIES.REMOTE_ADDRESS.getValue(),
         				    (Integer) CLIENT_PROPERTIES.REMOTE_PORT.getValue()
-        				);
+        				));
+        				socket = channel.socket();
         				wasConnected = Boolean.TRUE;
+        				// Writes go through the socket stream, reads straight off the channel
         				os = socket.getOutputStream();
         				out = new BufferedOutputStream(os);
-        				is = socket.getInputStream();
-        				in = new BufferedInputStream(is);
         				
         				accessMode = connectionDialog.getAccessMode();
+        				pushMode = (Boolean) CLIENT_PROPERTIES.SERVER_PUSH.getValue();
+        				requestsAnswered = 0;
         				hashedPassword = connectionDialog.removePasswordHash();
     			    }
                     finally {
@@ -168,16 +187,30 @@ public class StateMachine implements Runnable
                         @Override
                         public void run()
                         {
+                            if (pushMode)
+                            {
+                                sendEvent(CLIENT_EVENT.ENABLE_SERVER_PUSH, Boolean.TRUE);
+                            }
+                            Long token = sessionToken;
+                            sessionToken = null;
+                            if (token != null)
+                            {
+                                sendEvent(CLIENT_EVENT.RESUME_SESSION, token, Integer.valueOf(appliedFrameSerial));
+                            }
                             int selectedScreen = (Integer) CLIENT_PROPERTIES.REMOTE_DISPLAY_NUM.getValue();
                             sendEvent(CLIENT_EVENT.SELECT_SCREEN, selectedScreen, accessMode, CLIENT_PROPERTIES.MONITOR_SCANNING_PERIOD.getValue(), hashedPassword);
                         }
     				    
     				});
     				
-    				CompressedObjectReader reader = new CompressedObjectReader();
+    				// frames are decoded on the decoder pool while this thread applies them in order
+    				reader = new PipelinedObjectReader(channel, DecoderPool.getExecutor(), 2 * DecoderPool.getSize());
+    				// tile pixels are decoded straight into the image from the reader's buffer
+    				reader.setIntArrayDetachThreshold(0);
     				Object obj;
+    				long bytesAcked = 0L, bytesConsumed;
                     
-    				while ((obj = reader.readObject(in)) != null)
+    				while ((obj = reader.readObject()) != null)
     				{
     				    try
     			        {
@@ -192,9 +225,17 @@ public class StateMachine implements Runnable
     			            handleServerEvent(obj);
     			        }
     			        finally {
-    			            obj = null;
     			            inputHandlingSema.release();
     			        }
+    			        // return credit to the server
+    			        bytesConsumed = reader.getBytesRead();
+    			        if (bytesConsumed - bytesAcked >= FlowControl.ACK_INTERVAL_BYTES
+    			                || (bytesConsumed > bytesAcked && obj == SERVER_EVENT.END_OF_FRAME))
+    			        {
+    			            bytesAcked = bytesConsumed;
+    			            sendEvent(CLIENT_EVENT.ACKNOWLEDGE_BYTES, Long.valueOf(bytesConsumed));
+    			        }
+    			        obj = null;
     				}
     				throw new IOException("Connection reset by peer");
     			}
@@ -213,8 +254,8 @@ public class StateMachine implements Runnable
                 finally {
     				if (out != null) {try{out.close();}catch(Exception e){}}
     				if (os  != null) {try{ os.close();}catch(Exception e){}}
-    				if (in  != null) {try{ in.close();}catch(Exception e){}}
-    				if (is  != null) {try{ is.close();}catch(Exception e){}}
+    				if (channel != null) {try{channel.close();}catch(Exception e){}}
+    				if (reader != null) {try{reader.release();}catch(Exception e){}}
     				disconnect();
     			}
 			} while (Boolean.FALSE);
@@ -252,22 +293,127 @@ public class StateMachine implements Runnable
 	}
 	
 	private void handleServerEvent(Object obj)
+	{
+	    handleServerEvent(obj, true);
+	}
+	
+	private void handleServerEvent(Object obj, boolean acknowledge)
 	{
 	    if (obj instanceof SERVER_EVENT)
 		{
-			_handleServerEvent((SERVER_EVENT) obj, null);
+			_handleServerEvent((SERVER_EVENT) obj, acknowledge, null);
 		}
 		else
 		{
 			Msg msg = (Msg) obj;
-			_handleServerEvent((SERVER_EVENT) msg.event, msg.args);
+			_handleServerEvent((SERVER_EVENT) msg.event, acknowledge, msg.args);
 		}
 	}
 
-	private void _handleServerEvent(SERVER_EVENT event, Object[] args)
+	private void _handleServerEvent(SERVER_EVENT event, boolean acknowledge, Object[] args)
 	{
         LLog.logEvent("Server", event, args);
-	    Handler.getInstance().handle(this, event, args);
+	    Handler.getInstance().handle(this, acknowledge, event, args);
+	}
+	
+	/**
+	 * Opens a second connection to the server and attaches it with the
+	 * token the server issued. Cursor updates and input requests arrive on
+	 * it and input is offered through it, so they do not wait behind frame
+	 * data. Events fall back to the primary connection if it fails.
+	 * 
+	 * @param token
+	 */
+	public void openInteractiveChannel(final long token)
+	{
+	    final Socket primary = socket;
+	    
+	    if (primary == null)
+	    {
+	        return;
+	    }
+	    
+	    Thread t = new Thread("Interactive channel") {
+	        
+	        @Override
+	        public void run()
+	        {
+	            SocketChannel channel = null;
+	            BufferedOutputStream l_out = null;
+	            CompressedObjectReader reader = null;
+	            Object obj;
+	            
+	            try
+	            {
+	                channel = SocketChannel.open(new InetSocketAddress(primary.getInetAddress(), primary.getPort()));
+	                channel.socket().setTcpNoDelay(true);
+	                l_out = new BufferedOutputStream(channel.socket().getOutputStream());
+	                closeInteractiveChannel();
+	                interactiveChannel = channel;
+	                interactiveOut = l_out;
+	                sendEvent(CLIENT_EVENT.ATTACH_INTERACTIVE_CHANNEL, Long.valueOf(token));
+	                
+	                reader = new CompressedObjectReader();
+	                while ((obj = reader.readObject(channel)) != null)
+	                {
+	                    try
+	                    {
+	                        inputHandlingSema.acquire();
+	                    }
+	                    catch (InterruptedException e)
+	                    {
+	                        LLog.e(e);
+	                    }
+	                    try
+	                    {
+	                        handleServerEvent(obj, false);
+	                    }
+	                    finally {
+	                        inputHandlingSema.release();
+	                    }
+	                    obj = null;
+	                }
+	            }
+	            catch (IOException e)
+	            {
+	                LLog.e(e, false);
+	            }
+	            finally {
+	                if (interactiveChannel == channel)
+	                {
+	                    closeInteractiveChannel();
+	                }
+	                else if (channel != null)
+	                {
+	                    try{channel.close();}catch(Exception e){}
+	                }
+	                if (reader != null) {try{reader.release();}catch(Exception e){}}
+	            }
+	        }
+	        
+	    };
+	    t.setDaemon(true);
+	    t.start();
+	}
+	
+	private void closeInteractiveChannel()
+	{
+	    SocketChannel channel = interactiveChannel;
+	    
+	    interactiveOut = null;
+	    interactiveChannel = null;
+	    
+	    if (channel != null)
+	    {
+	        try
+	        {
+	            channel.close();
+	        }
+	        catch (IOException e)
+	        {
+	            // Do Nothing
+	        }
+	    }
 	}
 	
 	public void sendEvent(CLIENT_EVENT event)
@@ -314,6 +460,29 @@ public class StateMachine implements Runnable
 				
 				@Override
 				public void run() throws IOException {
+					if (event == CLIENT_EVENT.OFFER_INPUT || event == CLIENT_EVENT.ATTACH_INTERACTIVE_CHANNEL)
+					{
+					    BufferedOutputStream l_out = interactiveOut;
+					    if (l_out != null)
+					    {
+    					    try
+    					    {
+    					        Msg.send(l_out, event, f_args);
+    					        l_out.flush();
+    					        return;
+    					    }
+    					    catch (IOException e)
+    					    {
+    					        LLog.e(e, false);
+    					        closeInteractiveChannel();
+    					    }
+					    }
+					    if (event == CLIENT_EVENT.ATTACH_INTERACTIVE_CHANNEL)
+					    {
+					        // only meaningful on the interactive channel itself
+					        return;
+					    }
+					}
 					Msg.send(out, event, f_args);
 				}
 			};
@@ -369,6 +538,7 @@ public class StateMachine implements Runnable
 	{
 	    try
 	    {
+	        closeInteractiveChannel();
             try {
                 ScreenSegmentChanged.segmentFetcher.clear();
             }
@@ -381,6 +551,7 @@ public class StateMachine implements Runnable
 	    	{
 	            if (socket != null)
 	            {
+	                LLog.i(framePacer.getStats());
 	                try
 	                {
 	                    socket.close();
@@ -402,7 +573,7 @@ public class StateMachine implements Runnable
 	    			imagePanel.repaintBuffers();
 	    		}
 	    		processingFrameSema.drainPermits();
-	    		processingFrameSema.release();
+	    		processingFrameSema.release(frameRequestWindow);
 	    	}
 	    }
 	}
@@ -547,6 +718,16 @@ public class StateMachine implements Runnable
         return iconifiedSema;
     }
     
+    public void setSessionToken(Long sessionToken)
+    {
+        this.sessionToken = sessionToken;
+    }
+    
+    public boolean isPushMode()
+    {
+        return pushMode;
+    }
+    
     public FixedLengthBitSet getChangedSegments()
     {
     	return changedSegments;
@@ -557,13 +738,31 @@ public class StateMachine implements Runnable
     	this.changedSegments = changedSegments;
     }
 
-    public void flushFrameBuffer()
+    /**
+     * Called from the reader thread, the frame's tiles are already in the
+     * image: frame requests are answered here and painting is left to the
+     * frame pacer, so a slow repaint does not hold back the next frame.
+     * 
+     * @param requestsAnswered running count of frame requests the server has
+     *                         answered, overlapping requests are answered together
+     * @param frameSerial identifies the applied frame when resuming the session
+     */
+    public void endOfFrame(int requestsAnswered, int frameSerial)
     {
         try {
-            frame.getImagePanel().flushFrameBuffer();
+            appliedFrameSerial = frameSerial;
+            framePacer.frameReceived();
         }
         finally {
-            processingFrameSema.release();
+            int permits = requestsAnswered - this.requestsAnswered;
+            if (permits > 0)
+            {
+                this.requestsAnswered = requestsAnswered;
+                if (!pushMode)
+                {
+                    processingFrameSema.release(permits);
+                }
+            }
         }
     }
     
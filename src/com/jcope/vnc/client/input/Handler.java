@@ -23,13 +23,16 @@ import com.jcope.vnc.client.input.handle.CursorGone;
 import com.jcope.vnc.client.input.handle.CursorMove;
 import com.jcope.vnc.client.input.handle.FailedAuthorization;
 import com.jcope.vnc.client.input.handle.GetClipboard;
+import com.jcope.vnc.client.input.handle.InteractiveChannelToken;
 import com.jcope.vnc.client.input.handle.NumScreensChanged;
+import com.jcope.vnc.client.input.handle.Ping;
 import com.jcope.vnc.client.input.handle.ReadInputEvents;
 import com.jcope.vnc.client.input.handle.ScreenGone;
 import com.jcope.vnc.client.input.handle.ScreenResized;
 import com.jcope.vnc.client.input.handle.ScreenSegmentChanged;
 import com.jcope.vnc.client.input.handle.ScreenSegmentSizeUpdate;
 import com.jcope.vnc.client.input.handle.ScreenSegmentUpdate;
+import com.jcope.vnc.client.input.handle.SessionToken;
 import com.jcope.vnc.client.input.handle.SetClipboard;
 import com.jcope.vnc.client.input.handle.EntireScreenUpdate;
 import com.jcope.vnc.client.input.handle.EndOfFrame;
@@ -62,6 +65,7 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<StateMachine, SE
         CursorMove.class,
         FailedAuthorization.class,
         GetClipboard.class,
+        InteractiveChannelToken.class,
         NumScreensChanged.class,
         ReadInputEvents.class,
         ScreenGone.class,
@@ -69,9 +73,11 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<StateMachine, SE
         ScreenSegmentChanged.class,
         ScreenSegmentSizeUpdate.class,
         ScreenSegmentUpdate.class,
+        SessionToken.class,
         SetClipboard.class,
         EntireScreenUpdate.class,
-        EndOfFrame.class
+        EndOfFrame.class,
+        Ping.class
     };
     
     static
@@ -190,12 +196,23 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<StateMachine, SE
 
     @Override
     public void handle(StateMachine stateMachine, SERVER_EVENT event, Object... args)
+    {
+        handle(stateMachine, true, event, args);
+    }
+    
+    /**
+     * @param acknowledge false for events read from the interactive channel,
+     *                    the server never waits on acknowledgements for those
+     */
+    public void handle(StateMachine stateMachine, boolean acknowledge, SERVER_EVENT event, Object... args)
     {
         Handle<StateMachine> handle = eventHandles.get(event);
-        if (!event.isSerial()
+        if (acknowledge
+            && !event.isSerial()
             && event != SERVER_EVENT.SCREEN_SEGMENT_UPDATE
             && event != SERVER_EVENT.SCREEN_SEGMENT_CHANGED // handle for this event performs send of NS response
             && event != SERVER_EVENT.READ_INPUT_EVENTS // this is an "immediate" hot event, it will not be throttled
+            && event != SERVER_EVENT.PING // handle for this event answers with PONG
             )
         {
             stateMachine.sendEvent(CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT, event);
@@ -3,8 +3,10 @@ package com.jcope.vnc.client.input.handle;
 import static com.jcope.debug.Debug.assert_;
 
 import com.jcope.ui.JCOptionPane;
+import com.jcope.vnc.Client.CLIENT_PROPERTIES;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.client.input.Handle;
+import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
 
 public class AuthorizationUpdate extends Handle
 {
@@ -23,6 +25,10 @@ public class AuthorizationUpdate extends Handle
             stateMachine.disconnect();
             JCOptionPane.showMessageDialog(stateMachine.getFrame(), "Incorrect password or selected display not an option", "Access Denied", JCOptionPane.ERROR_MESSAGE);
         }
+        else if ((Boolean) CLIENT_PROPERTIES.INTERACTIVE_CHANNEL.getValue())
+        {
+            stateMachine.sendEvent(CLIENT_EVENT.REQUEST_INTERACTIVE_CHANNEL);
+        }
     }
     
 }
@@ -11,16 +11,15 @@ public class EndOfFrame extends Handle
     @Override
     public void handle(final StateMachine stateMachine, Object[] args)
     {
-        assert_(args == null);
+        assert_(args != null);
+        assert_(args.length == 2);
+        assert_(args[0] instanceof Integer);
+        assert_(args[1] instanceof Integer);
         
-        stateMachine.scheduleGUIAction(new Runnable() {
-
-            @Override
-            public void run() {
-                stateMachine.flushFrameBuffer();
-            }
-            
-        });
+        int requestsAnswered = (Integer) args[0];
+        int frameSerial = (Integer) args[1];
+        
+        stateMachine.endOfFrame(requestsAnswered, frameSerial);
     }
     
 }
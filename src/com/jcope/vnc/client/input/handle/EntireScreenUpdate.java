@@ -3,6 +3,7 @@ package com.jcope.vnc.client.input.handle;
 import static com.jcope.debug.Debug.assert_;
 import static com.jcope.vnc.client.input.handle.ScreenSegmentUpdate.handleSetSegmentPixels;
 
+import com.jcope.util.PackedIntArray;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.shared.input.Handle;
 
@@ -18,9 +19,8 @@ public class EntireScreenUpdate extends Handle<StateMachine>
     {
         assert_(args != null);
         assert_(args.length == 1);
-        assert_(args[0] instanceof int[]);
+        assert_(args[0] instanceof int[] || args[0] instanceof PackedIntArray);
         
-        final int[] pixels = (int[]) args[0];
-        handleSetSegmentPixels(stateMachine, -1, pixels);
+        handleSetSegmentPixels(stateMachine, -1, args[0]);
     }
 }
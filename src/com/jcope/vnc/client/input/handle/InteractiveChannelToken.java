@@ -0,0 +1,23 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.client.input.Handle;
+
+public class InteractiveChannelToken extends Handle
+{
+    
+    @Override
+    public void handle(StateMachine stateMachine, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 1);
+        assert_(args[0] instanceof Long);
+        
+        long token = (Long) args[0];
+        
+        stateMachine.openInteractiveChannel(token);
+    }
+    
+}
@@ -0,0 +1,22 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.client.input.Handle;
+import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
+
+public class Ping extends Handle
+{
+    
+    @Override
+    public void handle(StateMachine stateMachine, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 1);
+        assert_(args[0] instanceof Long);
+        
+        stateMachine.sendEvent(CLIENT_EVENT.PONG, args[0]);
+    }
+    
+}
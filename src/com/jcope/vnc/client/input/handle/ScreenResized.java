@@ -2,7 +2,10 @@ package com.jcope.vnc.client.input.handle;
 
 import static com.jcope.debug.Debug.assert_;
 
+import java.awt.Dimension;
+
 import com.jcope.ui.ImagePanel;
+import com.jcope.vnc.Client.CLIENT_PROPERTIES;
 import com.jcope.vnc.client.MainFrame;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.client.input.Handle;
@@ -23,9 +26,15 @@ public class ScreenResized extends Handle
         
         MainFrame frame = stateMachine.getFrame();
         ImagePanel imagePanel = frame.getImagePanel();
-        if (imagePanel == null || (imagePanel.getWidth() != newWidth || imagePanel.getHeight() != newHeight))
+        Dimension imageSize = new Dimension();
+        if (imagePanel != null)
+        {
+            // the component size differs from the image size whenever the view is scaled
+            imagePanel.getImageSize(imageSize);
+        }
+        if (imagePanel == null || (imageSize.width != newWidth || imageSize.height != newHeight))
         {
-            imagePanel = new ImagePanel(newWidth, newHeight);
+            imagePanel = new ImagePanel(newWidth, newHeight, (Boolean) CLIENT_PROPERTIES.ACCELERATED_RENDERING.getValue());
             frame.setImagePanel(imagePanel);
             frame.invalidate();
             frame.repaint();
@@ -3,6 +3,7 @@ package com.jcope.vnc.client.input.handle;
 import static com.jcope.debug.Debug.assert_;
 
 import com.jcope.ui.ImagePanel;
+import com.jcope.util.PackedIntArray;
 import com.jcope.vnc.client.MainFrame;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.shared.input.Handle;
@@ -24,28 +25,18 @@ public class ScreenSegmentUpdate extends Handle<StateMachine>
         final int segmentID = (Integer) args[0];
         assert_(segmentID >= 0);
         
-        if (args[1] instanceof int[])
+        if (args[1] instanceof int[] || args[1] instanceof PackedIntArray)
         {
-            final int[] pixels = (int[]) args[1];
-            assert_(pixels != null);
-            
-            handleSetSegmentPixels(stateMachine, segmentID, pixels);
+            handleSetSegmentPixels(stateMachine, segmentID, args[1]);
         }
         else if (args[1] instanceof Integer)
         {
         	MainFrame frame = stateMachine.getFrame();
-            final ImagePanel imagePanel = frame.getImagePanel();
-            final Integer solidPixelColor = (Integer) args[1];
+            ImagePanel imagePanel = frame.getImagePanel();
+            Integer solidPixelColor = (Integer) args[1];
             assert_(solidPixelColor != null);
             
-            stateMachine.scheduleGUIAction(new Runnable() {
-
-				@Override
-				public void run() {
-					imagePanel.setSegmentSolidColor(segmentID, solidPixelColor);
-				}
-            	
-            });
+            imagePanel.setSegmentSolidColor(segmentID, solidPixelColor);
         }
         else
         {
@@ -53,16 +44,26 @@ public class ScreenSegmentUpdate extends Handle<StateMachine>
         }
     }
 
-	public static void handleSetSegmentPixels(StateMachine stateMachine, final int segmentID, final int[] pixels) {
+    /**
+     * Writes the pixels into the image on the reading thread, a packed
+     * array is only valid until the next read. Repainting still waits for
+     * END_OF_FRAME on the GUI thread.
+     * 
+     * @param stateMachine
+     * @param segmentID
+     * @param pixels int[] or PackedIntArray
+     */
+	public static void handleSetSegmentPixels(StateMachine stateMachine, int segmentID, Object pixels) {
 		MainFrame frame = stateMachine.getFrame();
-        final ImagePanel imagePanel = frame.getImagePanel();
-		stateMachine.scheduleGUIAction(new Runnable() {
-
-			@Override
-			public void run() {
-				imagePanel.setSegmentPixels(segmentID, pixels);
-			}
-        	
-        });
+        ImagePanel imagePanel = frame.getImagePanel();
+        
+        if (pixels instanceof PackedIntArray)
+        {
+            imagePanel.setSegmentPixels(segmentID, (PackedIntArray) pixels);
+        }
+        else
+        {
+            imagePanel.setSegmentPixels(segmentID, (int[]) pixels);
+        }
 	}
 }
@@ -5,16 +5,19 @@ import static com.jcope.debug.Debug.assert_;
 import static com.jcope.vnc.shared.ScreenSelector.getScreenDevicesOrdered;
 
 import java.awt.GraphicsDevice;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
 
@@ -22,10 +25,15 @@ import com.jcope.debug.LLog;
 import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.GraphicsSegment;
 import com.jcope.util.TaskDispatcher;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+import com.jcope.vnc.server.SessionRegistry.Session;
+import com.jcope.vnc.server.screen.FrameRing;
 import com.jcope.vnc.server.screen.Manager;
 import com.jcope.vnc.server.screen.Monitor;
 import com.jcope.vnc.server.screen.ScreenListener;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.FlowControl;
+import com.jcope.vnc.shared.FrameChannel;
 import com.jcope.vnc.shared.IOERunnable;
 import com.jcope.vnc.shared.Msg;
 import com.jcope.vnc.shared.Msg.CompressedObjectReader;
@@ -33,31 +41,19 @@ import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
 public class ClientHandler extends Thread
 {
-	private static final Object[] jce_id_ptr = new Object[]{null};
-    private static GraphicsSegment.Synchronously getJCE = new GraphicsSegment.Synchronously() {
-
-        @Override
-        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
-        {
-            Integer solidColor = solidColorPtr[0];
-            Object serialized = (solidColor == null) ? pixels : solidColor;
-            Object id = jce_id_ptr[0];
-            jce_id_ptr[0] = null;
-            JitCompressedEvent jce = receiver.acquireJitCompressedEvent(id, serialized);
-            return jce;
-        }
-        
-    };
-    
+	// charged for every queued event on top of any encoding it pins
+	private static final long QUEUED_EVENT_BYTES = 64L;
+	// unsent bytes, in MAX_QUEUED_BYTES, past which a client is taken to have stopped reading
+	private static final long STALLED_QUEUE_FACTOR = 2L;
     private Socket socket;
-	private BufferedInputStream in = null;
-	private BufferedOutputStream out = null;
+	private FrameChannel out = null;
+	private volatile CompressedObjectReader reader = null;
 	private ArrayList<Runnable> onDestroyActions = new ArrayList<Runnable>(1);
 	private volatile boolean dying = Boolean.FALSE;
 	private volatile boolean alive = Boolean.TRUE;
 	
 	private ClientState clientState = null;
-	private DirectRobot dirbot = null;
+	private ScreenSource screenSource = null;
 	
 	private TaskDispatcher<Integer> unserializedDispatcher;
     private TaskDispatcher<Integer> serializedDispatcher;
@@ -70,13 +66,11 @@ public class ClientHandler extends Thread
     volatile int tid = -1;
     
     private Semaphore handleIOSema = new Semaphore(1, true);
-    private Semaphore queueSema = new Semaphore(1, true);
-    private HashMap<Integer, SERVER_EVENT> nonSerialEventOutboundQueue = new HashMap<Integer, SERVER_EVENT>();
-    private HashMap<Integer, Object[]> nonSerialEventQueue = new HashMap<Integer, Object[]>();
-    private LinkedList<Integer> nonSerialOrderedEventQueue = new LinkedList<Integer>();
+    private NonSerialEventQueue nonSerialEventQueue = new NonSerialEventQueue(SERVER_EVENT.getMaxOrdinal() + 1);
     
     private Semaphore changedSegmentsSema = new Semaphore(1, true);
     private volatile FixedLengthBitSet stagedChanges = null;
+    private FixedLengthBitSet spareChanges = null; // the last staged changes sent, reused
     private FixedLengthBitSet[] publishedChanges = new FixedLengthBitSet[]{null};
     private Semaphore scanPeriodSema = new Semaphore(1, true);
     private volatile Long scanPeriod = null;
@@ -89,19 +83,90 @@ public class ClientHandler extends Thread
     private Semaphore transactionQueueSema = new Semaphore(1, true);
     private volatile int transaction_tid = -1;
     private TaskDispatcher<Integer> transactionDispatcher;
+    
+    // credit based flow control, tile updates past the budget are
+    // collapsed into deferredSegments until the client catches up
+    private final long maxBytesInFlight;
+    private volatile long bytesAcked = 0L;
+    private FixedLengthBitSet[] deferredSegments = new FixedLengthBitSet[]{null};
+    
+    // outbound queue budget, tile updates past it are collapsed into deferredSegments
+    private final long maxQueuedBytes;
+    private final AtomicLong queuedBytes = new AtomicLong(0L);
+    private final AtomicInteger queuedBuffers = new AtomicInteger(0);
+    private final AtomicBoolean queueCollapsed = new AtomicBoolean(false);
+    private final AtomicLong queueCollapses = new AtomicLong(0L);
+    private final AtomicLong collapsedTiles = new AtomicLong(0L);
+    
+    // dispatched again for every send instead of allocated, tileSends is
+    // indexed by segment ID and guarded by handleIOSema
+    private TileSend[] tileSends = new TileSend[0];
+    private final EndOfFrameSend endOfFrameSend = new EndOfFrameSend();
+    private final Object[] endOfFrameArgs = new Object[]{null, null}; // guarded by sendSema
+    
+    private final LinkStats linkStats = new LinkStats();
+    private volatile long lastPingNanos;
+    
+    // server push mode, changed segments go out as soon as a scan finds them
+    // instead of waiting for the client to answer SCREEN_SEGMENT_CHANGED
+    private volatile boolean pushMode = false;
+    private FixedLengthBitSet[] pendingPush = new FixedLengthBitSet[]{null};
+    private FixedLengthBitSet sparePush = null; // guarded by pendingPush
+    
+    // GET_SCREEN_SEGMENT requests that arrive while one is waiting to be
+    // served are merged into it, END_OF_FRAME reports how many were answered
+    private FixedLengthBitSet[] requestedSegments = new FixedLengthBitSet[]{null};
+    private int requestsReceived = 0;
+    private volatile int requestsAnswered = 0;
+    
+    // optional second connection carrying interactive events so they never
+    // queue behind screen segment data on the primary connection
+    private volatile boolean screenBound = false;
+    private volatile ClientHandler interactiveChannel = null;
+    private volatile ClientHandler interactiveOwner = null;
+    private Semaphore interactiveSendSema = new Semaphore(1, true);
+    private TaskDispatcher<Integer> interactiveDispatcher;
+    
+    // session resume, segment versions held by the client are recorded
+    // with every END_OF_FRAME so a reconnect only needs what changed since
+    private volatile Session session = null;
+    private volatile Long resumeToken = null;
+    private volatile int resumeFrameSerial;
+    private volatile Session resumeSession = null;
+    private final Object sentVersionsLock = new Object();
+    private long[] sentVersions = null;
+    private int frameSerial = 0;
+    
+    // broadcast mode, view-only clients stream the frames their monitor
+    // already encoded into its ring instead of having their own encoded
+    private volatile ACCESS_MODE accessMode = null;
+    private volatile long ringCursor = -1L;
+    private boolean[] streamPending = new boolean[]{false};
 	
-	public ClientHandler(Socket socket) throws IOException
+	public ClientHandler(SocketChannel channel) throws IOException
 	{
-	    super(toString(socket));
-	    this.socket = socket;
-		out = new BufferedOutputStream(socket.getOutputStream());
-		in = new BufferedInputStream(socket.getInputStream());
-		String strID = toString();
-		unserializedDispatcher = new TaskDispatcher<Integer>(String.format("Non-serial dispatcher: %s", strID));
-        serializedDispatcher = new TaskDispatcher<Integer>(String.format("Serial dispatcher: %s", strID));
-        transactionDispatcher = new TaskDispatcher<Integer>(String.format("Transaction dispatcher: %s", strID));
+	    super(toString(channel.socket()));
+	    this.socket = channel.socket();
+		// frames the socket cannot take yet wait for the shared FrameSelector, not on a worker
+		out = new FrameChannel(channel, linkStats);
+		// strands on the shared workers rather than threads of their own
+		Executor workers = WorkerPool.getExecutor();
+		unserializedDispatcher = new TaskDispatcher<Integer>(null, workers);
+        serializedDispatcher = new TaskDispatcher<Integer>(null, workers);
+        transactionDispatcher = new TaskDispatcher<Integer>(null, workers);
+        interactiveDispatcher = new TaskDispatcher<Integer>(null, workers);
         
         unserializedDispatcher.setImmediate(true, getNonSerialTID(SERVER_EVENT.READ_INPUT_EVENTS, null, 0));
+        
+        long budget = (Integer) SERVER_PROPERTIES.MAX_BYTES_IN_FLIGHT.getValue();
+        if (budget > 0 && budget < FlowControl.MIN_BYTES_IN_FLIGHT)
+        {
+            LLog.w(String.format("%s raised to %d bytes", SERVER_PROPERTIES.MAX_BYTES_IN_FLIGHT.name(), FlowControl.MIN_BYTES_IN_FLIGHT));
+            budget = FlowControl.MIN_BYTES_IN_FLIGHT;
+        }
+        maxBytesInFlight = budget;
+        maxQueuedBytes = (Integer) SERVER_PROPERTIES.MAX_QUEUED_BYTES.getValue();
+        lastPingNanos = System.nanoTime() - (LinkStats.PING_INTERVAL_MS * 1000000L);
 	}
 	
 	public String toString()
@@ -160,7 +225,7 @@ public class ClientHandler extends Thread
 		{
 			try
 			{
-				in.close();
+				out.close();
 			}
 			catch (IOException e)
 			{
@@ -169,26 +234,44 @@ public class ClientHandler extends Thread
 			finally {
 				try
 				{
-					out.close();
+					socket.close();
 				}
 				catch (IOException e)
 				{
 					LLog.e(e);
 				}
-				finally {
-					try
-					{
-						socket.close();
-					}
-					catch (IOException e)
-					{
-						LLog.e(e);
-					}
-				}
 			}
 		}
 	};
 	
+	private Runnable releaseInteractiveChannel = new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+	        InteractiveChannelRegistry.revoke(ClientHandler.this);
+	        ClientHandler l_interactiveChannel = interactiveChannel;
+	        interactiveChannel = null;
+	        if (l_interactiveChannel != null)
+	        {
+	            l_interactiveChannel.kill();
+	        }
+	    }
+	};
+	
+	private Runnable retainSession = new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+	        Session l_session = session;
+	        if (l_session != null)
+	        {
+	            SessionRegistry.retain(l_session);
+	        }
+	    }
+	};
+	
 	private Runnable releaseIOResources = new Runnable()
 	{
         @Override
@@ -199,30 +282,7 @@ public class ClientHandler extends Thread
         		setPaused(true);
         	}
         	finally {
-	            try
-	            {
-	                queueSema.acquire();
-	            }
-	            catch (InterruptedException e)
-	            {
-	                LLog.e(e);
-	            }
-	            try
-	            {
-	                synchronized(nonSerialEventQueue) {
-	                    for (Object[] sargs : nonSerialEventQueue.values())
-	                    {
-	                        if (sargs == null || sargs[0] == null)
-	                        {
-	                            continue;
-	                        }
-	                        ((JitCompressedEvent)sargs[0]).release();
-	                    }
-	                }
-	            }
-	            finally {
-	                queueSema.release();
-	            }
+	            nonSerialEventQueue.releaseDeferred();
         	}
         }
 	};
@@ -234,16 +294,19 @@ public class ClientHandler extends Thread
 		    // Destroy actions are now LIFO
             addOnDestroyAction(getUnbindAliasAction(this));
             addOnDestroyAction(releaseIOResources);
+            addOnDestroyAction(releaseInteractiveChannel);
+            addOnDestroyAction(retainSession);
 			addOnDestroyAction(killIOAction);
 			
 			CompressedObjectReader reader = new CompressedObjectReader();
+			this.reader = reader;
 			Object obj = null;
 			
 			while (!dying)
 			{
 				try
 				{
-					obj = reader.readObject(in);
+					obj = reader.readObject(out);
 					if (obj == null)
 	                {
 	                    throw new IOException("Connection reset by peer");
@@ -253,7 +316,8 @@ public class ClientHandler extends Thread
 				{
 					LLog.e(e);
 				}
-				StateMachine.handleClientInput(this, obj);
+				ClientHandler owner = interactiveOwner;
+				StateMachine.handleClientInput((owner == null) ? this : owner, obj);
 				obj = null;
 			}
 		}
@@ -263,10 +327,27 @@ public class ClientHandler extends Thread
 		}
 		finally
 		{
-			kill();
+			try
+			{
+				kill();
+			}
+			finally {
+				CompressedObjectReader reader = this.reader;
+				this.reader = null;
+				if (reader != null)
+				{
+					reader.release();
+				}
+			}
 		}
 	}
 	
+	public long getBytesRead()
+	{
+		CompressedObjectReader reader = this.reader;
+		return (reader == null) ? 0L : reader.getBytesRead();
+	}
+	
 	public Long getScanPeriod()
 	{
 		return scanPeriod;
@@ -300,7 +381,128 @@ public class ClientHandler extends Thread
 	    GraphicsDevice graphicsDevice = devices[graphicsDeviceID];
         
 	    this.newScanPeriod = scanPeriod;
+	    
+	    Long l_resumeToken = resumeToken;
+	    resumeToken = null;
+	    if (l_resumeToken != null)
+	    {
+	        Session l_resumeSession = SessionRegistry.redeem(l_resumeToken);
+	        // the monitor picks this up when it first notifies this client
+	        resumeSession = (l_resumeSession != null && l_resumeSession.isFor(graphicsDevice)) ? l_resumeSession : null;
+	    }
+	    
+	    // known before the monitor first sees this client
+	    this.accessMode = accessMode;
 	    rval = Manager.getInstance().bind(this, graphicsDevice, accessMode, password);
+	    screenBound = rval;
+	    if (!rval)
+	    {
+	        this.accessMode = null;
+	    }
+	    
+	    if (rval && SessionRegistry.isEnabled())
+	    {
+	        Session l_session = session;
+	        if (l_session != null)
+	        {
+	            SessionRegistry.remove(l_session);
+	        }
+	        l_session = SessionRegistry.issue(graphicsDevice, getMonitor());
+	        session = l_session;
+	        sendEvent(SERVER_EVENT.SESSION_TOKEN, Long.valueOf(l_session.token));
+	    }
+	    
+	    return rval;
+	}
+	
+	public void setResumeRequest(long token, int frameSerial)
+	{
+	    resumeFrameSerial = frameSerial;
+	    resumeToken = token;
+	}
+	
+	/**
+	 * Called by the monitor in place of sending every segment to a newly bound client.
+	 * 
+	 * @param monitor
+	 * @return the segment versions the client already holds, or null if
+	 *         it needs every segment
+	 */
+	public long[] takeResumeBaseline(Monitor monitor)
+	{
+	    Session l_resumeSession = resumeSession;
+	    resumeSession = null;
+	    
+	    if (l_resumeSession == null)
+	    {
+	        return null;
+	    }
+	    
+	    long[] baseline = l_resumeSession.getBaseline(monitor, resumeFrameSerial);
+	    
+	    if (baseline == null || baseline.length != monitor.getSegmentCount())
+	    {
+	        return null;
+	    }
+	    
+	    synchronized(sentVersionsLock)
+	    {
+	        sentVersions = baseline.clone();
+	    }
+	    
+	    return baseline;
+	}
+	
+	/**
+	 * @return true if segment versions are to be tracked for session resume,
+	 *         which without SESSION_RETENTION or an issued session is wasted
+	 */
+	private boolean isRecordingVersions()
+	{
+	    return SessionRegistry.isEnabled() && session != null;
+	}
+	
+	private void recordSentSegment(int segmentID, long version)
+	{
+	    synchronized(sentVersionsLock)
+	    {
+	        long[] l_sentVersions = sentVersions;
+	        if (l_sentVersions == null || segmentID >= l_sentVersions.length)
+	        {
+	            Monitor monitor = getMonitor();
+	            int length = Math.max(segmentID + 1, (monitor == null) ? 0 : monitor.getSegmentCount());
+	            l_sentVersions = new long[length];
+	            Arrays.fill(l_sentVersions, -1L);
+	            if (sentVersions != null)
+	            {
+	                System.arraycopy(sentVersions, 0, l_sentVersions, 0, sentVersions.length);
+	            }
+	            sentVersions = l_sentVersions;
+	        }
+	        l_sentVersions[segmentID] = version;
+	    }
+	}
+	
+	/**
+	 * @return the serial of the frame being terminated, recorded with the
+	 *         segment versions the client will hold once it applies it
+	 */
+	private int nextFrameSerial()
+	{
+	    int rval;
+	    long[] snapshot;
+	    Session l_session = SessionRegistry.isEnabled() ? session : null;
+	    
+	    synchronized(sentVersionsLock)
+	    {
+	        rval = ++frameSerial;
+	        snapshot = (l_session == null || sentVersions == null) ? null : sentVersions.clone();
+	    }
+	    
+	    if (snapshot != null)
+	    {
+	        l_session.recordFrame(rval, snapshot);
+	    }
 	    
 	    return rval;
 	}
@@ -342,7 +544,19 @@ public class ClientHandler extends Thread
                     serializedDispatcher.dispose();
                 }
                 finally {
-                    unserializedDispatcher.dispose();
+                    try
+                    {
+                        unserializedDispatcher.dispose();
+                    }
+                    finally {
+                        try
+                        {
+                            interactiveDispatcher.dispose();
+                        }
+                        finally {
+                            transactionDispatcher.dispose();
+                        }
+                    }
                 }
             }
             finally {
@@ -431,18 +645,25 @@ public class ClientHandler extends Thread
 		clientState = new ClientState();
 	}
 
-	public ScreenListener getScreenListener(final DirectRobot dirbot)
+	public ScreenListener getScreenListener(final ScreenSource screenSource)
 	{
 		ScreenListener l = screenListenerRef[0];
-		if (l == null || dirbot != this.dirbot)
+		if (l == null || screenSource != this.screenSource)
 		{
-			this.dirbot = dirbot;
+			this.screenSource = screenSource;
 			l = new ScreenListener() {
 			    
 				@Override
 				public void onScreenChange(FixedLengthBitSet changedSegments)
 				{
-					sendEvent(SERVER_EVENT.SCREEN_SEGMENT_CHANGED, changedSegments);
+					if (pushMode)
+					{
+						pushSegments(changedSegments);
+					}
+					else
+					{
+						sendEvent(SERVER_EVENT.SCREEN_SEGMENT_CHANGED, changedSegments);
+					}
 				}
 			};
 			screenListenerRef[0] = l;
@@ -507,7 +728,16 @@ public class ClientHandler extends Thread
                     l_stagedChanges.or(newChanges);
                     return;
                 }
-                l_stagedChanges = newChanges.clone();
+                l_stagedChanges = spareChanges;
+                spareChanges = null;
+                if (l_stagedChanges == null || l_stagedChanges.length != newChanges.length)
+                {
+                    l_stagedChanges = newChanges.clone();
+                }
+                else
+                {
+                    l_stagedChanges.copyFrom(newChanges);
+                }
                 args[0] = l_stagedChanges;
                 stagedChanges = l_stagedChanges;
             }
@@ -538,6 +768,13 @@ public class ClientHandler extends Thread
 	    TaskDispatcher<Integer> dispatcher;
 	    boolean dispatch;
 	    boolean isMutable;
+	    ClientHandler l_interactiveChannel;
+	    
+	    if (event.isInteractive() && (l_interactiveChannel = interactiveChannel) != null)
+	    {
+	        sendInteractiveEvent(l_interactiveChannel, event, jce, args);
+	        return;
+	    }
 	    
 		if (event.isSerial())
         {
@@ -576,65 +813,19 @@ public class ClientHandler extends Thread
                 {
                     dispatch = Boolean.TRUE;
                 }
+		        else if (!nonSerialEventQueue.isOutstanding(tidTmp))
+		        {
+		            dispatch = Boolean.TRUE;
+		            if (event != SERVER_EVENT.READ_INPUT_EVENTS && event != SERVER_EVENT.PING)
+		            {
+		                nonSerialEventQueue.markOutstanding(tidTmp, event);
+		            }
+		        }
 		        else
 		        {
-    		        try
-    	            {
-    	                queueSema.acquire();
-    	            }
-    	            catch (InterruptedException e)
-    	            {
-    	                LLog.e(e);
-    	            }
-    	            try
-    	            {
-    	                synchronized(nonSerialEventQueue) {synchronized(nonSerialEventOutboundQueue) {synchronized(nonSerialOrderedEventQueue) {
-    	                    if (nonSerialEventOutboundQueue.get(tidTmp) == null)
-                            {
-                                dispatch = Boolean.TRUE;
-                                if (event != SERVER_EVENT.READ_INPUT_EVENTS)
-                                {
-                                	nonSerialEventOutboundQueue.put(tidTmp, event);
-                                	nonSerialOrderedEventQueue.addLast(tidTmp);
-                                }
-                            }
-                            else
-                            {
-                                Object[] sargs = null;
-                                dispatch = Boolean.FALSE;
-                                if (isMutable || (sargs = nonSerialEventQueue.get(tidTmp)) == null)
-                                {
-                                    JitCompressedEvent jce2;
-                                    if (isMutable)
-                                    {
-                                        sargs = nonSerialEventQueue.get(tidTmp);
-                                    }
-                                    if (sargs == null)
-                                    {
-                                        sargs = new Object[]{ jce, args };
-                                        nonSerialEventQueue.put(tidTmp, sargs);
-                                    }
-                                    else
-                                    {
-                                        jce2 = (JitCompressedEvent) sargs[0];
-                                        if (jce2 != null)
-                                        {
-                                            jce2.release();
-                                        }
-                                        sargs[0] = jce;
-                                        sargs[1] = args;
-                                    }
-                                    if (jce != null)
-                                    {
-                                        jce.acquire();
-                                    }
-                                }
-                            }
-                        }}}
-    	            }
-    	            finally {
-    	                queueSema.release();
-    	            }
+		            // sent once acknowledged, superseding any version held back so far
+		            dispatch = Boolean.FALSE;
+		            nonSerialEventQueue.defer(tidTmp, jce, args, isMutable);
 		        }
 		    }
 		    else
@@ -645,6 +836,22 @@ public class ClientHandler extends Thread
 		}
 		if (dispatch)
 		{
+		    if (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE)
+		    {
+		        assert_(jce == null);
+		        assert_(args.length == 2);
+		        nts_sendTile((Integer) args[0], (GraphicsSegment) args[1]);
+		        return;
+		    }
+		    if (event == SERVER_EVENT.END_OF_FRAME)
+		    {
+		        assert_(jce == null);
+		        assert_(args.length == 1);
+		        nts_sendEndOfFrame((Integer) args[0]);
+		        return;
+		    }
+		    long cost = estimateQueuedBytes(jce);
+		    final QueuedEvent queued = new QueuedEvent(cost, jce);
 		    final IOERunnable f_msgAction;
 		    IOERunnable msgAction = null;
 		    switch (event) {
@@ -661,9 +868,10 @@ public class ClientHandler extends Thread
 				case CONNECTION_ESTABLISHED:
 				case CURSOR_GONE:
 				case CURSOR_MOVE:
-				case END_OF_FRAME:
 				case FAILED_AUTHORIZATION:
 				case GET_CLIPBOARD:
+				case INTERACTIVE_CHANNEL_TOKEN:
+				case SESSION_TOKEN:
 				case NUM_SCREENS_CHANGED:
 				case READ_INPUT_EVENTS:
 				case SCREEN_GONE:
@@ -688,9 +896,9 @@ public class ClientHandler extends Thread
 	                    @Override
 	                    public void run() throws IOException
 	                    {
-	                    	DirectRobot dirbot = ClientHandler.this.dirbot;
-	                    	if (dirbot != null) {
-	                    		Object[] args = new Object[] {dirbot.getRGBPixels()};
+	                    	ScreenSource screenSource = ClientHandler.this.screenSource;
+	                    	if (screenSource != null) {
+	                    		Object[] args = new Object[] {screenSource.getRGBPixels()};
 	                    		Msg.send(out, jce, event, args);
 	                    	}
 	                    }
@@ -698,21 +906,21 @@ public class ClientHandler extends Thread
 			        };
 					break;
 				case SCREEN_SEGMENT_UPDATE:
+				case END_OF_FRAME:
+					// sent by the TileSend and EndOfFrameSend already dispatched
+					break;
+				case PING:
 					assert_(jce == null);
-		            assert_(args.length == 2);
-		            
-		            msgAction = new IOERunnable() {
+					msgAction = new IOERunnable() {
 
 	                    @Override
 	                    public void run() throws IOException
 	                    {
-	                        GraphicsSegment graphicsSegment = (GraphicsSegment) args[1];
-	                        jce_id_ptr[0] = args[0];
-	                        JitCompressedEvent new_jce = (JitCompressedEvent) graphicsSegment.synchronously(getJCE);
-	                        Msg.send(out, new_jce, event);
+	                        // stamped as late as possible so queueing here is not measured
+	                        Msg.send(out, null, event, Long.valueOf(System.nanoTime()));
 	                    }
-	                    
-	                };
+			            
+			        };
 					break;
 				case SCREEN_SEGMENT_CHANGED:
 					msgAction = new IOERunnable() {
@@ -741,6 +949,22 @@ public class ClientHandler extends Thread
 	                            changedSegmentsSema.release();
 	                        }
 	                        Msg.send(out, jce, event, args);
+	                        try
+	                        {
+	                            changedSegmentsSema.acquire();
+	                        }
+	                        catch (InterruptedException e)
+	                        {
+	                            LLog.e(e);
+	                        }
+	                        try
+	                        {
+	                            // serialized and no longer referred to
+	                            spareChanges = (FixedLengthBitSet) args[0];
+	                        }
+	                        finally {
+	                            changedSegmentsSema.release();
+	                        }
 	                    }
 	                    
 	                };
@@ -752,196 +976,1133 @@ public class ClientHandler extends Thread
 	            @Override
 	            public void run()
 	            {
-	                boolean killSelf = true;
-	                boolean flushed = false;
-	                try
-	                {
-	                    try
-	                    {
-	                        sendSema.acquire();
-	                    }
-	                    catch (InterruptedException e)
-	                    {
-	                        LLog.e(e);
-	                    }
-	                    try
-	                    {
-	                        f_msgAction.run();
-	                        if ((!event.isCursor()) && serializedDispatcher.isEmpty() && unserializedDispatcher.isEmpty())
-	                        {
-	                            flushed = true;
-	                            out.flush();
-	                        }
-	                        
-	                        // connection related post send handling...
-	                        
-	                        switch(event)
-	                        {
-                                case AUTHORIZATION_UPDATE:
-                                    if (!flushed)
-                                    {
-                                        flushed = true;
-                                        out.flush();
-                                    }
-                                    if (!((Boolean) args[0]))
-                                    {
-                                        SwingUtilities.invokeLater(new Runnable() {
-
-                                            @Override
-                                            public void run()
-                                            {
-                                                kill();
-                                            }
-                                            
-                                        });
-                                    }
-                                    break;
-                                case ALIAS_CHANGED:
-                                case ALIAS_DISCONNECTED:
-                                case ALIAS_REGISTERED:
-                                case ALIAS_UNREGISTERED:
-                                case CHAT_MSG_TO_ALL:
-                                case CHAT_MSG_TO_USER:
-                                case CLIENT_ALIAS_UPDATE:
-                                case CONNECTION_CLOSED:
-                                case CONNECTION_ESTABLISHED:
-                                case CURSOR_GONE:
-                                case CURSOR_MOVE:
-                                case FAILED_AUTHORIZATION:
-                                case NUM_SCREENS_CHANGED:
-                                case SCREEN_GONE:
-                                case SCREEN_RESIZED:
-                                case SCREEN_SEGMENT_CHANGED:
-                                case SCREEN_SEGMENT_SIZE_UPDATE:
-                                case SCREEN_SEGMENT_UPDATE:
-                                case READ_INPUT_EVENTS:
-                                case CLIPBOARD_CHANGED:
-                                case GET_CLIPBOARD:
-                                case SET_CLIPBOARD:
-                                case ENTIRE_SCREEN_UPDATE:
-                                    break;
-								case END_OF_FRAME:
-									break;
-	                        }
-	                    }
-	                    catch (IOException e)
-	                    {
-	                        LLog.e(e);
-	                    }
-	                    finally {
-	                        sendSema.release();
-	                    }
-	                    killSelf = false;
-	                }
-	                finally {
-	                    if (killSelf)
-	                    {
-	                        kill();
-	                    }
-	                }
+	                queued.sent = true;
+	                sendQueued(event, f_msgAction, args);
 	            }
 	        };
 	        
-	        Runnable rOnDestroy;
-	        
-	        if (jce == null)
-	        {
-	            rOnDestroy = null;
-	        }
-	        else
+	        if (jce != null)
 	        {
 	            jce.acquire();
-	            rOnDestroy = jce.getOnDestroy();
-	        } 
+	            queuedBuffers.incrementAndGet();
+	        }
+	        queuedBytes.addAndGet(cost);
 	        
-	        dispatcher.dispatch(tidTmp, r, rOnDestroy);
+	        dispatcher.dispatch(tidTmp, r, queued);
 		}
 	}
 	
-	private int getNonSerialTID(SERVER_EVENT event, Object[] refStack, int idxSegmentID)
-    {
-	    int rval;
-	    if (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE)
-        {
-	        rval = ((Integer)refStack[idxSegmentID]) + 2;
-            rval += SERVER_EVENT.getMaxOrdinal();
-        }
-        else
-        {
-            rval = event.ordinal();
-        }
-	    
-	    return rval;
-    }
-
-    public GraphicsSegment getSegment(int segmentID)
-	{
-	    return Manager.getInstance().getSegment(dirbot, segmentID);
-	}
-	
-	public DirectRobot getDirbot()
-	{
-	    return dirbot;
-	}
-	
-	public void handleEventAck(SERVER_EVENT ackForEvent, Object[] refStack, int idxSegmentID)
+	/**
+	 * Sends a dispatched event through msgAction, killing the client should
+	 * that fail.
+	 */
+	private void sendQueued(SERVER_EVENT event, IOERunnable msgAction, Object[] args)
 	{
-	    ArrayList<SERVER_EVENT> evtlist = new ArrayList<SERVER_EVENT>();
-	    ArrayList<Object[]> plist = new ArrayList<Object[]>();
-	    int tTid = getNonSerialTID(ackForEvent, refStack, idxSegmentID);
-	    int idx = 0;
-        Exception firstE = null;
-	    int tid;
-	    SERVER_EVENT hiddenAckEvt;
-        Object[] sargs;
-	    JitCompressedEvent jce;
-	    
-	    try
-        {
-            handleIOSema.acquire();
-        }
-        catch (InterruptedException e)
-        {
-            LLog.e(e);
-        }
+	    boolean killSelf = true;
+	    boolean flushed = false;
 	    try
 	    {
-    	    try
-            {
-                queueSema.acquire();
-            }
-            catch (InterruptedException e)
-            {
-                LLog.e(e);
-            }
-    	    try
-            {
-                synchronized(nonSerialEventQueue) {synchronized(nonSerialEventOutboundQueue) {synchronized(nonSerialOrderedEventQueue) {
-                    do
-                    {
-                        tid = nonSerialOrderedEventQueue.removeFirst();
-                        hiddenAckEvt = nonSerialEventOutboundQueue.remove(tid);
-                        sargs = nonSerialEventQueue.remove(tid);
-                        if (sargs != null)
+	        try
+	        {
+	            sendSema.acquire();
+	        }
+	        catch (InterruptedException e)
+	        {
+	            LLog.e(e);
+	        }
+	        try
+	        {
+	            checkDraining();
+	            msgAction.run();
+	            if ((!event.isCursor()) && serializedDispatcher.isEmpty() && unserializedDispatcher.isEmpty())
+	            {
+	                flushed = true;
+	                out.flush();
+	            }
+	            
+	            // connection related post send handling...
+	            
+	            switch(event)
+	            {
+                    case AUTHORIZATION_UPDATE:
+                        if (!flushed)
                         {
-                            evtlist.add(hiddenAckEvt);
-                            plist.add(sargs);
+                            flushed = true;
+                            out.flush();
                         }
-                    } while (tid != tTid);
-                }}}
-            }
-            finally {
-                queueSema.release();
-            }
-            for (Object[] targs : plist)
-            {
-                hiddenAckEvt = evtlist.get(idx++);
-                jce = (JitCompressedEvent) targs[0];
-                Object[] args = (Object[]) targs[1];
-                
-                // erase targs to unbind objects
-                targs[0] = null;
-                targs[1] = null;
+                        if (!((Boolean) args[0]))
+                        {
+                            SwingUtilities.invokeLater(new Runnable() {
+
+                                @Override
+                                public void run()
+                                {
+                                    kill();
+                                }
+                                
+                            });
+                        }
+                        break;
+                    case ALIAS_CHANGED:
+                    case ALIAS_DISCONNECTED:
+                    case ALIAS_REGISTERED:
+                    case ALIAS_UNREGISTERED:
+                    case CHAT_MSG_TO_ALL:
+                    case CHAT_MSG_TO_USER:
+                    case CLIENT_ALIAS_UPDATE:
+                    case CONNECTION_CLOSED:
+                    case CONNECTION_ESTABLISHED:
+                    case CURSOR_GONE:
+                    case CURSOR_MOVE:
+                    case FAILED_AUTHORIZATION:
+                    case NUM_SCREENS_CHANGED:
+                    case SCREEN_GONE:
+                    case SCREEN_RESIZED:
+                    case SCREEN_SEGMENT_CHANGED:
+                    case SCREEN_SEGMENT_SIZE_UPDATE:
+                    case SCREEN_SEGMENT_UPDATE:
+                    case READ_INPUT_EVENTS:
+                    case CLIPBOARD_CHANGED:
+                    case GET_CLIPBOARD:
+                    case SET_CLIPBOARD:
+                    case ENTIRE_SCREEN_UPDATE:
+                        break;
+					case END_OF_FRAME:
+					case PING:
+					case INTERACTIVE_CHANNEL_TOKEN:
+					case SESSION_TOKEN:
+						break;
+	            }
+	        }
+	        catch (IOException e)
+	        {
+	            LLog.e(e);
+	        }
+	        finally {
+	            sendSema.release();
+	        }
+	        killSelf = false;
+	    }
+	    finally {
+	        if (killSelf)
+	        {
+	            kill();
+	        }
+	    }
+	    if (event != SERVER_EVENT.PING)
+	    {
+	        schedulePing();
+	    }
+	}
+	
+	/**
+	 * Accounts for a dispatched event until the dispatcher is done with it,
+	 * which it is exactly once whether the event was sent or destroyed.
+	 */
+	private class QueuedEvent implements Runnable
+	{
+	    private final long bytes;
+	    private final JitCompressedEvent jce;
+	    volatile boolean sent = false;
+	    
+	    QueuedEvent(long bytes, JitCompressedEvent jce)
+	    {
+	        this.bytes = bytes;
+	        this.jce = jce;
+	    }
+	    
+	    @Override
+	    public void run()
+	    {
+	        try
+	        {
+	            if (jce != null)
+	            {
+	                queuedBuffers.decrementAndGet();
+	                jce.release();
+	            }
+	        }
+	        finally {
+	            queuedBytes.addAndGet(-bytes);
+	            if (sent && queueCollapsed.get())
+	            {
+	                releaseDeferredSegments();
+	            }
+	        }
+	    }
+	}
+	
+	/**
+	 * An event sent by a task dispatched again for every send rather than
+	 * allocated, accounted for while pending like a QueuedEvent.
+	 */
+	private abstract class PooledSend extends TaskDispatcher.PooledTask
+	{
+	    private final SERVER_EVENT event;
+	    final long cost;
+	    private final IOERunnable msgAction = new IOERunnable() {
+	        
+	        @Override
+	        public void run() throws IOException
+	        {
+	            send();
+	        }
+	        
+	    };
+	    
+	    PooledSend(SERVER_EVENT event, long cost)
+	    {
+	        this.event = event;
+	        this.cost = cost;
+	    }
+	    
+	    /**
+	     * With sendSema held
+	     */
+	    abstract void send() throws IOException;
+	    
+	    @Override
+	    public void run()
+	    {
+	        try
+	        {
+	            sendQueued(event, msgAction, null);
+	        }
+	        finally {
+	            queuedBytes.addAndGet(-cost);
+	            if (queueCollapsed.get())
+	            {
+	                releaseDeferredSegments();
+	            }
+	        }
+	    }
+	    
+	    @Override
+	    public void destroy()
+	    {
+	        queuedBytes.addAndGet(-cost);
+	    }
+	}
+	
+	/**
+	 * The SCREEN_SEGMENT_UPDATE of one segment. Updating a segment whose
+	 * update is still queued only has the queued one send the latest
+	 * pixels, as a mutable key would.
+	 */
+	private class TileSend extends PooledSend
+	{
+	    private final int segmentID;
+	    private final Integer boxedSegmentID;
+	    private volatile GraphicsSegment segment = null;
+	    private final GraphicsSegment.Synchronously getJCE = new GraphicsSegment.Synchronously() {
+	        
+	        @Override
+	        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+	        {
+	            return receiver.acquireJitCompressedEvent(boxedSegmentID);
+	        }
+	        
+	    };
+	    
+	    /**
+	     * @param segmentID
+	     * @param boxedSegmentID
+	     * @param cost at most the pixels of the segment
+	     */
+	    TileSend(int segmentID, Integer boxedSegmentID, long cost)
+	    {
+	        super(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, cost);
+	        this.segmentID = segmentID;
+	        this.boxedSegmentID = boxedSegmentID;
+	    }
+	    
+	    @Override
+	    void send() throws IOException
+	    {
+	        if (!hasCredit())
+	        {
+	            deferSegment(segmentID);
+	            return;
+	        }
+	        GraphicsSegment graphicsSegment = segment;
+	        // read ahead of the pixels, a newer tile is only ever resent on resume
+	        boolean recording = isRecordingVersions();
+	        long version = recording ? graphicsSegment.getVersion() : -1L;
+	        JitCompressedEvent jce = (JitCompressedEvent) graphicsSegment.synchronously(getJCE);
+	        try
+	        {
+	            Msg.send(out, jce);
+	        }
+	        finally {
+	            jce.release();
+	        }
+	        if (recording)
+	        {
+	            recordSentSegment(segmentID, version);
+	        }
+	    }
+	    
+	    @Override
+	    public void destroy()
+	    {
+	        super.destroy();
+	        if (queueCollapsed.get() && !dying)
+	        {
+	            // cancelled by collapseQueuedTiles
+	            collapsedTiles.incrementAndGet();
+	            deferSegment(segmentID);
+	        }
+	    }
+	}
+	
+	private class EndOfFrameSend extends PooledSend
+	{
+	    volatile int answered;
+	    
+	    EndOfFrameSend()
+	    {
+	        super(SERVER_EVENT.END_OF_FRAME, QUEUED_EVENT_BYTES);
+	    }
+	    
+	    @Override
+	    void send() throws IOException
+	    {
+	        nts_writeEndOfFrame(answered);
+	    }
+	}
+	
+	/**
+	 * Writes END_OF_FRAME through endOfFrameArgs, sendSema held.
+	 * 
+	 * @param answered
+	 * @throws IOException
+	 */
+	private void nts_writeEndOfFrame(int answered) throws IOException
+	{
+	    endOfFrameArgs[0] = Integer.valueOf(answered);
+	    endOfFrameArgs[1] = Integer.valueOf(nextFrameSerial());
+	    try
+	    {
+	        Msg.send(out, null, SERVER_EVENT.END_OF_FRAME, endOfFrameArgs);
+	    }
+	    finally {
+	        endOfFrameArgs[0] = null;
+	        endOfFrameArgs[1] = null;
+	    }
+	}
+	
+	/**
+	 * sendEvent(SCREEN_SEGMENT_UPDATE, segmentID, segment) without the
+	 * varargs
+	 * 
+	 * @param segmentID
+	 * @param segment
+	 */
+	public void sendTile(int segmentID, GraphicsSegment segment)
+	{
+	    try
+	    {
+	        handleIOSema.acquire();
+	    }
+	    catch (InterruptedException e)
+	    {
+	        LLog.e(e);
+	    }
+	    try
+	    {
+	        nts_sendTile(segmentID, segment);
+	    }
+	    finally {
+	        handleIOSema.release();
+	    }
+	}
+	
+	private void nts_sendTile(int segmentID, GraphicsSegment segment)
+	{
+	    TileSend send = getTileSend(segmentID, segment);
+	    
+	    if (isOverQueueBudget(send.cost))
+	    {
+	        collapseQueuedTiles();
+	        collapsedTiles.incrementAndGet();
+	        deferSegment(segmentID);
+	        return;
+	    }
+	    send.segment = segment;
+	    queuedBytes.addAndGet(send.cost);
+	    if (!unserializedDispatcher.dispatch(send))
+	    {
+	        // still queued, it sends the latest pixels
+	        queuedBytes.addAndGet(-send.cost);
+	    }
+	}
+	
+	/**
+	 * handleIOSema held
+	 */
+	private TileSend getTileSend(int segmentID, GraphicsSegment segment)
+	{
+	    TileSend[] l_tileSends = tileSends;
+	    TileSend rval;
+	    long cost = QUEUED_EVENT_BYTES + segment.getByteCount();
+	    
+	    if (segmentID >= l_tileSends.length)
+	    {
+	        Monitor monitor = getMonitor();
+	        l_tileSends = Arrays.copyOf(l_tileSends, Math.max(segmentID + 1, (monitor == null) ? 0 : monitor.getSegmentCount()));
+	        tileSends = l_tileSends;
+	    }
+	    rval = l_tileSends[segmentID];
+	    if (rval == null || rval.cost != cost)
+	    {
+	        // one still queued for a segment of another size accounts for itself
+	        rval = new TileSend(segmentID, boxSegmentID(getMonitor(), segmentID), cost);
+	        l_tileSends[segmentID] = rval;
+	    }
+	    
+	    return rval;
+	}
+	
+	/**
+	 * sendEvent(END_OF_FRAME, answered) without boxing answered, unless it
+	 * is held back until the last one is acknowledged
+	 * 
+	 * @param answered
+	 */
+	public void sendEndOfFrame(int answered)
+	{
+	    int tidTmp = SERVER_EVENT.END_OF_FRAME.ordinal();
+	    
+	    try
+	    {
+	        handleIOSema.acquire();
+	    }
+	    catch (InterruptedException e)
+	    {
+	        LLog.e(e);
+	    }
+	    try
+	    {
+	        if (nonSerialEventQueue.isOutstanding(tidTmp))
+	        {
+	            nonSerialEventQueue.defer(tidTmp, null, new Object[]{Integer.valueOf(answered)}, true);
+	            return;
+	        }
+	        nonSerialEventQueue.markOutstanding(tidTmp, SERVER_EVENT.END_OF_FRAME);
+	        nts_sendEndOfFrame(answered);
+	    }
+	    finally {
+	        handleIOSema.release();
+	    }
+	}
+	
+	private void nts_sendEndOfFrame(int answered)
+	{
+	    endOfFrameSend.answered = answered;
+	    queuedBytes.addAndGet(endOfFrameSend.cost);
+	    if (!unserializedDispatcher.dispatch(endOfFrameSend))
+	    {
+	        queuedBytes.addAndGet(-endOfFrameSend.cost);
+	    }
+	}
+	
+	/**
+	 * @return the bytes a queued event pins until it is sent, including
+	 *         the encoding of a shared event
+	 */
+	private static long estimateQueuedBytes(JitCompressedEvent jce)
+	{
+	    long rval = QUEUED_EVENT_BYTES;
+	    
+	    if (jce != null)
+	    {
+	        rval += jce.getPooledBytes();
+	    }
+	    
+	    return rval;
+	}
+	
+	/**
+	 * @return the bytes pinned for the client until they are sent: events
+	 *         still queued and frames its socket has not taken yet
+	 */
+	private long getPinnedBytes()
+	{
+	    return queuedBytes.get() + out.getBytesQueued();
+	}
+	
+	private boolean isOverQueueBudget(long cost)
+	{
+	    return maxQueuedBytes > 0 && (queueCollapsed.get() || getPinnedBytes() + cost > maxQueuedBytes);
+	}
+	
+	/**
+	 * Tile updates are collapsed at the budget, but the events that are
+	 * not would pin buffers without end behind a socket that stopped
+	 * draining.
+	 * 
+	 * @throws IOException once STALLED_QUEUE_FACTOR times the budget is unsent
+	 */
+	private void checkDraining() throws IOException
+	{
+	    long unsent;
+	    
+	    if (maxQueuedBytes > 0 && (unsent = out.getBytesQueued()) > STALLED_QUEUE_FACTOR * maxQueuedBytes)
+	    {
+	        throw new IOException(String.format("Client stopped reading, %dB unsent", unsent));
+	    }
+	}
+	
+	/**
+	 * Trades the tile updates still queued for dirty bits, the client is
+	 * offered the latest version of each once the queue has drained.
+	 */
+	private void collapseQueuedTiles()
+	{
+	    if (!queueCollapsed.compareAndSet(false, true))
+	    {
+	        return;
+	    }
+	    queueCollapses.incrementAndGet();
+	    for (TileSend send : tileSends)
+	    {
+	        if (send != null)
+	        {
+	            unserializedDispatcher.cancel(send);
+	        }
+	    }
+	    // nothing sent may be left queued to notice the queue drained
+	    dispatchTransaction(releaseDeferredAction);
+	}
+	
+	private Runnable releaseDeferredAction = new Runnable()
+	{
+	    
+	    @Override
+	    public void run()
+	    {
+	        releaseDeferredSegments();
+	    }
+	    
+	};
+	
+	/**
+	 * Interactive events are collapsed to their latest version by the
+	 * dispatcher alone, they are never held back waiting for an
+	 * ACKNOWLEDGE_NON_SERIAL_EVENT and the client never sends one for them.
+	 */
+	private void sendInteractiveEvent(final ClientHandler channel, final SERVER_EVENT event, final JitCompressedEvent jce, final Object... args)
+	{
+	    Runnable r = new Runnable() {
+	        
+	        @Override
+	        public void run()
+	        {
+	            try
+	            {
+	                interactiveSendSema.acquire();
+	            }
+	            catch (InterruptedException e)
+	            {
+	                LLog.e(e);
+	            }
+	            try
+	            {
+	                Msg.send(channel.out, jce, event, args);
+	            }
+	            catch (IOException e)
+	            {
+	                // the primary connection carries these events from now on
+	                LLog.e(e, false);
+	                channel.kill();
+	            }
+	            finally {
+	                interactiveSendSema.release();
+	            }
+	        }
+	    };
+	    
+	    Runnable rOnDestroy;
+	    
+	    if (jce == null)
+	    {
+	        rOnDestroy = null;
+	    }
+	    else
+	    {
+	        jce.acquire();
+	        rOnDestroy = jce.getOnDestroy();
+	    }
+	    
+	    interactiveDispatcher.dispatch(event.ordinal(), r, rOnDestroy);
+	}
+	
+	public boolean isScreenBound()
+	{
+	    return screenBound;
+	}
+	
+	/**
+	 * Turns this connection into the interactive channel of the client
+	 * the token was issued to. Input read from this connection is handled
+	 * on behalf of that client from now on.
+	 * 
+	 * @param token
+	 * @return false if the token is unknown or the owner is gone
+	 */
+	public boolean attachAsInteractiveChannel(long token)
+	{
+	    final ClientHandler owner = InteractiveChannelRegistry.redeem(token);
+	    
+	    if (owner == null || owner == this || !owner.isRunning() || dying || interactiveOwner != null)
+	    {
+	        return false;
+	    }
+	    
+	    interactiveOwner = owner;
+	    try
+	    {
+	        socket.setTcpNoDelay(true);
+	    }
+	    catch (SocketException e)
+	    {
+	        LLog.e(e, false);
+	    }
+	    addOnDestroyAction(new Runnable() {
+	        
+	        @Override
+	        public void run()
+	        {
+	            owner.detachInteractiveChannel(ClientHandler.this);
+	        }
+	        
+	    });
+	    owner.attachInteractiveChannel(this);
+	    
+	    return true;
+	}
+	
+	private void attachInteractiveChannel(ClientHandler channel)
+	{
+	    ClientHandler l_interactiveChannel;
+	    synchronized(this)
+	    {
+	        l_interactiveChannel = interactiveChannel;
+	        interactiveChannel = channel;
+	    }
+	    if (l_interactiveChannel != null)
+	    {
+	        l_interactiveChannel.kill();
+	    }
+	    if (dying)
+	    {
+	        releaseInteractiveChannel.run();
+	    }
+	}
+	
+	private void detachInteractiveChannel(ClientHandler channel)
+	{
+	    synchronized(this)
+	    {
+	        if (interactiveChannel == channel)
+	        {
+	            interactiveChannel = null;
+	        }
+	    }
+	}
+	
+	private static int getTileTID(int segmentID)
+	{
+	    return segmentID + 2 + SERVER_EVENT.getMaxOrdinal();
+	}
+	
+	private int getNonSerialTID(SERVER_EVENT event, Object[] refStack, int idxSegmentID)
+    {
+	    int rval;
+	    if (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE)
+        {
+	        rval = getTileTID((Integer)refStack[idxSegmentID]);
+        }
+        else
+        {
+            rval = event.ordinal();
+        }
+	    
+	    return rval;
+    }
+
+    private Monitor getMonitor()
+    {
+        synchronized(monitorRef)
+        {
+            return (monitorRef[0] == null) ? null : (Monitor) monitorRef[0].get();
+        }
+    }
+    
+    public long getBytesSent()
+    {
+        return out.getBytesWritten();
+    }
+    
+    public long getBytesInFlight()
+    {
+        return out.getBytesWritten() - bytesAcked;
+    }
+    
+    private boolean hasCredit()
+    {
+        return maxBytesInFlight <= 0 || getBytesInFlight() < maxBytesInFlight;
+    }
+    
+    private void deferSegment(int segmentID)
+    {
+        synchronized(deferredSegments)
+        {
+            FixedLengthBitSet l_deferredSegments = deferredSegments[0];
+            if (l_deferredSegments == null)
+            {
+                Monitor monitor = getMonitor();
+                if (monitor == null)
+                {
+                    return;
+                }
+                l_deferredSegments = new FixedLengthBitSet(monitor.getSegmentCount());
+                deferredSegments[0] = l_deferredSegments;
+            }
+            l_deferredSegments.set(segmentID, true);
+        }
+    }
+    
+    private void schedulePing()
+    {
+        long now = System.nanoTime();
+        
+        if (dying || now - lastPingNanos < LinkStats.PING_INTERVAL_MS * 1000000L)
+        {
+            return;
+        }
+        
+        lastPingNanos = now;
+        sendEvent(SERVER_EVENT.PING);
+    }
+    
+    public void onPong(long pingNanos)
+    {
+        linkStats.onRttSample(System.nanoTime() - pingNanos);
+    }
+    
+    public LinkStats getLinkStats()
+    {
+        return linkStats;
+    }
+    
+    public String getStats()
+    {
+        return String.format("%s %s sent=%dB inflight=%dB writing=%dB queued=%dB/%dB buffers=%d collapses=%d collapsedTiles=%d", toString(), linkStats.toString(), getBytesSent(), getBytesInFlight(), out.getBytesQueued(), getQueuedBytes(), maxQueuedBytes, queuedBuffers.get(), queueCollapses.get(), collapsedTiles.get());
+    }
+    
+    /**
+     * @return the estimated bytes of events dispatched but not yet sent
+     */
+    public long getQueuedBytes()
+    {
+        return queuedBytes.get();
+    }
+    
+    public void acknowledgeBytes(long bytesConsumed)
+    {
+        if (bytesConsumed > bytesAcked)
+        {
+            bytesAcked = bytesConsumed;
+        }
+        linkStats.onAck(bytesConsumed, System.nanoTime());
+        
+        releaseDeferredSegments();
+    }
+    
+    /**
+     * A collapsed queue reopens once it has drained to half the budget.
+     */
+    private boolean hasQueueRoom()
+    {
+        if (!queueCollapsed.get())
+        {
+            return true;
+        }
+        if (getPinnedBytes() > maxQueuedBytes / 2)
+        {
+            return false;
+        }
+        queueCollapsed.set(false);
+        
+        return true;
+    }
+    
+    /**
+     * Offers the segments held back by flow control or the queue budget
+     * again, once there is room for them.
+     */
+    private void releaseDeferredSegments()
+    {
+        FixedLengthBitSet l_deferredSegments;
+        
+        if (!hasCredit() || !hasQueueRoom())
+        {
+            return;
+        }
+        
+        if (isBroadcastViewer())
+        {
+            // a stream stalled on flow control picks up where it stopped
+            onFramePublished();
+            return;
+        }
+        
+        synchronized(deferredSegments)
+        {
+            l_deferredSegments = deferredSegments[0];
+            deferredSegments[0] = null;
+        }
+        
+        if (l_deferredSegments != null && !l_deferredSegments.isEmpty())
+        {
+            // only the latest version of each deferred tile gets sent once re-requested
+            if (pushMode)
+            {
+                pushSegments(l_deferredSegments);
+            }
+            else
+            {
+                sendEvent(SERVER_EVENT.SCREEN_SEGMENT_CHANGED, l_deferredSegments);
+            }
+        }
+    }
+    
+    public void setPushMode(boolean enabled)
+    {
+        pushMode = enabled;
+    }
+    
+    public boolean isPushMode()
+    {
+        return pushMode;
+    }
+    
+    /**
+     * Collects changed segments into a single pending push transaction.
+     * Segments that change again before the transaction runs are only sent once.
+     * 
+     * @param changedSegments
+     */
+    private void pushSegments(FixedLengthBitSet changedSegments)
+    {
+        boolean dispatch;
+        
+        synchronized(pendingPush)
+        {
+            FixedLengthBitSet l_pendingPush = pendingPush[0];
+            if (l_pendingPush == null)
+            {
+                l_pendingPush = sparePush;
+                sparePush = null;
+                if (l_pendingPush == null || l_pendingPush.length != changedSegments.length)
+                {
+                    l_pendingPush = changedSegments.clone();
+                }
+                else
+                {
+                    l_pendingPush.copyFrom(changedSegments);
+                }
+                pendingPush[0] = l_pendingPush;
+                dispatch = Boolean.TRUE;
+            }
+            else
+            {
+                l_pendingPush.or(changedSegments);
+                dispatch = Boolean.FALSE;
+            }
+        }
+        
+        if (dispatch)
+        {
+            dispatchTransaction(pushAction);
+        }
+    }
+    
+    private Runnable pushAction = new Runnable()
+    {
+        
+        @Override
+        public void run()
+        {
+            FixedLengthBitSet flbs;
+            
+            synchronized(pendingPush)
+            {
+                flbs = pendingPush[0];
+                pendingPush[0] = null;
+            }
+            
+            if (flbs == null || dying)
+            {
+                return;
+            }
+            
+            // tiles past the flow control budget are deferred by their
+            // TileSend and pushed again on acknowledgement
+            try
+            {
+                for (int segmentID = flbs.nextSetBit(0); segmentID >= 0; segmentID = flbs.nextSetBit(segmentID + 1))
+                {
+                    sendTile(segmentID, getSegment(segmentID));
+                }
+            }
+            finally {
+                synchronized(pendingPush)
+                {
+                    sparePush = flbs;
+                }
+                sendEndOfFrame(requestsAnswered);
+            }
+        }
+        
+    };
+    
+    private static Integer boxSegmentID(Monitor monitor, int segmentID)
+    {
+        return (monitor == null) ? Integer.valueOf(segmentID) : monitor.boxSegmentID(segmentID);
+    }
+    
+    /**
+     * Queues the requested segments to be sent followed by END_OF_FRAME.
+     * Requests overlapping one that has not been served yet are merged into it.
+     * 
+     * @param flbs
+     */
+    public void requestSegments(FixedLengthBitSet flbs)
+    {
+        boolean dispatch;
+        
+        synchronized(requestedSegments)
+        {
+            requestsReceived++;
+            FixedLengthBitSet l_requestedSegments = requestedSegments[0];
+            if (l_requestedSegments == null)
+            {
+                requestedSegments[0] = flbs;
+                dispatch = Boolean.TRUE;
+            }
+            else
+            {
+                l_requestedSegments.or(flbs);
+                dispatch = Boolean.FALSE;
+            }
+        }
+        
+        if (dispatch)
+        {
+            dispatchTransaction(requestAction);
+        }
+    }
+    
+    private Runnable requestAction = new Runnable()
+    {
+        
+        @Override
+        public void run()
+        {
+            FixedLengthBitSet flbs;
+            int answered;
+            
+            synchronized(requestedSegments)
+            {
+                flbs = requestedSegments[0];
+                requestedSegments[0] = null;
+                answered = requestsReceived;
+            }
+            
+            if (flbs == null)
+            {
+                return;
+            }
+            
+            subscribe(flbs);
+            try
+            {
+                for (int segmentID = flbs.nextSetBit(0); segmentID >= 0; segmentID = flbs.nextSetBit(segmentID + 1))
+                {
+                    sendTile(segmentID, getSegment(segmentID));
+                }
+            }
+            finally {
+                requestsAnswered = answered;
+                sendEndOfFrame(answered);
+            }
+        }
+        
+    };
+    
+    /**
+     * @return true iff. screen updates are streamed from the monitor's frame ring
+     */
+    public boolean isBroadcastViewer()
+    {
+        return accessMode == ACCESS_MODE.VIEW_ONLY && FrameRing.isEnabled();
+    }
+    
+    /**
+     * Called by the monitor once a frame is in its ring, frames published
+     * before the stream gets to run are sent by the same transaction.
+     */
+    public void onFramePublished()
+    {
+        boolean dispatch;
+        
+        synchronized(streamPending)
+        {
+            dispatch = !streamPending[0];
+            streamPending[0] = Boolean.TRUE;
+        }
+        
+        if (dispatch)
+        {
+            dispatchTransaction(streamAction);
+        }
+    }
+    
+    private Runnable streamAction = new Runnable()
+    {
+        
+        @Override
+        public void run()
+        {
+            FrameRing.Frame frame;
+            
+            synchronized(streamPending)
+            {
+                streamPending[0] = Boolean.FALSE;
+            }
+            
+            Monitor monitor = getMonitor();
+            FrameRing frameRing = (monitor == null) ? null : monitor.getFrameRing();
+            
+            if (frameRing == null)
+            {
+                return;
+            }
+            
+            // past the flow control or queue budget the stream stops here and
+            // is resumed on acknowledgement, possibly from a later keyframe
+            while (!dying && hasCredit() && !isOverQueueBudget(0L) && (frame = frameRing.acquire(ringCursor)) != null)
+            {
+                try
+                {
+                    sendFrame(frame, frame.serial != ringCursor);
+                }
+                finally {
+                    frame.release();
+                }
+                ringCursor = frame.serial + 1;
+            }
+        }
+        
+    };
+    
+    /**
+     * Writes a frame from the ring followed by its END_OF_FRAME.
+     * 
+     * @param frame
+     * @param resync true to send every tile of a keyframe
+     */
+    private void sendFrame(FrameRing.Frame frame, boolean resync)
+    {
+        boolean killSelf = true;
+        
+        try
+        {
+            try
+            {
+                sendSema.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                LLog.e(e);
+            }
+            try
+            {
+                checkDraining();
+                boolean recording = isRecordingVersions();
+                for (int segmentID = frame.nextTile(0, resync); segmentID >= 0; segmentID = frame.nextTile(segmentID + 1, resync))
+                {
+                    Msg.send(out, frame.getTile(segmentID));
+                    if (recording)
+                    {
+                        recordSentSegment(segmentID, frame.getVersion(segmentID));
+                    }
+                }
+                nts_writeEndOfFrame(requestsAnswered);
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                LLog.e(e);
+            }
+            finally {
+                sendSema.release();
+            }
+            killSelf = false;
+        }
+        finally {
+            if (killSelf)
+            {
+                kill();
+            }
+        }
+        schedulePing();
+    }
+    
+    public GraphicsSegment getSegment(int segmentID)
+	{
+	    return Manager.getInstance().getSegment(screenSource, segmentID);
+	}
+	
+	/**
+	 * @return null unless the bound screen is local, input cannot be
+	 *         replayed onto a relayed screen
+	 */
+	public DirectRobot getDirbot()
+	{
+	    ScreenSource l_screenSource = screenSource;
+	    
+	    return (l_screenSource instanceof DirectRobot) ? ((DirectRobot) l_screenSource) : null;
+	}
+	
+	public void handleEventAck(SERVER_EVENT ackForEvent, Object[] refStack, int idxSegmentID)
+	{
+	    int tTid = getNonSerialTID(ackForEvent, refStack, idxSegmentID);
+	    int idx;
+        Exception firstE = null;
+	    int drained;
+	    SERVER_EVENT hiddenAckEvt;
+	    Object[] args;
+	    JitCompressedEvent jce;
+	    
+	    try
+        {
+            handleIOSema.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            LLog.e(e);
+        }
+	    try
+	    {
+    	    drained = nonSerialEventQueue.acknowledge(tTid);
+            for (idx=0; idx<drained; idx++)
+            {
+                hiddenAckEvt = nonSerialEventQueue.getDrainedEvent(idx);
+                jce = nonSerialEventQueue.takeDrainedJce(idx);
+                args = nonSerialEventQueue.takeDrainedArgs(idx);
                 
                 // flush deferred queue contents
                 if (firstE == null)
@@ -972,8 +2133,6 @@ public class ClientHandler extends Thread
             {
                 throw new RuntimeException(firstE);
             }
-            
-            assert_(plist.size() == idx);
 	    }
 	    finally {
 	        handleIOSema.release();
@@ -1013,11 +2172,7 @@ public class ClientHandler extends Thread
 			{
 				return;
 			}
-			Monitor monitor;
-			synchronized(monitorRef)
-			{
-				monitor = (monitorRef[0] == null) ? null : (Monitor) monitorRef[0].get();
-			}
+			Monitor monitor = getMonitor();
 			if (monitor == null) {
 				if (DEBUG) {LLog.w("Instance not bound to a monitor");}
 				return;
@@ -1046,6 +2201,8 @@ public class ClientHandler extends Thread
 					((Monitor) oldMonitor).setPaused(true);
 				}
 				monitorRef[0] = new WeakReference<Monitor>(monitor);
+				// a cursor into the previous monitor's ring means nothing here
+				ringCursor = -1L;
 			}
 			if (!l_paused)
 			{
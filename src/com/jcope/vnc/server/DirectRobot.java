@@ -28,7 +28,7 @@ import sun.awt.ComponentFactory;
 import com.jcope.debug.LLog;
 import com.jcope.vnc.shared.ScreenInfo;
 
-public final class DirectRobot
+public final class DirectRobot implements ScreenSource
 {
     public final GraphicsDevice device;
     public final Robot robot;
@@ -357,11 +357,21 @@ public final class DirectRobot
 		return getMouseInfo(null);
 	}
 	
+	public GraphicsDevice getDevice()
+	{
+	    return device;
+	}
+	
 	public Rectangle getScreenBounds()
 	{
 	    return ScreenInfo.getScreenBounds(device);
 	}
 	
+	public boolean getCursorLocation(Point point)
+	{
+	    return getMouseInfo(point) == device;
+	}
+	
 	public void mouseMove(int x, int y)
 	{
 	    mouseMove(x, y, 0, 0);
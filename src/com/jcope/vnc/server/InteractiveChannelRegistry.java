@@ -0,0 +1,63 @@
+package com.jcope.vnc.server;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * 
+ * Hands out single use tokens that let a second connection attach
+ * itself to an authorized client as that client's interactive channel.
+ * 
+ */
+
+public class InteractiveChannelRegistry
+{
+    private static final SecureRandom random = new SecureRandom();
+    private static final HashMap<Long, ClientHandler> ownerPerToken = new HashMap<Long, ClientHandler>();
+    
+    public static long issue(ClientHandler owner)
+    {
+        Long token;
+        
+        synchronized(ownerPerToken)
+        {
+            do
+            {
+                token = Long.valueOf(random.nextLong());
+            } while (ownerPerToken.containsKey(token));
+            ownerPerToken.put(token, owner);
+        }
+        
+        return token;
+    }
+    
+    /**
+     * @param token
+     * @return the client the token was issued to or null when unknown,
+     *         a token can only be redeemed once
+     */
+    public static ClientHandler redeem(long token)
+    {
+        synchronized(ownerPerToken)
+        {
+            return ownerPerToken.remove(Long.valueOf(token));
+        }
+    }
+    
+    public static void revoke(ClientHandler owner)
+    {
+        synchronized(ownerPerToken)
+        {
+            Iterator<Entry<Long, ClientHandler>> iterator = ownerPerToken.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                if (iterator.next().getValue() == owner)
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
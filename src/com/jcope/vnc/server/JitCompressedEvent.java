@@ -1,10 +1,15 @@
 package com.jcope.vnc.server;
 
+import static com.jcope.debug.Debug.assert_;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jcope.debug.LLog;
-import com.jcope.vnc.shared.ByteBufferPool;
+import com.jcope.debug.LeakDetector;
+import com.jcope.vnc.shared.DirectByteBufferPool;
 import com.jcope.vnc.shared.JitCompressable;
 import com.jcope.vnc.shared.Msg;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
@@ -16,23 +21,53 @@ public class JitCompressedEvent implements JitCompressable
     private static final ArrayList<JitCompressedEvent> objPool = new  ArrayList<JitCompressedEvent>();
     
     private final Semaphore readSyncLock;
-    private final Semaphore releaseSyncLock;
     
     // Must have a local refcount
     // using BufferPool ref's refCount is NOT an option
     // this counter is for the container (which serves git compressed instances)
-    private volatile int refCount;
+    // zero while pooled so acquiring a released instance is caught
+    private final AtomicInteger refCount = new AtomicInteger(0);
+    private volatile LeakDetector.Handle leakHandle;
     
-    private volatile ByteBufferPool.PoolRef ref;
+    private volatile DirectByteBufferPool.PoolRef ref;
     private volatile SERVER_EVENT event;
     private volatile Object[] args;
     
     private final Runnable onDestroy;
     
+    /**
+     * Read-only views of a pooled buffer, attached to it so they serve
+     * whichever event is encoded into it next.
+     */
+    private static final class Views
+    {
+        private final ArrayList<ByteBuffer> free = new ArrayList<ByteBuffer>();
+        
+        synchronized ByteBuffer take(ByteBuffer buffer)
+        {
+            ByteBuffer rval;
+            
+            if (free.isEmpty())
+            {
+                // Each reader gets its own position/limit over the shared direct buffer
+                return buffer.asReadOnlyBuffer();
+            }
+            rval = free.remove(free.size()-1);
+            rval.limit(buffer.limit());
+            rval.position(buffer.position());
+            
+            return rval;
+        }
+        
+        synchronized void recycle(ByteBuffer view)
+        {
+            free.add(view);
+        }
+    }
+    
     private JitCompressedEvent()
     {
         readSyncLock = new Semaphore(1, true);
-        releaseSyncLock = new Semaphore(1, true);
         reset();
         onDestroy = new Runnable() {
 
@@ -47,7 +82,6 @@ public class JitCompressedEvent implements JitCompressable
     
     private void reset()
     {
-        refCount = 1;
         ref = null;
         event = null;
         args = null;
@@ -107,60 +141,63 @@ public class JitCompressedEvent implements JitCompressable
         
         rval.event = event;
         rval.args = args;
+        rval.leakHandle = LeakDetector.track(rval, event);
+        rval.refCount.set(1);
         
         return rval;
     }
     
     public void acquire()
     {
-        refCount++;
+        int count;
+        
+        do
+        {
+            count = refCount.get();
+            assert_(count > 0, "acquired a released JitCompressedEvent");
+        } while (!refCount.compareAndSet(count, count + 1));
     }
     
     public void release()
     {
+        int count = refCount.decrementAndGet();
+        
+        if (count > 0)
+        {
+            return;
+        }
+        assert_(count == 0, "released a JitCompressedEvent once too often");
+        
+        LeakDetector.untrack(leakHandle);
+        leakHandle = null;
+        if (ref != null)
+        {
+            ref.release();
+        }
+        reset();
         try
         {
-            releaseSyncLock.acquire();
+            poolSyncLock.acquire();
         }
         catch (InterruptedException e)
         {
             LLog.e(e);
         }
-        
         try
         {
-            if ((--refCount) <= 0)
-            {
-                if (ref != null)
-                {
-                    ref.release();
-                }
-                reset();
-                try
-                {
-                    poolSyncLock.acquire();
-                }
-                catch (InterruptedException e)
-                {
-                    LLog.e(e);
-                }
-                try
-                {
-                    synchronized(objPool) {
-                        objPool.add(this);
-                    }
-                }
-                finally {
-                    poolSyncLock.release();
-                }
+            synchronized(objPool) {
+                objPool.add(this);
             }
         }
         finally {
-            releaseSyncLock.release();
+            poolSyncLock.release();
         }
     }
 
-    public byte[] getCompressed()
+    /**
+     * Encodes the event unless it was already.
+     */
+    public void compress()
     {
         if (ref == null)
         {
@@ -177,15 +214,40 @@ public class JitCompressedEvent implements JitCompressable
             {
                 if (ref == null)
                 {
-                    ref = Msg.getCompressed(event, args);
+                    DirectByteBufferPool.PoolRef l_ref = Msg.getCompressed(event, args);
+                    if (l_ref != null && !(l_ref.getAttachment() instanceof Views))
+                    {
+                        l_ref.setAttachment(new Views());
+                    }
+                    ref = l_ref;
                 }
             }
             finally {
                 readSyncLock.release();
             }
         }
+    }
+
+    public ByteBuffer getCompressed()
+    {
+        compress();
+        
+        return ((Views) ref.getAttachment()).take(ref.get());
+    }
+    
+    public void recycle(ByteBuffer view)
+    {
+        ((Views) ref.getAttachment()).recycle(view);
+    }
+    
+    /**
+     * @return the size of the pooled encoding, 0 until first compressed
+     */
+    public int getPooledBytes()
+    {
+        DirectByteBufferPool.PoolRef l_ref = ref;
         
-        return ref.get();
+        return (l_ref == null) ? 0 : l_ref.length();
     }
     
     public SERVER_EVENT getEvent()
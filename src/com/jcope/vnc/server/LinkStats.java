@@ -0,0 +1,133 @@
+package com.jcope.vnc.server;
+
+import com.jcope.vnc.shared.FrameChannel;
+
+/**
+ * Smoothed link quality estimates for one client connection.
+ *
+ * RTT follows the RFC 6298 estimator over PING/PONG samples.
+ * The write rate is measured passively from the time each frame takes from
+ * its first write to the socket to its last (an upper bound while the
+ * socket never pushes back), the delivery rate from the byte counts the
+ * client acknowledges.
+ */
+public class LinkStats implements FrameChannel.WriteListener
+{
+    public static final long PING_INTERVAL_MS = 1000L;
+
+    private static final double RTT_ALPHA = 1.0 / 8.0;
+    private static final double RTT_BETA = 1.0 / 4.0;
+    private static final double RATE_GAIN = 1.0 / 4.0;
+    private static final long MIN_RATE_SAMPLE_NS = 50L * 1000L * 1000L;
+
+    private long srttNanos = -1L;
+    private long rttvarNanos = 0L;
+    private long minRttNanos = Long.MAX_VALUE;
+
+    private long pendingWriteBytes = 0L;
+    private long pendingWriteNanos = 0L;
+    private double writeRate = 0.0;
+
+    private long lastAckedBytes = -1L;
+    private long lastAckNanos = 0L;
+    private double deliveryRate = 0.0;
+
+    public synchronized void onRttSample(long rttNanos)
+    {
+        if (rttNanos < 0)
+        {
+            return;
+        }
+        if (rttNanos < minRttNanos)
+        {
+            minRttNanos = rttNanos;
+        }
+        if (srttNanos < 0)
+        {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+        }
+        else
+        {
+            rttvarNanos += (long) (RTT_BETA * (Math.abs(srttNanos - rttNanos) - rttvarNanos));
+            srttNanos += (long) (RTT_ALPHA * (rttNanos - srttNanos));
+        }
+    }
+
+    @Override
+    public synchronized void onWrite(long bytes, long elapsedNanos)
+    {
+        if (bytes <= 0)
+        {
+            return;
+        }
+        pendingWriteBytes += bytes;
+        pendingWriteNanos += Math.max(1L, elapsedNanos);
+        if (pendingWriteNanos >= MIN_RATE_SAMPLE_NS)
+        {
+            writeRate = smooth(writeRate, (pendingWriteBytes * 1e9) / pendingWriteNanos);
+            pendingWriteBytes = 0L;
+            pendingWriteNanos = 0L;
+        }
+    }
+
+    public synchronized void onAck(long totalBytesAcked, long nowNanos)
+    {
+        long elapsedNanos;
+
+        if (lastAckedBytes >= 0 && totalBytesAcked > lastAckedBytes && (elapsedNanos = nowNanos - lastAckNanos) > 0)
+        {
+            deliveryRate = smooth(deliveryRate, ((totalBytesAcked - lastAckedBytes) * 1e9) / elapsedNanos);
+        }
+        if (totalBytesAcked >= lastAckedBytes)
+        {
+            lastAckedBytes = totalBytesAcked;
+            lastAckNanos = nowNanos;
+        }
+    }
+
+    private static double smooth(double current, double sample)
+    {
+        return (current <= 0.0) ? sample : (current + RATE_GAIN * (sample - current));
+    }
+
+    /**
+     * @return smoothed round trip time in ms or -1 when no sample has been taken
+     */
+    public synchronized double getSmoothedRTTMillis()
+    {
+        return (srttNanos < 0) ? -1.0 : (srttNanos / 1e6);
+    }
+
+    public synchronized double getRTTVarianceMillis()
+    {
+        return (srttNanos < 0) ? -1.0 : (rttvarNanos / 1e6);
+    }
+
+    public synchronized double getMinRTTMillis()
+    {
+        return (minRttNanos == Long.MAX_VALUE) ? -1.0 : (minRttNanos / 1e6);
+    }
+
+    /**
+     * @return bytes per second the socket accepted while being written to
+     */
+    public synchronized double getWriteRate()
+    {
+        return writeRate;
+    }
+
+    /**
+     * @return bytes per second the client acknowledged as consumed
+     */
+    public synchronized double getDeliveryRate()
+    {
+        return deliveryRate;
+    }
+
+    public synchronized String toString()
+    {
+        return String.format("srtt=%.1fms rttvar=%.1fms minrtt=%.1fms write=%.1fKB/s delivered=%.1fKB/s",
+                getSmoothedRTTMillis(), getRTTVarianceMillis(), getMinRTTMillis(), writeRate / 1024.0, deliveryRate / 1024.0);
+    }
+}
@@ -0,0 +1,205 @@
+package com.jcope.vnc.server;
+
+import java.util.Arrays;
+
+import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
+
+/**
+ *
+ * Non-serial events sent to a client and not yet acknowledged, along with
+ * the latest version of each that is held back until they are.
+ *
+ * Indexed by the non-serial TID, the event ordinal or for a screen segment
+ * past the last ordinal its segment ID, so superseding an event only
+ * overwrites a slot. Acknowledgements arrive in the order the events were
+ * sent, which is kept in a ring of TIDs.
+ *
+ * Acknowledged events with a held back version are moved to a drain
+ * owned by the one thread acknowledging at a time (ClientHandler holds
+ * handleIOSema) which sends them on.
+ *
+ */
+
+class NonSerialEventQueue
+{
+    private SERVER_EVENT[] outbound;
+    private boolean[] hasDeferred;
+    private JitCompressedEvent[] deferredJce;
+    private Object[][] deferredArgs;
+
+    private int[] order;
+    private int orderHead = 0;
+    private int orderSize = 0;
+
+    private int drainSize = 0;
+    private SERVER_EVENT[] drainEvent;
+    private JitCompressedEvent[] drainJce;
+    private Object[][] drainArgs;
+
+    NonSerialEventQueue(int capacity)
+    {
+        outbound = new SERVER_EVENT[capacity];
+        hasDeferred = new boolean[capacity];
+        deferredJce = new JitCompressedEvent[capacity];
+        deferredArgs = new Object[capacity][];
+        order = new int[capacity];
+        drainEvent = new SERVER_EVENT[capacity];
+        drainJce = new JitCompressedEvent[capacity];
+        drainArgs = new Object[capacity][];
+    }
+
+    /**
+     * Only ever allocates for a TID past the initial capacity.
+     *
+     * @param tid
+     */
+    private void ensureCapacity(int tid)
+    {
+        if (tid < outbound.length)
+        {
+            return;
+        }
+
+        int capacity = Math.max(tid + 1, outbound.length * 2);
+        int[] l_order = order;
+
+        outbound = Arrays.copyOf(outbound, capacity);
+        hasDeferred = Arrays.copyOf(hasDeferred, capacity);
+        deferredJce = Arrays.copyOf(deferredJce, capacity);
+        deferredArgs = Arrays.copyOf(deferredArgs, capacity);
+        // the drain may be half way through being sent on
+        drainEvent = Arrays.copyOf(drainEvent, capacity);
+        drainJce = Arrays.copyOf(drainJce, capacity);
+        drainArgs = Arrays.copyOf(drainArgs, capacity);
+        order = new int[capacity];
+        for (int i=0; i<orderSize; i++)
+        {
+            order[i] = l_order[(orderHead + i) % l_order.length];
+        }
+        orderHead = 0;
+    }
+
+    public synchronized boolean isOutstanding(int tid)
+    {
+        return tid < outbound.length && outbound[tid] != null;
+    }
+
+    public synchronized void markOutstanding(int tid, SERVER_EVENT event)
+    {
+        ensureCapacity(tid);
+        outbound[tid] = event;
+        order[(orderHead + orderSize) % order.length] = tid;
+        orderSize++;
+    }
+
+    /**
+     * Holds back a version of an outstanding event, a mutable one replaces
+     * the version already held back, otherwise the first one is kept.
+     *
+     * @param tid
+     * @param jce acquired when held back
+     * @param args
+     * @param isMutable
+     */
+    public synchronized void defer(int tid, JitCompressedEvent jce, Object[] args, boolean isMutable)
+    {
+        if (hasDeferred[tid])
+        {
+            if (!isMutable)
+            {
+                return;
+            }
+            JitCompressedEvent jce2 = deferredJce[tid];
+            if (jce2 != null)
+            {
+                jce2.release();
+            }
+        }
+        hasDeferred[tid] = Boolean.TRUE;
+        deferredJce[tid] = jce;
+        deferredArgs[tid] = args;
+        if (jce != null)
+        {
+            jce.acquire();
+        }
+    }
+
+    /**
+     * Retires every event sent up to and including tid, moving the versions
+     * held back for them to the drain.
+     *
+     * @param tid
+     * @return the number of drained events
+     */
+    public synchronized int acknowledge(int tid)
+    {
+        int ackTid;
+
+        drainSize = 0;
+        while (orderSize > 0)
+        {
+            ackTid = order[orderHead];
+            orderHead = (orderHead + 1) % order.length;
+            orderSize--;
+            if (hasDeferred[ackTid])
+            {
+                drainEvent[drainSize] = outbound[ackTid];
+                drainJce[drainSize] = deferredJce[ackTid];
+                drainArgs[drainSize] = deferredArgs[ackTid];
+                drainSize++;
+                hasDeferred[ackTid] = Boolean.FALSE;
+                deferredJce[ackTid] = null;
+                deferredArgs[ackTid] = null;
+            }
+            outbound[ackTid] = null;
+            if (ackTid == tid)
+            {
+                break;
+            }
+        }
+
+        return drainSize;
+    }
+
+    public SERVER_EVENT getDrainedEvent(int idx)
+    {
+        return drainEvent[idx];
+    }
+
+    /**
+     * @param idx
+     * @return the drained event's acquired jce, the caller releases it
+     */
+    public JitCompressedEvent takeDrainedJce(int idx)
+    {
+        JitCompressedEvent rval = drainJce[idx];
+        drainJce[idx] = null;
+
+        return rval;
+    }
+
+    public Object[] takeDrainedArgs(int idx)
+    {
+        Object[] rval = drainArgs[idx];
+        drainEvent[idx] = null;
+        drainArgs[idx] = null;
+
+        return rval;
+    }
+
+    /**
+     * Releases every held back version.
+     */
+    public synchronized void releaseDeferred()
+    {
+        for (int tid=0; tid<hasDeferred.length; tid++)
+        {
+            JitCompressedEvent jce = deferredJce[tid];
+            if (jce != null)
+            {
+                deferredJce[tid] = null;
+                jce.release();
+            }
+        }
+    }
+}
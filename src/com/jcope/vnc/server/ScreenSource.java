@@ -0,0 +1,39 @@
+package com.jcope.vnc.server;
+
+import java.awt.GraphicsDevice;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/**
+ *
+ * Pixels and cursor of one screen as sampled by a Monitor.
+ *
+ * DirectRobot grabs them from a local graphics device, a relay
+ * reads them from the frames of an upstream server.
+ *
+ */
+
+public interface ScreenSource
+{
+    public GraphicsDevice getDevice();
+
+    public Rectangle getScreenBounds();
+
+    /**
+     * Invalidates any pixels cached since the last scan.
+     */
+    public void markRGBCacheDirty();
+
+    /**
+     * @return true iff. the efficient method of getting pixels was used
+     */
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels);
+
+    public int[] getRGBPixels();
+
+    /**
+     * @param point receives the cursor location relative to this screen
+     * @return true iff. the cursor is on this screen
+     */
+    public boolean getCursorLocation(Point point);
+}
@@ -0,0 +1,173 @@
+package com.jcope.vnc.server;
+
+import java.awt.GraphicsDevice;
+import java.lang.ref.WeakReference;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+import com.jcope.vnc.server.screen.Monitor;
+
+/**
+ *
+ * Keeps what each session last sent around for SESSION_RETENTION after its
+ * connection drops, so a reconnecting client only has to be sent the
+ * segments that changed since the last frame it applied.
+ *
+ * A session remembers, for the last few frames, the segment versions the
+ * client held once that frame's END_OF_FRAME was written.
+ *
+ */
+
+public class SessionRegistry
+{
+    private static final long RETENTION_MS;
+    private static final int MAX_RETAINED_FRAMES = 16;
+    private static final SecureRandom random = new SecureRandom();
+    private static final HashMap<Long, Session> sessionPerToken = new HashMap<Long, Session>();
+
+    static
+    {
+        Long retention = (Long) SERVER_PROPERTIES.SESSION_RETENTION.getValue();
+        RETENTION_MS = (retention == null) ? 0L : Math.max(0L, retention);
+    }
+
+    public static class Session
+    {
+        public final long token;
+        private final GraphicsDevice graphicsDevice;
+        private final WeakReference<Monitor> monitorRef;
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        @SuppressWarnings("serial")
+        private final LinkedHashMap<Integer, long[]> frames = new LinkedHashMap<Integer, long[]>(MAX_RETAINED_FRAMES + 1) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest)
+            {
+                return size() > MAX_RETAINED_FRAMES;
+            }
+
+        };
+
+        private Session(long token, GraphicsDevice graphicsDevice, Monitor monitor)
+        {
+            this.token = token;
+            this.graphicsDevice = graphicsDevice;
+            this.monitorRef = new WeakReference<Monitor>(monitor);
+        }
+
+        public boolean isFor(GraphicsDevice graphicsDevice)
+        {
+            return this.graphicsDevice == graphicsDevice;
+        }
+
+        /**
+         * @param frameSerial
+         * @param segmentVersions owned by the session from now on
+         */
+        public void recordFrame(int frameSerial, long[] segmentVersions)
+        {
+            synchronized(frames)
+            {
+                frames.put(frameSerial, segmentVersions);
+            }
+        }
+
+        /**
+         * @param monitor
+         * @param frameSerial
+         * @return the segment versions the client held after frameSerial or
+         *         null if that frame is no longer retained or the versions
+         *         were not taken from monitor
+         */
+        public long[] getBaseline(Monitor monitor, int frameSerial)
+        {
+            if (monitorRef.get() != monitor)
+            {
+                return null;
+            }
+            synchronized(frames)
+            {
+                return frames.get(frameSerial);
+            }
+        }
+    }
+
+    public static boolean isEnabled()
+    {
+        return RETENTION_MS > 0;
+    }
+
+    public static long getRetentionMS()
+    {
+        return RETENTION_MS;
+    }
+
+    public static Session issue(GraphicsDevice graphicsDevice, Monitor monitor)
+    {
+        Session rval;
+        Long token;
+
+        synchronized(sessionPerToken)
+        {
+            purge();
+            do
+            {
+                token = Long.valueOf(random.nextLong());
+            } while (sessionPerToken.containsKey(token));
+            rval = new Session(token, graphicsDevice, monitor);
+            sessionPerToken.put(token, rval);
+        }
+
+        return rval;
+    }
+
+    /**
+     * Starts the retention period of a session whose connection is gone.
+     *
+     * @param session
+     */
+    public static void retain(Session session)
+    {
+        session.expiresAt = System.currentTimeMillis() + RETENTION_MS;
+    }
+
+    public static void remove(Session session)
+    {
+        synchronized(sessionPerToken)
+        {
+            sessionPerToken.remove(Long.valueOf(session.token));
+        }
+    }
+
+    /**
+     * @param token
+     * @return the retained session or null when unknown or expired,
+     *         a session can only be resumed once
+     */
+    public static Session redeem(long token)
+    {
+        synchronized(sessionPerToken)
+        {
+            purge();
+            return sessionPerToken.remove(Long.valueOf(token));
+        }
+    }
+
+    private static void purge()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = sessionPerToken.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().expiresAt <= now)
+            {
+                iterator.remove();
+            }
+        }
+    }
+}
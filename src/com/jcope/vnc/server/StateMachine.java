@@ -1,7 +1,5 @@
 package com.jcope.vnc.server;
 
-import java.util.ArrayList;
-
 import com.jcope.debug.LLog;
 import com.jcope.vnc.server.input.Handler;
 import com.jcope.vnc.shared.Msg;
@@ -39,7 +37,7 @@ public class StateMachine
 		Handler.getInstance().handle(client, event, args);
 	}
 	
-    public static void handleServerEvent(final ClientHandler notThiz, ArrayList<ClientHandler> clients, JitCompressedEvent jce, SERVER_EVENT event)
+    public static void handleServerEvent(final ClientHandler notThiz, ClientHandler[] clients, JitCompressedEvent jce, SERVER_EVENT event)
     {
         for (ClientHandler client : clients)
         {
@@ -50,14 +48,14 @@ public class StateMachine
         }
     }
     
-    public static void handleServerEvent(ArrayList<ClientHandler> clients, SERVER_EVENT event)
+    public static void handleServerEvent(ClientHandler[] clients, SERVER_EVENT event)
     {
         handleServerEvent(clients, event, (Object[]) null);
     }
     
-    public static void handleServerEvent(ArrayList<ClientHandler> clients, SERVER_EVENT event, Object... args)
+    public static void handleServerEvent(ClientHandler[] clients, SERVER_EVENT event, Object... args)
     {
-        if (clients.size() > 1)
+        if (clients.length > 1)
         {
             JitCompressedEvent jce = JitCompressedEvent.getInstance(event, args);
             try
@@ -9,9 +9,12 @@ import java.awt.datatransfer.Clipboard;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -26,6 +29,7 @@ import com.jcope.util.ClipboardMonitor.ClipboardListener;
 import com.jcope.vnc.Server;
 import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.screen.Manager;
+import com.jcope.vnc.shared.MsgCache;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
 public class VncServer implements Runnable
@@ -39,7 +43,7 @@ public class VncServer implements Runnable
 	private int listenBacklog, serverPort;
 	private ArrayList<ClientHandler> clientList = new ArrayList<ClientHandler>();
 	
-	ServerSocket serverSocket;
+	ServerSocketChannel serverSocket;
 	
 	private Semaphore stageLock = new Semaphore(1, true);
     private volatile Object[] stagedArgs;
@@ -185,8 +189,37 @@ public class VncServer implements Runnable
         GarbageUtil.cleanAllAsynchronously(stageLock, clientList);
     }
     
+    private Runnable logStatsAction = new Runnable()
+    {
+        
+        @Override
+        public void run()
+        {
+            for (ClientHandler client : clientList)
+            {
+                LLog.i(client.getStats());
+            }
+            LLog.i(MsgCache.getBufferPool().getStats());
+        }
+        
+    };
+    
     public void run()
 	{
+        Long statsLogPeriod = (Long) Server.SERVER_PROPERTIES.STATS_LOG_PERIOD.getValue();
+        if (statsLogPeriod != null)
+        {
+            new Timer("Server stats", true).schedule(new TimerTask() {
+                
+                @Override
+                public void run()
+                {
+                    withLock(logStatsAction);
+                }
+                
+            }, statsLogPeriod, statsLogPeriod);
+        }
+        
         if (((Boolean)Server.SERVER_PROPERTIES.SUPPORT_CLIPBOARD_SYNCHRONIZATION.getValue()))
         {
             ClipboardMonitor.getInstance().addListener(new ClipboardListener(){
@@ -204,20 +237,21 @@ public class VncServer implements Runnable
 		{
 			try
 			{
+				serverSocket = ServerSocketChannel.open();
 				if (serverBindAddress == null)
 				{
-					serverSocket = new ServerSocket(serverPort, listenBacklog);
+					serverSocket.socket().bind(new InetSocketAddress(serverPort), listenBacklog);
 				}
 				else
 				{
-					serverSocket = new ServerSocket(serverPort, listenBacklog, serverBindAddress); 
+					serverSocket.socket().bind(new InetSocketAddress(serverBindAddress, serverPort), listenBacklog); 
 				}
 				if (_DEBUG) System.out.println("Waiting for connections!");
 				ClientHandler newClient;
 				while (true)
 				{
 					newClient = null;
-					Socket socket = serverSocket.accept();
+					SocketChannel socket = serverSocket.accept();
 					if (_DEBUG) System.out.println("Got a new connection!");
 					if (socket != null)
 					{
@@ -0,0 +1,165 @@
+package com.jcope.vnc.server;
+
+import java.util.concurrent.Executor;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+
+/**
+ *
+ * The WORKER_THREADS threads every ClientHandler's dispatchers run on as
+ * strands, so sending adds no thread per client connected, only the
+ * thread reading each client's input remains its own.
+ *
+ * Workers write frames for as long as a client's socket takes them. Once it
+ * pushes back the rest are parked with the FrameSelector, whose one thread
+ * finishes them for every client, so a viewer that stops reading holds its
+ * queued frames but no thread. Tile updates stop once MAX_BYTES_IN_FLIGHT
+ * bytes are unacknowledged, the bytes still parked included, which keeps
+ * that queue short.
+ *
+ * Strands wait for a worker in a ring of the pool's own, grown but never
+ * shrunk, and idle workers wait on the pool's monitor, so scheduling a
+ * strand allocates nothing, unlike the linked queue of a ThreadPoolExecutor.
+ *
+ */
+
+public class WorkerPool
+{
+    private static volatile Executor executor = null;
+
+    public static Executor getExecutor()
+    {
+        Executor rval = executor;
+
+        if (rval == null)
+        {
+            synchronized(WorkerPool.class)
+            {
+                rval = executor;
+                if (rval == null)
+                {
+                    rval = newExecutor();
+                    executor = rval;
+                }
+            }
+        }
+
+        return rval;
+    }
+
+    private static Executor newExecutor()
+    {
+        Integer size = (Integer) SERVER_PROPERTIES.WORKER_THREADS.getValue();
+        int nThreads = (size == null || size <= 0) ? Math.max(4, 2 * Runtime.getRuntime().availableProcessors()) : size;
+        Workers rval = new Workers();
+
+        for (int i=0; i<nThreads; i++)
+        {
+            Thread thread = new Thread(rval, String.format("Client worker %d", i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return rval;
+    }
+
+    private static class Workers implements Executor, Runnable
+    {
+        // guarded by this
+        private Runnable[] queue = new Runnable[64];
+        private int head = 0;
+        private int size = 0;
+        private int idle = 0;
+
+        @Override
+        public void execute(Runnable command)
+        {
+            synchronized(this)
+            {
+                if (size == queue.length)
+                {
+                    grow();
+                }
+                queue[(head + size) % queue.length] = command;
+                size++;
+                if (idle > 0)
+                {
+                    notify();
+                }
+            }
+        }
+
+        private void grow()
+        {
+            Runnable[] tmp = new Runnable[queue.length * 2];
+
+            for (int i=0; i<size; i++)
+            {
+                tmp[i] = queue[(head + i) % queue.length];
+            }
+            queue = tmp;
+            head = 0;
+        }
+
+        private Runnable take() throws InterruptedException
+        {
+            Runnable rval;
+
+            synchronized(this)
+            {
+                while (size == 0)
+                {
+                    idle++;
+                    try
+                    {
+                        wait();
+                    }
+                    finally {
+                        idle--;
+                    }
+                }
+                rval = queue[head];
+                queue[head] = null;
+                head = (head + 1) % queue.length;
+                size--;
+            }
+
+            return rval;
+        }
+
+        /**
+         * A worker
+         */
+        @Override
+        public void run()
+        {
+            Runnable r;
+
+            while (true)
+            {
+                try
+                {
+                    r = take();
+                }
+                catch (InterruptedException e)
+                {
+                    LLog.e(e, false);
+                    continue;
+                }
+                try
+                {
+                    r.run();
+                }
+                catch (Exception e)
+                {
+                    LLog.e(e, false);
+                }
+                catch (Throwable e)
+                {
+                    LLog.e(e, false);
+                }
+            }
+        }
+    }
+}
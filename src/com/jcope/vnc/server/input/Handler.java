@@ -8,14 +8,20 @@ import java.util.concurrent.Semaphore;
 
 import com.jcope.debug.LLog;
 import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.input.handle.AcknowledgeBytes;
 import com.jcope.vnc.server.input.handle.AcknowledgeNonSerialEvent;
+import com.jcope.vnc.server.input.handle.AttachInteractiveChannel;
 import com.jcope.vnc.server.input.handle.ClipboardChanged;
 import com.jcope.vnc.server.input.handle.EnableAliasMonitor;
 import com.jcope.vnc.server.input.handle.EnableConnectionMonitor;
+import com.jcope.vnc.server.input.handle.EnableServerPush;
 import com.jcope.vnc.server.input.handle.GetClipboard;
 import com.jcope.vnc.server.input.handle.GetScreenSegment;
 import com.jcope.vnc.server.input.handle.OfferInput;
+import com.jcope.vnc.server.input.handle.Pong;
 import com.jcope.vnc.server.input.handle.RequestAlias;
+import com.jcope.vnc.server.input.handle.RequestInteractiveChannel;
+import com.jcope.vnc.server.input.handle.ResumeSession;
 import com.jcope.vnc.server.input.handle.SelectScreen;
 import com.jcope.vnc.server.input.handle.SendChatMsg;
 import com.jcope.vnc.server.input.handle.SetClipboard;
@@ -33,14 +39,20 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<ClientHandler, C
     
     // enumerating linkage here so top down compilations will include these classes
     private static Class<?>[] bootStraps = new Class<?>[]{
+        AcknowledgeBytes.class,
         AcknowledgeNonSerialEvent.class,
+        AttachInteractiveChannel.class,
         ClipboardChanged.class,
         EnableAliasMonitor.class,
         EnableConnectionMonitor.class,
+        EnableServerPush.class,
         GetClipboard.class,
         GetScreenSegment.class,
         OfferInput.class,
+        Pong.class,
         RequestAlias.class,
+        RequestInteractiveChannel.class,
+        ResumeSession.class,
         SelectScreen.class,
         SendChatMsg.class,
         SetClipboard.class,
@@ -0,0 +1,23 @@
+package com.jcope.vnc.server.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.input.Handle;
+
+public class AcknowledgeBytes extends Handle
+{
+    
+    @Override
+    public void handle(ClientHandler client, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 1);
+        assert_(args[0] instanceof Long);
+        
+        long bytesConsumed = (Long) args[0];
+        
+        client.acknowledgeBytes(bytesConsumed);
+    }
+    
+}
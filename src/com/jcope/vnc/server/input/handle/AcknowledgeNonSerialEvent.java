@@ -45,12 +45,18 @@ public class AcknowledgeNonSerialEvent extends Handle
             case SCREEN_SEGMENT_CHANGED:
             case ENTIRE_SCREEN_UPDATE:
             case END_OF_FRAME:
+            case INTERACTIVE_CHANNEL_TOKEN:
+            case SESSION_TOKEN:
                 assert_(args.length == 1);
                 break;
             case SCREEN_SEGMENT_UPDATE:
                 assert_(Boolean.FALSE);
                 // there is already a throttle for this
                 break;
+            case PING:
+                assert_(Boolean.FALSE);
+                // answered by PONG, never queued for acknowledgement
+                break;
         }
         
         client.handleEventAck(evt, null, 1);
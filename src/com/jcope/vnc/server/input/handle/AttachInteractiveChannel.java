@@ -0,0 +1,28 @@
+package com.jcope.vnc.server.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.input.Handle;
+
+public class AttachInteractiveChannel extends Handle
+{
+    
+    @Override
+    public void handle(ClientHandler client, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 1);
+        assert_(args[0] instanceof Long);
+        
+        long token = (Long) args[0];
+        
+        if (!client.attachAsInteractiveChannel(token))
+        {
+            LLog.w(String.format("%s presented an unknown interactive channel token", client.toString()));
+            client.kill();
+        }
+    }
+    
+}
@@ -3,7 +3,6 @@ package com.jcope.vnc.server.input.handle;
 import static com.jcope.debug.Debug.assert_;
 
 import com.jcope.util.FixedLengthBitSet;
-import com.jcope.util.GraphicsSegment;
 import com.jcope.vnc.server.ClientHandler;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 import com.jcope.vnc.server.input.Handle;
@@ -25,27 +24,9 @@ public class GetScreenSegment extends Handle
             return;
         }
         
-        final FixedLengthBitSet flbs = (FixedLengthBitSet) arg0;
+        FixedLengthBitSet flbs = (FixedLengthBitSet) arg0;
         
-        final ClientHandler f_client = client;
-        
-        client.dispatchTransaction(new Runnable(){
-
-			@Override
-			public void run() {
-			    f_client.subscribe(flbs);
-				try {
-		            for (int segmentID = flbs.nextSetBit(0); segmentID >= 0; segmentID = flbs.nextSetBit(segmentID + 1))
-		            {
-		                GraphicsSegment graphicsSegment = f_client.getSegment(segmentID);
-		                f_client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, segmentID, graphicsSegment);
-		            }
-		        }
-		        finally {
-		        	f_client.sendEvent(SERVER_EVENT.END_OF_FRAME);
-		        }
-			}
-		});
+        client.requestSegments(flbs);
     }
     
 }
@@ -0,0 +1,30 @@
+package com.jcope.vnc.server.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.InteractiveChannelRegistry;
+import com.jcope.vnc.server.input.Handle;
+import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
+
+public class RequestInteractiveChannel extends Handle
+{
+    
+    @Override
+    public void handle(ClientHandler client, Object[] args)
+    {
+        assert_(args == null);
+        
+        if (!client.isScreenBound())
+        {
+            LLog.w(String.format("%s requested an interactive channel before selecting a screen", client.toString()));
+            return;
+        }
+        
+        long token = InteractiveChannelRegistry.issue(client);
+        
+        client.sendEvent(SERVER_EVENT.INTERACTIVE_CHANNEL_TOKEN, Long.valueOf(token));
+    }
+    
+}
@@ -0,0 +1,26 @@
+package com.jcope.vnc.server.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.input.Handle;
+
+public class ResumeSession extends Handle
+{
+    
+    @Override
+    public void handle(ClientHandler client, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 2);
+        assert_(args[0] instanceof Long);
+        assert_(args[1] instanceof Integer);
+        
+        long token = (Long) args[0];
+        int frameSerial = (Integer) args[1];
+        
+        // takes effect with the next SELECT_SCREEN
+        client.setResumeRequest(token, frameSerial);
+    }
+    
+}
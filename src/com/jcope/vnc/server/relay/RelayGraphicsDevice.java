@@ -0,0 +1,130 @@
+package com.jcope.vnc.server.relay;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+
+/**
+ *
+ * Stands in for a local screen device so the screen Manager, the
+ * security policy and screen selection treat a relayed screen like
+ * any other. Its bounds are those of the upstream screen.
+ *
+ * The ID string is what a relay's security policy whitelists.
+ *
+ */
+
+public class RelayGraphicsDevice extends GraphicsDevice
+{
+    private final String idString;
+    private final RelayScreenSource screenSource;
+    private final GraphicsConfiguration[] configurations;
+
+    RelayGraphicsDevice(String idString, RelayScreenSource screenSource)
+    {
+        this.idString = idString;
+        this.screenSource = screenSource;
+        configurations = new GraphicsConfiguration[]{ new RelayGraphicsConfiguration() };
+    }
+
+    public RelayScreenSource getScreenSource()
+    {
+        return screenSource;
+    }
+
+    @Override
+    public int getType()
+    {
+        return TYPE_RASTER_SCREEN;
+    }
+
+    @Override
+    public String getIDstring()
+    {
+        return idString;
+    }
+
+    @Override
+    public GraphicsConfiguration[] getConfigurations()
+    {
+        return configurations.clone();
+    }
+
+    @Override
+    public GraphicsConfiguration getDefaultConfiguration()
+    {
+        return configurations[0];
+    }
+
+    @Override
+    public DisplayMode getDisplayMode()
+    {
+        Rectangle bounds = screenSource.getScreenBounds();
+
+        return new DisplayMode(bounds.width, bounds.height, 32, DisplayMode.REFRESH_RATE_UNKNOWN);
+    }
+
+    @Override
+    public String toString()
+    {
+        return idString;
+    }
+
+    private class RelayGraphicsConfiguration extends GraphicsConfiguration
+    {
+
+        @Override
+        public GraphicsDevice getDevice()
+        {
+            return RelayGraphicsDevice.this;
+        }
+
+        @Override
+        public BufferedImage createCompatibleImage(int width, int height)
+        {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        @Override
+        public BufferedImage createCompatibleImage(int width, int height, int transparency)
+        {
+            return new BufferedImage(width, height, (transparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+
+        @Override
+        public ColorModel getColorModel()
+        {
+            return ColorModel.getRGBdefault();
+        }
+
+        @Override
+        public ColorModel getColorModel(int transparency)
+        {
+            return ColorModel.getRGBdefault();
+        }
+
+        @Override
+        public AffineTransform getDefaultTransform()
+        {
+            return new AffineTransform();
+        }
+
+        @Override
+        public AffineTransform getNormalizingTransform()
+        {
+            return new AffineTransform();
+        }
+
+        @Override
+        public Rectangle getBounds()
+        {
+            return screenSource.getScreenBounds();
+        }
+
+    }
+}
@@ -0,0 +1,300 @@
+package com.jcope.vnc.server.relay;
+
+import java.awt.GraphicsDevice;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import com.jcope.debug.LLog;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.SegmentationInfo;
+import com.jcope.vnc.server.ScreenSource;
+import com.jcope.vnc.shared.ScreenSelector;
+
+/**
+ *
+ * The relay's copy of the upstream screen.
+ *
+ * Segments received from upstream are written to a pending buffer and
+ * published once their END_OF_FRAME arrives, so the relay's Monitor
+ * only ever scans complete frames. Only the segments that were
+ * written are copied when publishing.
+ *
+ */
+
+public class RelayScreenSource implements ScreenSource
+{
+    private final String idString;
+    private volatile RelayGraphicsDevice device;
+
+    private final Object lock = new Object();
+    private final SegmentationInfo segInfo = new SegmentationInfo();
+    private int width = 0, height = 0;
+    private int segmentWidth = 0, segmentHeight = 0;
+    private int[] pending = null;
+    private int[] published = null;
+    private FixedLengthBitSet dirtySegments = null;
+    private boolean dirtyScreen = false;
+    private boolean registered = false;
+
+    private final Point cursor = new Point();
+    private boolean cursorOnScreen = false;
+
+    private final int[] pos = new int[2];
+    private final int[] dim = new int[2];
+
+    public RelayScreenSource(String idString)
+    {
+        this.idString = idString;
+        device = new RelayGraphicsDevice(idString, this);
+    }
+
+    @Override
+    public GraphicsDevice getDevice()
+    {
+        return device;
+    }
+
+    @Override
+    public Rectangle getScreenBounds()
+    {
+        synchronized(lock)
+        {
+            return new Rectangle(0, 0, width, height);
+        }
+    }
+
+    @Override
+    public void markRGBCacheDirty()
+    {
+        // Do Nothing
+        // Frames are published by the upstream connection
+    }
+
+    @Override
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels)
+    {
+        synchronized(lock)
+        {
+            int w = Math.min(width, this.width - x);
+            int h = Math.min(height, this.height - y);
+
+            if (published == null || w < width || h < height)
+            {
+                // the upstream screen was resized under the monitor
+                Arrays.fill(pixels, 0, width * height, 0);
+            }
+
+            if (published != null && w > 0 && h > 0)
+            {
+                int srcPos = y * this.width + x;
+                int dstPos = 0;
+                for (int i=0; i<h; i++)
+                {
+                    System.arraycopy(published, srcPos, pixels, dstPos, w);
+                    srcPos += this.width;
+                    dstPos += width;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int[] getRGBPixels()
+    {
+        synchronized(lock)
+        {
+            return (published == null) ? new int[0] : published.clone();
+        }
+    }
+
+    @Override
+    public boolean getCursorLocation(Point point)
+    {
+        synchronized(lock)
+        {
+            point.x = cursor.x;
+            point.y = cursor.y;
+
+            return cursorOnScreen;
+        }
+    }
+
+    void setCursor(int x, int y)
+    {
+        synchronized(lock)
+        {
+            cursor.x = x;
+            cursor.y = y;
+            cursorOnScreen = true;
+        }
+    }
+
+    void clearCursor()
+    {
+        synchronized(lock)
+        {
+            cursorOnScreen = false;
+        }
+    }
+
+    void setScreenSize(int width, int height)
+    {
+        boolean resized;
+
+        synchronized(lock)
+        {
+            if (width == this.width && height == this.height && pending != null)
+            {
+                return;
+            }
+            resized = (pending != null);
+            this.width = width;
+            this.height = height;
+            pending = new int[width * height];
+            published = new int[width * height];
+            loadSegmentation();
+        }
+
+        if (resized)
+        {
+            LLog.w(String.format("Upstream screen resized to %dx%d", width, height));
+            // a new device makes the screen Manager signal SCREEN_GONE to
+            // clients bound to the old geometry
+            synchronized(lock)
+            {
+                device = new RelayGraphicsDevice(idString, this);
+                if (registered)
+                {
+                    ScreenSelector.setScreenDevices(new GraphicsDevice[]{ device });
+                }
+            }
+        }
+    }
+
+    void setSegmentSize(int segmentWidth, int segmentHeight)
+    {
+        synchronized(lock)
+        {
+            this.segmentWidth = segmentWidth;
+            this.segmentHeight = segmentHeight;
+            loadSegmentation();
+        }
+    }
+
+    private void loadSegmentation()
+    {
+        if (width > 0 && height > 0 && segmentWidth > 0 && segmentHeight > 0)
+        {
+            segInfo.loadConfig(width, height, segmentWidth, segmentHeight);
+            dirtySegments = new FixedLengthBitSet(segInfo.numSegments);
+        }
+        else
+        {
+            dirtySegments = null;
+        }
+    }
+
+    void setSegmentPixels(int segmentID, int[] pixels)
+    {
+        synchronized(lock)
+        {
+            if (pending == null)
+            {
+                return;
+            }
+            if (segmentID == -1)
+            {
+                System.arraycopy(pixels, 0, pending, 0, Math.min(pixels.length, pending.length));
+                dirtyScreen = true;
+                return;
+            }
+            if (!hasSegment(segmentID))
+            {
+                return;
+            }
+            segInfo.getPos(segmentID, pos);
+            segInfo.getDim(segmentID, dim);
+            int dstPos = pos[1] * width + pos[0];
+            int srcPos = 0;
+            for (int i=0; i<dim[1]; i++)
+            {
+                System.arraycopy(pixels, srcPos, pending, dstPos, dim[0]);
+                srcPos += dim[0];
+                dstPos += width;
+            }
+            dirtySegments.set(segmentID, Boolean.TRUE);
+        }
+    }
+
+    void setSegmentSolidColor(int segmentID, int color)
+    {
+        synchronized(lock)
+        {
+            if (pending == null || !hasSegment(segmentID))
+            {
+                return;
+            }
+            segInfo.getPos(segmentID, pos);
+            segInfo.getDim(segmentID, dim);
+            int dstPos = pos[1] * width + pos[0];
+            for (int i=0; i<dim[1]; i++)
+            {
+                Arrays.fill(pending, dstPos, dstPos + dim[0], color);
+                dstPos += width;
+            }
+            dirtySegments.set(segmentID, Boolean.TRUE);
+        }
+    }
+
+    private boolean hasSegment(int segmentID)
+    {
+        return dirtySegments != null && segmentID >= 0 && segmentID < segInfo.numSegments;
+    }
+
+    /**
+     * Makes everything received since the last END_OF_FRAME visible to
+     * the monitor.
+     */
+    void publish()
+    {
+        synchronized(lock)
+        {
+            if (pending == null)
+            {
+                return;
+            }
+            if (dirtyScreen)
+            {
+                System.arraycopy(pending, 0, published, 0, pending.length);
+                dirtyScreen = false;
+                if (dirtySegments != null)
+                {
+                    dirtySegments.fill(Boolean.FALSE);
+                }
+            }
+            else if (dirtySegments != null)
+            {
+                for (int segmentID=dirtySegments.nextSetBit(0); segmentID>=0; segmentID=dirtySegments.nextSetBit(segmentID+1))
+                {
+                    segInfo.getPos(segmentID, pos);
+                    segInfo.getDim(segmentID, dim);
+                    int idx = pos[1] * width + pos[0];
+                    for (int i=0; i<dim[1]; i++)
+                    {
+                        System.arraycopy(pending, idx, published, idx, dim[0]);
+                        idx += width;
+                    }
+                }
+                dirtySegments.fill(Boolean.FALSE);
+            }
+            if (!registered)
+            {
+                registered = true;
+                ScreenSelector.setScreenDevices(new GraphicsDevice[]{ device });
+            }
+        }
+    }
+}
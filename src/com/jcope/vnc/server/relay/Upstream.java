@@ -0,0 +1,247 @@
+package com.jcope.vnc.server.relay;
+
+import static com.jcope.debug.Debug.assert_;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.FlowControl;
+import com.jcope.vnc.shared.Msg;
+import com.jcope.vnc.shared.Msg.CompressedObjectReader;
+import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
+import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
+
+/**
+ *
+ * The relay's one connection to the upstream server.
+ *
+ * Connects as a view-only client in server push mode and writes every
+ * segment it receives into the RelayScreenSource that the relay's own
+ * Monitor scans for its downstream clients. The connection is retried
+ * for as long as the relay runs, resuming the upstream session so only
+ * what changed in between is sent again.
+ *
+ */
+
+public class Upstream extends Thread
+{
+    public static final long RECONNECT_DELAY_MS = 3000L;
+
+    private final String address;
+    private final int port;
+    private final int displayNum;
+    private final String passwordHash;
+    private final long scanPeriodMS;
+    private final RelayScreenSource screenSource;
+
+    private final Semaphore firstFrameSema = new Semaphore(0, true);
+    private volatile boolean hasFrame = false;
+
+    // only ever written to by this thread
+    private volatile BufferedOutputStream out = null;
+
+    private volatile Long sessionToken = null;
+    private volatile int appliedFrameSerial = 0;
+
+    public Upstream(String address, int port, int displayNum, String passwordHash, long scanPeriodMS)
+    {
+        super(String.format("Relay upstream: %s:%d", address, port));
+        this.address = address;
+        this.port = port;
+        this.displayNum = displayNum;
+        this.passwordHash = passwordHash;
+        this.scanPeriodMS = scanPeriodMS;
+        screenSource = new RelayScreenSource(String.format("relay:%s:%d:%d", address, port, displayNum));
+        setDaemon(true);
+    }
+
+    public RelayScreenSource getScreenSource()
+    {
+        return screenSource;
+    }
+
+    /**
+     * Blocks until the first complete frame has been received, the relay
+     * has nothing to serve before then.
+     */
+    public void awaitFirstFrame()
+    {
+        try
+        {
+            firstFrameSema.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            LLog.e(e);
+        }
+        firstFrameSema.release();
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            SocketChannel channel = null;
+            CompressedObjectReader reader = null;
+
+            try
+            {
+                channel = SocketChannel.open(new InetSocketAddress(address, port));
+                out = new BufferedOutputStream(channel.socket().getOutputStream());
+                LLog.i(String.format("Connected to upstream %s:%d", address, port));
+
+                sendEvent(CLIENT_EVENT.ENABLE_SERVER_PUSH, Boolean.TRUE);
+                Long token = sessionToken;
+                sessionToken = null;
+                if (token != null)
+                {
+                    sendEvent(CLIENT_EVENT.RESUME_SESSION, token, Integer.valueOf(appliedFrameSerial));
+                }
+                sendEvent(CLIENT_EVENT.SELECT_SCREEN, Integer.valueOf(displayNum), ACCESS_MODE.VIEW_ONLY, Long.valueOf(scanPeriodMS), passwordHash);
+
+                reader = new CompressedObjectReader();
+                Object obj;
+                long bytesAcked = 0L, bytesConsumed;
+                SERVER_EVENT event;
+
+                while ((obj = reader.readObject(channel)) != null)
+                {
+                    if (obj instanceof SERVER_EVENT)
+                    {
+                        event = (SERVER_EVENT) obj;
+                        handleServerEvent(event, null);
+                    }
+                    else
+                    {
+                        Msg msg = (Msg) obj;
+                        event = (SERVER_EVENT) msg.event;
+                        handleServerEvent(event, msg.args);
+                    }
+                    // return credit to the server
+                    bytesConsumed = reader.getBytesRead();
+                    if (bytesConsumed - bytesAcked >= FlowControl.ACK_INTERVAL_BYTES
+                            || (bytesConsumed > bytesAcked && event == SERVER_EVENT.END_OF_FRAME))
+                    {
+                        bytesAcked = bytesConsumed;
+                        sendEvent(CLIENT_EVENT.ACKNOWLEDGE_BYTES, Long.valueOf(bytesConsumed));
+                    }
+                    obj = null;
+                }
+                throw new IOException("Connection reset by peer");
+            }
+            catch (IOException e)
+            {
+                LLog.w(String.format("Lost upstream %s:%d, reconnecting in %d ms: %s", address, port, RECONNECT_DELAY_MS, e.getMessage()));
+            }
+            finally {
+                out = null;
+                if (channel != null) {try{channel.close();}catch(Exception e){}}
+                if (reader != null) {try{reader.release();}catch(Exception e){}}
+                screenSource.clearCursor();
+            }
+
+            try
+            {
+                sleep(RECONNECT_DELAY_MS);
+            }
+            catch (InterruptedException e)
+            {
+                LLog.e(e);
+            }
+        }
+    }
+
+    private void handleServerEvent(SERVER_EVENT event, Object[] args) throws IOException
+    {
+        LLog.logEvent("Upstream", event, args);
+
+        if (!event.isSerial()
+            && event != SERVER_EVENT.SCREEN_SEGMENT_UPDATE
+            && event != SERVER_EVENT.READ_INPUT_EVENTS
+            && event != SERVER_EVENT.PING)
+        {
+            sendEvent(CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT, event);
+        }
+
+        switch (event)
+        {
+            case AUTHORIZATION_UPDATE:
+                assert_(args != null && args[0] instanceof Boolean);
+                if (!((Boolean) args[0]))
+                {
+                    throw new IOException("Incorrect password or selected display not an option");
+                }
+                break;
+            case SCREEN_RESIZED:
+                assert_(args != null && args.length == 2);
+                screenSource.setScreenSize((Integer) args[0], (Integer) args[1]);
+                break;
+            case SCREEN_SEGMENT_SIZE_UPDATE:
+                assert_(args != null && args.length == 2);
+                screenSource.setSegmentSize((Integer) args[0], (Integer) args[1]);
+                break;
+            case SCREEN_SEGMENT_UPDATE:
+                assert_(args != null && args.length == 2);
+                if (args[1] instanceof int[])
+                {
+                    screenSource.setSegmentPixels((Integer) args[0], (int[]) args[1]);
+                }
+                else
+                {
+                    screenSource.setSegmentSolidColor((Integer) args[0], (Integer) args[1]);
+                }
+                break;
+            case ENTIRE_SCREEN_UPDATE:
+                assert_(args != null && args.length == 1);
+                screenSource.setSegmentPixels(-1, (int[]) args[0]);
+                break;
+            case END_OF_FRAME:
+                assert_(args != null && args.length == 2);
+                screenSource.publish();
+                appliedFrameSerial = (Integer) args[1];
+                if (!hasFrame)
+                {
+                    hasFrame = true;
+                    firstFrameSema.release();
+                }
+                break;
+            case CURSOR_MOVE:
+                assert_(args != null && args.length == 2);
+                screenSource.setCursor((Integer) args[0], (Integer) args[1]);
+                break;
+            case CURSOR_GONE:
+                screenSource.clearCursor();
+                break;
+            case PING:
+                sendEvent(CLIENT_EVENT.PONG, args[0]);
+                break;
+            case SESSION_TOKEN:
+                sessionToken = (Long) args[0];
+                break;
+            case SCREEN_GONE:
+                throw new IOException("Upstream screen is gone");
+            default:
+                // Do Nothing
+                // Chat, aliases and clipboard are not relayed
+                break;
+        }
+    }
+
+    private void sendEvent(CLIENT_EVENT event, Object... args) throws IOException
+    {
+        BufferedOutputStream l_out = out;
+
+        if (l_out == null)
+        {
+            return;
+        }
+
+        Msg.send(l_out, event, args);
+        l_out.flush();
+    }
+}
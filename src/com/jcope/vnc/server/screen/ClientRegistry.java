@@ -0,0 +1,99 @@
+package com.jcope.vnc.server.screen;
+
+import com.jcope.vnc.server.ClientHandler;
+
+/**
+ *
+ * The clients bound to one Monitor, copied on write.
+ *
+ * The Manager adds and removes clients under its own lock, the Monitor and
+ * anything fanning an event out reads an immutable snapshot without taking
+ * any, so a client joining or leaving never waits on a scan in progress
+ * and a scan never sees the list change under it.
+ *
+ */
+
+public class ClientRegistry
+{
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private volatile ClientHandler[] clients = EMPTY;
+
+    /**
+     * @return the clients bound right now, never to be modified
+     */
+    public ClientHandler[] snapshot()
+    {
+        return clients;
+    }
+
+    public boolean isEmpty()
+    {
+        return clients.length == 0;
+    }
+
+    public boolean contains(ClientHandler client)
+    {
+        return indexOf(clients, client) >= 0;
+    }
+
+    public synchronized boolean add(ClientHandler client)
+    {
+        ClientHandler[] l_clients = clients;
+
+        if (indexOf(l_clients, client) >= 0)
+        {
+            return false;
+        }
+
+        ClientHandler[] rval = new ClientHandler[l_clients.length + 1];
+        System.arraycopy(l_clients, 0, rval, 0, l_clients.length);
+        rval[l_clients.length] = client;
+        clients = rval;
+
+        return true;
+    }
+
+    public synchronized boolean remove(ClientHandler client)
+    {
+        ClientHandler[] l_clients = clients;
+        int idx = indexOf(l_clients, client);
+
+        if (idx < 0)
+        {
+            return false;
+        }
+
+        ClientHandler[] rval = (l_clients.length == 1) ? EMPTY : new ClientHandler[l_clients.length - 1];
+        System.arraycopy(l_clients, 0, rval, 0, idx);
+        System.arraycopy(l_clients, idx + 1, rval, idx, rval.length - idx);
+        clients = rval;
+
+        return true;
+    }
+
+    /**
+     * @return the clients that were bound
+     */
+    public synchronized ClientHandler[] clear()
+    {
+        ClientHandler[] rval = clients;
+
+        clients = EMPTY;
+
+        return rval;
+    }
+
+    private static int indexOf(ClientHandler[] clients, ClientHandler client)
+    {
+        for (int i=0; i<clients.length; i++)
+        {
+            if (clients[i] == client)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
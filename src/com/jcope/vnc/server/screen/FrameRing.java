@@ -0,0 +1,225 @@
+package com.jcope.vnc.server.screen;
+
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+import com.jcope.vnc.server.JitCompressedEvent;
+
+/**
+ *
+ * The last BROADCAST_RING_SIZE frames of one screen, already encoded,
+ * shared by every view-only client watching it.
+ *
+ * The Monitor publishes each frame's changed tiles once, every view-only
+ * ClientHandler streams them from its own cursor. Every so often a frame
+ * also carries every tile of the screen (a keyframe) so a client that
+ * joins late or falls too far behind can skip ahead to it instead of
+ * replaying every frame it missed.
+ *
+ */
+
+public class FrameRing
+{
+    private static final int CAPACITY;
+
+    static
+    {
+        Integer capacity = (Integer) SERVER_PROPERTIES.BROADCAST_RING_SIZE.getValue();
+        CAPACITY = (capacity == null) ? 0 : Math.max(0, capacity);
+    }
+
+    public static class Frame
+    {
+        public final long serial;
+        private final boolean keyframe;
+        private final FixedLengthBitSet changes;
+        private final JitCompressedEvent[] tiles;
+        private final long[] versions;
+        private int refCount = 1;
+
+        /**
+         * @param serial
+         * @param keyframe true iff. tiles holds every segment of the screen
+         * @param changes the segments that changed since the previous frame
+         * @param tiles acquired SCREEN_SEGMENT_UPDATE events indexed by segment ID,
+         *        owned by the frame from now on
+         * @param versions the version of each tile
+         */
+        Frame(long serial, boolean keyframe, FixedLengthBitSet changes, JitCompressedEvent[] tiles, long[] versions)
+        {
+            this.serial = serial;
+            this.keyframe = keyframe;
+            this.changes = changes;
+            this.tiles = tiles;
+            this.versions = versions;
+        }
+
+        public boolean isKeyframe()
+        {
+            return keyframe;
+        }
+
+        /**
+         * @param fromSegmentID
+         * @param resync true to walk every tile of a keyframe rather than
+         *        only those that changed
+         * @return the next segment ID to send or -1 if there are none left
+         */
+        public int nextTile(int fromSegmentID, boolean resync)
+        {
+            if (!(resync && keyframe))
+            {
+                return changes.nextSetBit(fromSegmentID);
+            }
+            for (int i=fromSegmentID; i<tiles.length; i++)
+            {
+                if (tiles[i] != null)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public JitCompressedEvent getTile(int segmentID)
+        {
+            return tiles[segmentID];
+        }
+
+        public long getVersion(int segmentID)
+        {
+            return versions[segmentID];
+        }
+
+        synchronized void acquire()
+        {
+            refCount++;
+        }
+
+        public void release()
+        {
+            synchronized(this)
+            {
+                if ((--refCount) > 0)
+                {
+                    return;
+                }
+            }
+            for (int i=0; i<tiles.length; i++)
+            {
+                JitCompressedEvent jce = tiles[i];
+                if (jce != null)
+                {
+                    tiles[i] = null;
+                    jce.release();
+                }
+            }
+        }
+    }
+
+    private final Frame[] frames = new Frame[CAPACITY];
+    private final int keyframeInterval = Math.max(1, CAPACITY / 2);
+    private long head = 0L; // serial of the next frame to be published
+    private long latestKeyframe = -1L;
+
+    public static boolean isEnabled()
+    {
+        return CAPACITY > 0;
+    }
+
+    public synchronized boolean isKeyframeDue()
+    {
+        return latestKeyframe < 0 || head - latestKeyframe >= keyframeInterval;
+    }
+
+    /**
+     * Publishes the next frame, releasing the one it overwrites.
+     *
+     * @param keyframe
+     * @param changes
+     * @param tiles see Frame
+     * @param versions
+     */
+    void publish(boolean keyframe, FixedLengthBitSet changes, JitCompressedEvent[] tiles, long[] versions)
+    {
+        Frame evicted;
+
+        synchronized(this)
+        {
+            int idx = (int) (head % frames.length);
+            evicted = frames[idx];
+            frames[idx] = new Frame(head, keyframe, changes, tiles, versions);
+            if (keyframe)
+            {
+                latestKeyframe = head;
+            }
+            head++;
+        }
+
+        if (evicted != null)
+        {
+            evicted.release();
+        }
+    }
+
+    /**
+     * A cursor that was overwritten, or that is more than a keyframe
+     * interval behind a keyframe, is moved up to the latest keyframe.
+     * The caller tells the two apart by comparing the returned frame's
+     * serial to its cursor and must release the frame once sent.
+     *
+     * @param cursor serial of the next frame the reader wants, negative
+     *        for a reader that has not been sent anything yet
+     * @return the next frame to send or null if the reader is caught up
+     */
+    public synchronized Frame acquire(long cursor)
+    {
+        if (latestKeyframe < 0)
+        {
+            return null;
+        }
+        if (cursor >= head)
+        {
+            return null;
+        }
+        Frame rval = (cursor < 0) ? null : frames[(int) (cursor % frames.length)];
+        if (rval == null || rval.serial != cursor
+                || (cursor < latestKeyframe && head - cursor > keyframeInterval))
+        {
+            rval = frames[(int) (latestKeyframe % frames.length)];
+        }
+        rval.acquire();
+
+        return rval;
+    }
+
+    /**
+     * Releases every frame, readers still holding one keep it until released.
+     */
+    void clear()
+    {
+        Frame[] evicted;
+
+        synchronized(this)
+        {
+            if (latestKeyframe < 0)
+            {
+                // the first frame published is always a keyframe
+                return;
+            }
+            evicted = frames.clone();
+            for (int i=0; i<frames.length; i++)
+            {
+                frames[i] = null;
+            }
+            latestKeyframe = -1L;
+        }
+
+        for (Frame frame : evicted)
+        {
+            if (frame != null)
+            {
+                frame.release();
+            }
+        }
+    }
+}
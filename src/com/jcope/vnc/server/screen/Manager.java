@@ -6,9 +6,10 @@ import static com.jcope.vnc.shared.ScreenSelector.getScreenDevices;
 
 import java.awt.AWTException;
 import java.awt.GraphicsDevice;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 
 import com.jcope.debug.LLog;
@@ -16,7 +17,10 @@ import com.jcope.util.GraphicsSegment;
 import com.jcope.vnc.server.ClientHandler;
 import com.jcope.vnc.server.DirectRobot;
 import com.jcope.vnc.server.JitCompressedEvent;
+import com.jcope.vnc.server.ScreenSource;
+import com.jcope.vnc.server.SessionRegistry;
 import com.jcope.vnc.server.VncServer;
+import com.jcope.vnc.server.relay.RelayGraphicsDevice;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
@@ -36,9 +40,14 @@ public class Manager extends Thread
 	
 	private static final Manager[] selfRef = new Manager[]{null};
 	private static final Semaphore instanceSema = new Semaphore(1, true);
-	private HashMap<GraphicsDevice, ArrayList<ClientHandler>> clientsPerGraphicsDevice;
+	private HashMap<GraphicsDevice, ClientRegistry> clientsPerGraphicsDevice;
 	private HashMap<GraphicsDevice, Monitor> monitorForGraphicsDevice;
 	
+	// monitors outlive their last client for the session retention period
+	// so a resuming client can be sent only what changed in between
+	private HashMap<GraphicsDevice, TimerTask> monitorExpiry;
+	private Timer retentionTimer = null;
+	
 	private Semaphore hasMonitorLock = new Semaphore(0, true);
     private Semaphore stageLock = new Semaphore(1, true);
     private volatile Object[] stagedArgs = null;
@@ -46,8 +55,9 @@ public class Manager extends Thread
 	private Manager()
 	{
 		super("Screen Manager");
-		clientsPerGraphicsDevice = new HashMap<GraphicsDevice, ArrayList<ClientHandler>>();
+		clientsPerGraphicsDevice = new HashMap<GraphicsDevice, ClientRegistry>();
 		monitorForGraphicsDevice = new HashMap<GraphicsDevice, Monitor>();
+		monitorExpiry = new HashMap<GraphicsDevice, TimerTask>();
 		start();
 	}
 	
@@ -164,19 +174,26 @@ public class Manager extends Thread
 		}
 	}
 	
-	private void createMonitorForGraphicsDevice(GraphicsDevice graphicsDevice, ArrayList<ClientHandler> registeredClients)
+	private void createMonitorForGraphicsDevice(GraphicsDevice graphicsDevice, ClientRegistry registeredClients)
 	{
-		DirectRobot dirbot = null;
-		try
+		ScreenSource screenSource = null;
+		if (graphicsDevice instanceof RelayGraphicsDevice)
 		{
-			dirbot = new DirectRobot(graphicsDevice);
+			screenSource = ((RelayGraphicsDevice) graphicsDevice).getScreenSource();
 		}
-		catch (AWTException e)
+		else
 		{
-			LLog.e(e);
+			try
+			{
+				screenSource = new DirectRobot(graphicsDevice);
+			}
+			catch (AWTException e)
+			{
+				LLog.e(e);
+			}
 		}
-		Monitor monitor = new Monitor(SEGMENT_WIDTH, SEGMENT_HEIGHT, dirbot, registeredClients);
-		for (ClientHandler client : registeredClients)
+		Monitor monitor = new Monitor(SEGMENT_WIDTH, SEGMENT_HEIGHT, screenSource, registeredClients);
+		for (ClientHandler client : registeredClients.snapshot())
 		{
 			client.bindMonitor(monitor);
 		    monitor.sendDisplayInitEvents(client);
@@ -186,8 +203,38 @@ public class Manager extends Thread
 		monitorForGraphicsDevice.put(graphicsDevice, monitor);
 	}
 	
+	private void retainMonitorForGraphicsDevice(final GraphicsDevice graphicsDevice)
+	{
+		TimerTask task = new TimerTask() {
+			
+			@Override
+			public void run()
+			{
+				withLock(actionExpireMonitor, graphicsDevice, this);
+			}
+			
+		};
+		cancelMonitorExpiry(graphicsDevice);
+		if (retentionTimer == null)
+		{
+			retentionTimer = new Timer("Screen retention", true);
+		}
+		monitorExpiry.put(graphicsDevice, task);
+		retentionTimer.schedule(task, SessionRegistry.getRetentionMS());
+	}
+	
+	private void cancelMonitorExpiry(GraphicsDevice graphicsDevice)
+	{
+		TimerTask task = monitorExpiry.remove(graphicsDevice);
+		if (task != null)
+		{
+			task.cancel();
+		}
+	}
+	
 	private void killMonitorForGraphicsDevice(GraphicsDevice graphicsDevice)
 	{
+		cancelMonitorExpiry(graphicsDevice);
 		Monitor monitor = monitorForGraphicsDevice.remove(graphicsDevice);
 		if (monitor != null)
 		{
@@ -233,10 +280,10 @@ public class Manager extends Thread
 			assert_(client != null);
 			
 			actionUnbind.run();
-			ArrayList<ClientHandler> registeredClients = clientsPerGraphicsDevice.get(graphicsDevice);
+			ClientRegistry registeredClients = clientsPerGraphicsDevice.get(graphicsDevice);
 			if (registeredClients == null)
 			{
-				registeredClients = new ArrayList<ClientHandler>(1);
+				registeredClients = new ClientRegistry();
 				clientsPerGraphicsDevice.put(graphicsDevice, registeredClients);
 				newMonitor = Boolean.TRUE;
 			}
@@ -244,6 +291,7 @@ public class Manager extends Thread
 			{
 				return;
 			}
+			cancelMonitorExpiry(graphicsDevice);
 			increaseMonitorLock();
 			if (!newMonitor)
 			{
@@ -272,9 +320,9 @@ public class Manager extends Thread
 			
 			Long oldScanPeriod = client.commitNewScanPeriod();
 			
-			for (Entry<GraphicsDevice, ArrayList<ClientHandler>> entry : clientsPerGraphicsDevice.entrySet())
+			for (Entry<GraphicsDevice, ClientRegistry> entry : clientsPerGraphicsDevice.entrySet())
 			{
-				ArrayList<ClientHandler> list = entry.getValue();
+				ClientRegistry list = entry.getValue();
 				if (list.contains(client))
 				{
 					GraphicsDevice graphicsDevice = entry.getKey();
@@ -286,8 +334,15 @@ public class Manager extends Thread
 					list.remove(client);
 					if (list.isEmpty())
 					{
-						clientsPerGraphicsDevice.remove(graphicsDevice);
-						killMonitorForGraphicsDevice(graphicsDevice);
+						if (SessionRegistry.isEnabled() && monitor != null)
+						{
+							retainMonitorForGraphicsDevice(graphicsDevice);
+						}
+						else
+						{
+							clientsPerGraphicsDevice.remove(graphicsDevice);
+							killMonitorForGraphicsDevice(graphicsDevice);
+						}
 					}
 					decreaseMonitorLock();
 					break;
@@ -297,6 +352,32 @@ public class Manager extends Thread
 		
 	};
 	
+	private Runnable actionExpireMonitor = new Runnable()
+	{
+
+		@Override
+		public void run()
+		{
+			GraphicsDevice graphicsDevice = (GraphicsDevice) stagedArgs[0];
+			TimerTask task = (TimerTask) stagedArgs[1];
+			
+			if (monitorExpiry.get(graphicsDevice) != task)
+			{
+				// rebound or rescheduled since
+				return;
+			}
+			monitorExpiry.remove(graphicsDevice);
+			
+			ClientRegistry list = clientsPerGraphicsDevice.get(graphicsDevice);
+			if (list != null && list.isEmpty())
+			{
+				clientsPerGraphicsDevice.remove(graphicsDevice);
+				killMonitorForGraphicsDevice(graphicsDevice);
+			}
+		}
+		
+	};
+	
 	private Runnable actionUnbindAllSet = new Runnable()
 	{
 
@@ -323,38 +404,33 @@ public class Manager extends Thread
 			GraphicsDevice graphicsDevice = (GraphicsDevice) stagedArgs[0];
 			assert_(graphicsDevice != null);
 			
-			ArrayList<ClientHandler> clientsToSignal = clientsPerGraphicsDevice.remove(graphicsDevice);
-			if (clientsToSignal != null)
+			ClientRegistry registry = clientsPerGraphicsDevice.remove(graphicsDevice);
+			if (registry != null)
 			{
-				try
-				{
-				    SERVER_EVENT event = SERVER_EVENT.SCREEN_GONE;
-				    JitCompressedEvent jce = (clientsToSignal.size() > 1) ? JitCompressedEvent.getInstance(event, (Object[]) null) : null;
-				    try
-				    {
-    				    for (ClientHandler client : clientsToSignal)
-    					{
-    					    if (jce != null)
-    					    {
-    					        client.sendEvent(jce);
-    					    }
-    					    else
-    					    {
-    					        handleServerEvent(client, event);
-    					    }
-    						decreaseMonitorLock();
-    					}
-				    }
-				    finally {
-				        if (jce != null)
-				        {
-				            jce.release();
-				        }
-				    }
-				}
-				finally {
-					clientsToSignal.clear();
-				}
+			    ClientHandler[] clientsToSignal = registry.clear();
+			    SERVER_EVENT event = SERVER_EVENT.SCREEN_GONE;
+			    JitCompressedEvent jce = (clientsToSignal.length > 1) ? JitCompressedEvent.getInstance(event, (Object[]) null) : null;
+			    try
+			    {
+			        for (ClientHandler client : clientsToSignal)
+			        {
+			            if (jce != null)
+			            {
+			                client.sendEvent(jce);
+			            }
+			            else
+			            {
+			                handleServerEvent(client, event);
+			            }
+			            decreaseMonitorLock();
+			        }
+			    }
+			    finally {
+			        if (jce != null)
+			        {
+			            jce.release();
+			        }
+			    }
 			}
 			killMonitorForGraphicsDevice(graphicsDevice);
 		}
@@ -373,9 +449,9 @@ public class Manager extends Thread
 			JitCompressedEvent jce = JitCompressedEvent.getInstance(evt, evtArgs);
 			try
 			{
-    			for (ArrayList<ClientHandler> clientList : clientsPerGraphicsDevice.values())
+    			for (ClientRegistry clientList : clientsPerGraphicsDevice.values())
     			{
-    			    handleServerEvent(notThiz, clientList, jce, evt);
+    			    handleServerEvent(notThiz, clientList.snapshot(), jce, evt);
     			}
 			}
 			finally {
@@ -418,9 +494,9 @@ public class Manager extends Thread
         withLock(actionSendEventToAllExcept, notThiz, evt, args); 
     }
 	
-	public GraphicsSegment getSegment(DirectRobot dirbot, int segmentID)
+	public GraphicsSegment getSegment(ScreenSource screenSource, int segmentID)
 	{
-	    Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+	    Monitor monitor = monitorForGraphicsDevice.get(screenSource.getDevice());
 	    if (monitor == null)
 	    {
 	        return null;
@@ -429,14 +505,14 @@ public class Manager extends Thread
 	    return monitor.getSegment(segmentID);
 	}
 	
-	public void getOrigin(DirectRobot dirbot, int[] pos)
+	public void getOrigin(ScreenSource screenSource, int[] pos)
 	{
 	    assert_(pos != null);
 	    assert_(pos.length > 1);
         pos[0] = 0;
         pos[1] = 0;
         
-        Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+        Monitor monitor = monitorForGraphicsDevice.get(screenSource.getDevice());
         if (monitor != null)
         {
             monitor.getOrigin(pos);
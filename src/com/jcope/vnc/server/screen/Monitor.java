@@ -15,7 +15,8 @@ import com.jcope.util.GraphicsSegment;
 import com.jcope.util.SegmentationInfo;
 import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.ClientHandler;
-import com.jcope.vnc.server.DirectRobot;
+import com.jcope.vnc.server.JitCompressedEvent;
+import com.jcope.vnc.server.ScreenSource;
 import com.jcope.vnc.server.StateMachine;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
@@ -60,10 +61,13 @@ public class Monitor extends Thread
     int screenX, screenY;
     SegmentationInfo segInfo = new SegmentationInfo();
     private Integer screenWidth = null, screenHeight;
-    private ArrayList<ClientHandler> clients;
-    private DirectRobot dirbot;
+    private final ClientRegistry clients;
+    private ScreenSource screenSource;
     private GraphicsSegment[] segments;
     private FixedLengthBitSet changedSegments;
+    private FixedLengthBitSet listenerChanges; // handed to each listener in turn, they may modify it
+    private volatile Integer[] segmentIDs = new Integer[0];
+    private volatile long scanVersion = 0L;
     private volatile boolean stopped = Boolean.FALSE;
     private volatile boolean joined = Boolean.FALSE;
     private Boolean mouseOnMyScreen = null;
@@ -75,12 +79,30 @@ public class Monitor extends Thread
     
     private Semaphore unpausedClientSema = new Semaphore(0, true);
     
-    public Monitor(int segmentWidth, int segmentHeight, DirectRobot dirbot, ArrayList<ClientHandler> clients)
+    // null unless view-only clients are streamed from a shared ring
+    private final FrameRing frameRing = FrameRing.isEnabled() ? new FrameRing() : null;
+    
+    // only used from the monitor thread
+    private Integer tileID;
+    private long tileVersion;
+    private final GraphicsSegment.Synchronously encodeTile = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            JitCompressedEvent jce = receiver.acquireJitCompressedEvent(tileID);
+            tileVersion = receiver.getVersion();
+            return jce;
+        }
+        
+    };
+    
+    public Monitor(int segmentWidth, int segmentHeight, ScreenSource screenSource, ClientRegistry clients)
     {
-        super(String.format("Monitor: %s", dirbot.toString()));
+        super(String.format("Monitor: %s", screenSource.toString()));
         segInfo.segmentWidth = segmentWidth;
         segInfo.segmentHeight = segmentHeight;
-        this.dirbot = dirbot;
+        this.screenSource = screenSource;
         this.clients = clients;
         syncBounds();
     }
@@ -99,14 +121,19 @@ public class Monitor extends Thread
             segInfo.loadConfig(screenWidth, screenHeight, segInfo.segmentWidth, segInfo.segmentHeight);
             segments = new GraphicsSegment[segInfo.numSegments];
             changedSegments = new FixedLengthBitSet(segInfo.numSegments);
+            listenerChanges = new FixedLengthBitSet(segInfo.numSegments);
+            Integer[] l_segmentIDs = new Integer[segInfo.numSegments];
+            long l_scanVersion = ++scanVersion;
             for (int i=0; i<segments.length; i++)
             {
                 segments[i] = new GraphicsSegment(getSegmentPixelCount(i));
+                segments[i].setVersion(l_scanVersion);
+                l_segmentIDs[i] = Integer.valueOf(i);
             }
+            segmentIDs = l_segmentIDs;
             if (lastWidth != null)
             {
-                // TODO: provide ability to lock a set of clients
-                StateMachine.handleServerEvent(clients, SERVER_EVENT.SCREEN_RESIZED, screenWidth, screenHeight);
+                StateMachine.handleServerEvent(clients.snapshot(), SERVER_EVENT.SCREEN_RESIZED, screenWidth, screenHeight);
             }
         }
     }
@@ -115,17 +142,17 @@ public class Monitor extends Thread
     {
         Boolean mouseWasOnMyScreen = mouseOnMyScreen;
         int lastX = mouseLocation.x, lastY = mouseLocation.y;
-        mouseOnMyScreen = (DirectRobot.getMouseInfo(mouseLocation) == dirbot.device);
+        mouseOnMyScreen = screenSource.getCursorLocation(mouseLocation);
         if (mouseOnMyScreen)
         {
             if (mouseWasOnMyScreen == null || lastX != mouseLocation.x || lastY != mouseLocation.y)
             {
-                StateMachine.handleServerEvent(clients, SERVER_EVENT.CURSOR_MOVE, Integer.valueOf(mouseLocation.x), Integer.valueOf(mouseLocation.y));
+                StateMachine.handleServerEvent(clients.snapshot(), SERVER_EVENT.CURSOR_MOVE, Integer.valueOf(mouseLocation.x), Integer.valueOf(mouseLocation.y));
             }
         }
         else if (mouseWasOnMyScreen != null && mouseWasOnMyScreen)
         {
-            StateMachine.handleServerEvent(clients, SERVER_EVENT.CURSOR_GONE);
+            StateMachine.handleServerEvent(clients.snapshot(), SERVER_EVENT.CURSOR_GONE);
         }
     }
     
@@ -142,6 +169,7 @@ public class Monitor extends Thread
         int[] segmentDim = new int[2];
         int x, y;
         long startAt, timeConsumed;
+        ClientHandler[] l_clients;
         ArrayList<ClientHandler> newClients = new ArrayList<ClientHandler>();
         
         startAt = 0;
@@ -154,6 +182,7 @@ public class Monitor extends Thread
                 boolean changed = copyIntArray(pixels, buffer, pixels.length, solidColorPtr);
                 if (changed)
                 {
+                	receiver.setVersion(scanVersion);
                 	receiver.releaseJitCompressedEvent();
                 }
                 discrete_change[0] = changed;
@@ -184,8 +213,9 @@ public class Monitor extends Thread
 	                syncMouse();
 	                
 	                changed = Boolean.FALSE;
+	                scanVersion++;
 	                
-	                dirbot.markRGBCacheDirty();
+	                screenSource.markRGBCacheDirty();
 	                
 	                for (int i=0; i<=segInfo.maxSegmentID; i++)
 	                {
@@ -194,7 +224,7 @@ public class Monitor extends Thread
 	                    x = segmentDim[0];
 	                    y = segmentDim[1];
 	                    getSegmentDim(i, segmentDim);
-	                    dirbot.getRGBPixels(x, y, segmentDim[0], segmentDim[1], buffer);
+	                    screenSource.getRGBPixels(x, y, segmentDim[0], segmentDim[1], buffer);
 	                    graphicsSegment.synchronously(refresh);
 	                    if (discrete_change[0])
 	                    {
@@ -203,7 +233,9 @@ public class Monitor extends Thread
 	                    }
 	                }
 	                
-	                for (ClientHandler client : clients)
+	                // the same clients throughout, whoever joins meanwhile is new next scan
+	                l_clients = clients.snapshot();
+	                for (ClientHandler client : l_clients)
 	                {
 	                    if (client.getIsNewFlag())
 	                    {
@@ -211,17 +243,22 @@ public class Monitor extends Thread
 	                    }
 	                }
 	                
+	                if (frameRing != null)
+	                {
+	                    publishFrame(l_clients, changed);
+	                }
+	                
 	                if (changed)
 	                {
-	                    FixedLengthBitSet tmp = changedSegments.clone();
-	                    for (ClientHandler client : clients)
+	                    for (ClientHandler client : l_clients)
 	                    {
-	                        if (client.getIsNewFlag())
+	                        if (client.getIsNewFlag() || (frameRing != null && client.isBroadcastViewer()))
 	                        {
 	                            continue;
 	                        }
-	                        ScreenListener l = client.getScreenListener(dirbot);
-	                        l.onScreenChange(tmp);
+	                        ScreenListener l = client.getScreenListener(screenSource);
+	                        listenerChanges.copyFrom(changedSegments);
+	                        l.onScreenChange(listenerChanges);
 	                    }
 	                    changedSegments.fill(Boolean.FALSE);
 	                }
@@ -232,8 +269,20 @@ public class Monitor extends Thread
 	                    for (ClientHandler client : newClients)
 	                    {
 	                        client.setIsNewFlag(Boolean.FALSE);
-	                        ScreenListener l = client.getScreenListener(dirbot);
-	                        l.onScreenChange(tmp);
+	                        if (frameRing != null && client.isBroadcastViewer())
+	                        {
+	                            // starts streaming from the latest keyframe
+	                            client.onFramePublished();
+	                            continue;
+	                        }
+	                        long[] baseline = client.takeResumeBaseline(this);
+	                        FixedLengthBitSet changes = (baseline == null) ? tmp : getChangedSince(baseline);
+	                        if (changes.isEmpty())
+	                        {
+	                            continue;
+	                        }
+	                        ScreenListener l = client.getScreenListener(screenSource);
+	                        l.onScreenChange(changes);
 	                    }
 	                    newClients.clear();
 	                }
@@ -264,6 +313,10 @@ public class Monitor extends Thread
         }
         finally {
             stopped = Boolean.TRUE;
+            if (frameRing != null)
+            {
+                frameRing.clear();
+            }
             for (GraphicsSegment segment : segments)
             {
             	try
@@ -279,6 +332,70 @@ public class Monitor extends Thread
         }
     }
     
+    /**
+     * Encodes the tiles that changed in this scan once for every view-only
+     * client, along with every other tile when a keyframe is due.
+     * 
+     * @param l_clients
+     * @param changed
+     */
+    private void publishFrame(ClientHandler[] l_clients, boolean changed)
+    {
+        boolean hasViewers = Boolean.FALSE;
+        
+        for (ClientHandler client : l_clients)
+        {
+            if (client.isBroadcastViewer())
+            {
+                hasViewers = Boolean.TRUE;
+                break;
+            }
+        }
+        
+        if (!hasViewers)
+        {
+            // nobody would read a keyframe taken now, the first viewer forces one
+            frameRing.clear();
+            return;
+        }
+        
+        boolean keyframe = frameRing.isKeyframeDue();
+        
+        if (!(changed || keyframe))
+        {
+            return;
+        }
+        
+        JitCompressedEvent[] tiles = new JitCompressedEvent[segments.length];
+        long[] versions = new long[segments.length];
+        
+        for (int i=0; i<segments.length; i++)
+        {
+            if (keyframe || changedSegments.get(i))
+            {
+                tileID = segmentIDs[i];
+                tiles[i] = (JitCompressedEvent) segments[i].synchronously(encodeTile);
+                versions[i] = tileVersion;
+            }
+        }
+        tileID = null;
+        
+        frameRing.publish(keyframe, changedSegments.clone(), tiles, versions);
+        
+        for (ClientHandler client : l_clients)
+        {
+            if (!client.getIsNewFlag() && client.isBroadcastViewer())
+            {
+                client.onFramePublished();
+            }
+        }
+    }
+    
+    public FrameRing getFrameRing()
+    {
+        return frameRing;
+    }
+    
     public void sendDisplayInitEvents(ClientHandler client)
     {
         Rectangle bounds = getScreenBounds();
@@ -290,36 +407,31 @@ public class Monitor extends Thread
         }
     }
     
-    private boolean isOneColor(int[] ints, int idx, int sentinelIdx)
+    /**
+     * @param baseline segment versions a resuming client already holds
+     * @return the segments that changed after those versions were sent
+     */
+    private FixedLengthBitSet getChangedSince(long[] baseline)
     {
-    	if (idx + 1 == sentinelIdx)
-    	{
-    		return true;
-    	}
-    	int color = ints[idx];
-    	idx++;
-    	while (idx < sentinelIdx)
-    	{
-    		if (ints[idx++] == color)
-    		{
-    			continue;
-    		}
-    		return false;
-    	}
-    	return true;
+        FixedLengthBitSet rval = new FixedLengthBitSet(segments.length);
+        
+        for (int i=0; i<segments.length; i++)
+        {
+            if (segments[i].getVersion() > baseline[i])
+            {
+                rval.set(i, Boolean.TRUE);
+            }
+        }
+        
+        return rval;
     }
     
     /**
-     * Eratta: src array content MAY CHANGE as a result of this function!
-     * It is faster to fill a buffer with a SOLID color and compare arrays
-     * using a syscall than it is to iterate over the array and compare
-     * individual elements with a sample color.
-     * 
-     * Note that this can only occur when the src and dst buffers are length
-     * aligned and the length parameter is aligned with them as well.
+     * Compares with Arrays.equals, then copies only a changed segment and
+     * finds whether it is one color in that same pass.
      * 
      * @param dst
-     * @param src
+     * @param src the capture buffer, sized for the largest segment
      * @param length
      * @param cachedSolidColor
      * @return true iff. something differs
@@ -334,97 +446,46 @@ public class Monitor extends Thread
     		}
     		throw new IllegalArgumentException();
     	}
-        
+    	
+    	if (length == src.length)
+    	{
+    	    if (Arrays.equals(src, dst))
+    	    {
+    	        return false;
+    	    }
+    	}
+    	else
+    	{
+    	    // an edge segment, smaller than the capture buffer
+    	    int i = 0;
+    	    while (i < length && src[i] == dst[i])
+    	    {
+    	        i++;
+    	    }
+    	    if (i == length)
+    	    {
+    	        return false;
+    	    }
+    	}
+    	
+    	// the run of the first color is copied while measured, the rest in bulk
+    	int color = src[0];
+    	int i = 0;
+    	while (i < length && src[i] == color)
+    	{
+    	    dst[i++] = color;
+    	}
+    	if (i < length)
+    	{
+    	    System.arraycopy(src, i, dst, i, length - i);
+    	}
+    	
         if (cachedSolidColor != null && cachedSolidColor.length > 0)
         {
-        	// handle solid color concerns
-        	if (dst.length == src.length && length == src.length)
-        	{
-        		boolean isDiff = !Arrays.equals(src, dst);
-        		if (isDiff)
-        		{
-        			System.arraycopy(src, 0, dst, 0, src.length);
-        		}
-        		Arrays.fill(src, dst[0]);
-        		cachedSolidColor[0] = Arrays.equals(src, dst) ? dst[0] : null;
-        		return isDiff;
-        	}
-        	int i;
-        	if (cachedSolidColor[0] != null)
-        	{
-        		// was a solid color in a former life
-        		i = 0;
-        		for (; i<length; i++)
-        		{
-            		if (dst[i] == src[i])
-            		{
-            			continue;
-            		}
-            		System.arraycopy(src, i, dst, i, length-i);
-        			cachedSolidColor[0] = (i == 0 && isOneColor(dst, 0, length)) ? dst[0] : null;
-        			return true;
-        		}
-        		return false;
-        	}
-        	// was never a solid color in a former life
-        	if (src[0] != dst[0])
-        	{
-        		// only looking for solid colors now
-        		System.arraycopy(src, 0, dst, 0, length);
-        		cachedSolidColor[0] = isOneColor(dst, 0, length) ? dst[0] : null;
-        		return true;
-        	}
-        	int solidColor = src[0];
-        	i = 1;
-        	for (; i<length; i++)
-        	{
-        		if (src[i] != dst[i])
-        		{
-        			//only looking for solid color now
-        			System.arraycopy(src, i, dst, i, length-i);
-        			cachedSolidColor[0] = isOneColor(dst, i-1, length) ? dst[0] : null;
-        			return true;
-        		}
-        		if (src[i] != solidColor)
-        		{
-        			//only looking for diff now
-        			cachedSolidColor[0] = null;
-        			i++;
-        			while (i < length)
-        			{
-        				if (src[i] == dst[i])
-        				{
-        					i++;
-        					continue;
-        				}
-        				System.arraycopy(src, i, dst, i, length-i);
-    					return true;
-        			}
-        			return false;
-        		}
-        	}
-        	return false;
+        	cachedSolidColor[0] = (i == length) ? color : null;
         }
-    	// solid colors are not to be addressed
-    	if (dst.length == src.length && length == src.length)
-    	{
-    		if (Arrays.equals(src, dst))
-    		{
-    			return false;
-    		}
-    		System.arraycopy(src, 0, dst, 0, src.length);
-			return true;
-    	}
-		for (int i=0; i<length; i++)
-		{
-			if (dst[i] == src[i])
-			{
-				continue;
-			}
-			System.arraycopy(src, i, dst, i, length-i);
-			return true;
-		}
-		return false;
+        
+        return true;
     }
     
     public int getSegmentID(int x, int y)
@@ -473,7 +534,7 @@ public class Monitor extends Thread
     
     public Rectangle getScreenBounds()
     {
-        return dirbot.getScreenBounds();
+        return screenSource.getScreenBounds();
     }
     
     public int getSegmentCount()
@@ -502,11 +563,22 @@ public class Monitor extends Thread
         signalStop();
     }
     
+    /**
+     * @param segmentID
+     * @return segmentID boxed once per geometry rather than once per event
+     */
+    public Integer boxSegmentID(int segmentID)
+    {
+        Integer[] l_segmentIDs = segmentIDs;
+        
+        return (segmentID >= 0 && segmentID < l_segmentIDs.length) ? l_segmentIDs[segmentID] : Integer.valueOf(segmentID);
+    }
+    
     public GraphicsSegment getSegment(int segmentID)
     {
     	if (segmentID == -1)
     	{
-    		return new GraphicsSegment(dirbot.getRGBPixels()); 
+    		return new GraphicsSegment(screenSource.getRGBPixels()); 
     	}
     	return segments[segmentID];
     }
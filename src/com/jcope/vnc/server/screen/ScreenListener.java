@@ -4,5 +4,8 @@ import com.jcope.util.FixedLengthBitSet;
 
 public abstract class ScreenListener
 {
+	/**
+	 * @param changedSegments only valid for the duration of the call
+	 */
 	abstract public void onScreenChange(FixedLengthBitSet changedSegments);
 }
@@ -0,0 +1,23 @@
+package com.jcope.vnc.shared;
+
+import java.nio.ByteBuffer;
+
+import com.jcope.util.BufferPool;
+
+public class DirectByteBufferPool extends BufferPool<ByteBuffer>
+{
+    // idle buffers in the shared free lists, see BufferPool for what else is held
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+    
+    public DirectByteBufferPool()
+    {
+        super(MAX_POOLED_BYTES);
+    }
+
+    @Override
+    protected ByteBuffer getInstance(int capacity)
+    {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+}
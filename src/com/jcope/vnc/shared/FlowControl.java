@@ -0,0 +1,9 @@
+package com.jcope.vnc.shared;
+
+public class FlowControl
+{
+    // The client reports the bytes it has consumed at least this often
+    // (and at every END_OF_FRAME), servers must allow at least twice this in flight
+    public static final long ACK_INTERVAL_BYTES = 64L * 1024L;
+    public static final long MIN_BYTES_IN_FLIGHT = 2L * ACK_INTERVAL_BYTES;
+}
@@ -0,0 +1,508 @@
+package com.jcope.vnc.shared;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import com.jcope.debug.LLog;
+
+/**
+ * Writes length-prefixed frames to a non-blocking SocketChannel.
+ *
+ * A frame is written by whoever queues it for as long as the socket takes
+ * it. Once the socket pushes back the rest waits in the queue and the
+ * channel is parked with the FrameSelector, whose one thread finishes the
+ * writes for every channel. A client whose socket stops draining therefore
+ * holds neither the caller nor a thread of its own, only its queued
+ * frames. The 4 byte little endian header and the payload go out with a
+ * single gathering write, so a shared (read-only) payload buffer never has
+ * to be copied into a per-client stream buffer. The queue is not bounded
+ * here, callers limit it through getBytesQueued: ClientHandler counts it
+ * in its queue budget.
+ *
+ * Reads block on a selector of the channel's own, as the socket is
+ * non-blocking for the sake of writes.
+ *
+ * Frames are written in the order they were queued, callers are expected
+ * to serialize writes.
+ */
+public class FrameChannel implements ReadableByteChannel, Flushable, Closeable
+{
+    // how long close waits for queued frames to be written
+    private static final long LINGER_MS = 1000L;
+
+    public interface WriteListener
+    {
+        /**
+         * Called once the socket has taken all of a frame.
+         *
+         * @param bytes the frame's size, header included
+         * @param elapsedNanos the time from the frame's first write to its
+         *        last, the socket pushing back included
+         */
+        void onWrite(long bytes, long elapsedNanos);
+    }
+
+    private static class Frame
+    {
+        ByteBuffer payload = null;
+        // the payload is released through whichever one is set
+        JitCompressable jce = null;
+        DirectByteBufferPool.PoolRef ref = null;
+
+        void release()
+        {
+            try
+            {
+                if (jce != null)
+                {
+                    jce.recycle(payload);
+                    jce.release();
+                }
+                else if (ref != null)
+                {
+                    ref.release();
+                }
+            }
+            finally {
+                payload = null;
+                jce = null;
+                ref = null;
+            }
+        }
+    }
+
+    private final SocketChannel channel;
+    private final WriteListener listener;
+    private final ByteBuffer header;
+    private final ByteBuffer[] frame;
+    private final Selector readSelector;
+    private final FrameSelector writeSelector;
+
+    final Msg.CompressedObjectWriter writer;
+
+    // guarded by this
+    private Frame[] queue = newFrames(16);
+    private int head = 0;
+    private int size = 0;
+    // the head frame's header and length once its first write was made
+    private boolean headStarted = false;
+    private long headLength;
+    private long headStartNanos;
+    private SelectionKey writeKey = null;
+    private boolean closed = false;
+    private IOException error = null;
+
+    private volatile long bytesWritten = 0L;
+    private volatile long bytesSent = 0L;
+
+    /**
+     * @param channel made non-blocking
+     * @param listener told about every frame written, may be null
+     * @throws IOException
+     */
+    public FrameChannel(SocketChannel channel, WriteListener listener) throws IOException
+    {
+        this.channel = channel;
+        this.listener = listener;
+        header = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+        frame = new ByteBuffer[]{header, null};
+        writer = new Msg.CompressedObjectWriter();
+        writeSelector = FrameSelector.getInstance();
+        readSelector = Selector.open();
+        channel.configureBlocking(false);
+        channel.register(readSelector, SelectionKey.OP_READ);
+    }
+
+    private static Frame[] newFrames(int length)
+    {
+        Frame[] rval = new Frame[length];
+
+        for (int i=0; i<length; i++)
+        {
+            rval[i] = new Frame();
+        }
+
+        return rval;
+    }
+
+    /**
+     * Queues a shared payload, acquired until it has been written.
+     *
+     * @param jce
+     * @throws IOException if the channel is closed or a write failed
+     */
+    public void write(JitCompressable jce) throws IOException
+    {
+        ByteBuffer payload;
+
+        jce.acquire();
+        try
+        {
+            payload = jce.getCompressed();
+        }
+        catch (RuntimeException e)
+        {
+            jce.release();
+            throw e;
+        }
+        enqueue(payload, jce, null);
+    }
+
+    /**
+     * Queues a payload of its own, released once it has been written.
+     *
+     * @param ref holds the payload between position and limit
+     * @throws IOException if the channel is closed or a write failed
+     */
+    public void write(DirectByteBufferPool.PoolRef ref) throws IOException
+    {
+        enqueue(ref.get(), null, ref);
+    }
+
+    private void enqueue(ByteBuffer payload, JitCompressable jce, DirectByteBufferPool.PoolRef ref) throws IOException
+    {
+        int length = payload.remaining();
+        boolean queued = false;
+        boolean park = false;
+        IOException writeError = null;
+        Frame tail;
+
+        try
+        {
+            if (length <= 0)
+            {
+                return;
+            }
+            synchronized(this)
+            {
+                if (closed)
+                {
+                    throw (error == null) ? new ClosedChannelException() : new IOException(error);
+                }
+                if (size == queue.length)
+                {
+                    grow();
+                }
+                tail = queue[(head + size) % queue.length];
+                tail.payload = payload;
+                tail.jce = jce;
+                tail.ref = ref;
+                size++;
+                queued = true;
+                bytesWritten += 4 + length;
+                if (size == 1)
+                {
+                    // otherwise the channel is parked already
+                    try
+                    {
+                        park = !nts_drain();
+                    }
+                    catch (IOException e)
+                    {
+                        writeError = e;
+                    }
+                }
+            }
+            if (writeError != null)
+            {
+                // reported by the next write, as a parked write's would be
+                fail(writeError);
+            }
+            else if (park)
+            {
+                writeSelector.park(this);
+            }
+        }
+        finally {
+            if (!queued)
+            {
+                if (jce != null)
+                {
+                    jce.recycle(payload);
+                    jce.release();
+                }
+                else
+                {
+                    ref.release();
+                }
+            }
+        }
+    }
+
+    private void grow()
+    {
+        Frame[] tmp = new Frame[queue.length * 2];
+
+        for (int i=0; i<size; i++)
+        {
+            tmp[i] = queue[(head + i) % queue.length];
+        }
+        for (int i=size; i<tmp.length; i++)
+        {
+            tmp[i] = new Frame();
+        }
+        queue = tmp;
+        head = 0;
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket takes no
+     * more.
+     *
+     * @return true if the queue was emptied
+     * @throws IOException
+     */
+    private boolean nts_drain() throws IOException
+    {
+        Frame current;
+        ByteBuffer payload;
+
+        while (size > 0)
+        {
+            current = queue[head];
+            payload = current.payload;
+            if (!headStarted)
+            {
+                headStarted = true;
+                headLength = 4 + payload.remaining();
+                headStartNanos = System.nanoTime();
+                header.clear();
+                header.putInt(0, payload.remaining());
+            }
+            frame[1] = payload;
+            try
+            {
+                bytesSent += channel.write(frame);
+            }
+            finally {
+                frame[1] = null;
+            }
+            if (payload.hasRemaining())
+            {
+                return false;
+            }
+            if (listener != null)
+            {
+                listener.onWrite(headLength, System.nanoTime() - headStartNanos);
+            }
+            headStarted = false;
+            current.release();
+            head = (head + 1) % queue.length;
+            size--;
+        }
+        // for close, lingering on queued frames
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * On the FrameSelector's thread, once parked.
+     */
+    void register(Selector selector)
+    {
+        IOException writeError = null;
+
+        synchronized(this)
+        {
+            if (closed || size == 0)
+            {
+                return;
+            }
+            try
+            {
+                if (writeKey == null)
+                {
+                    writeKey = channel.register(selector, SelectionKey.OP_WRITE, this);
+                }
+                else
+                {
+                    writeKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            catch (ClosedChannelException e)
+            {
+                writeError = e;
+            }
+            catch (CancelledKeyException e)
+            {
+                writeError = new ClosedChannelException();
+            }
+        }
+        if (writeError != null)
+        {
+            fail(writeError);
+        }
+    }
+
+    /**
+     * On the FrameSelector's thread, once the socket takes more.
+     */
+    void onWritable(SelectionKey key)
+    {
+        IOException writeError = null;
+
+        synchronized(this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            try
+            {
+                if (nts_drain())
+                {
+                    key.interestOps(0);
+                }
+            }
+            catch (IOException e)
+            {
+                writeError = e;
+            }
+            catch (CancelledKeyException e)
+            {
+                writeError = new ClosedChannelException();
+            }
+        }
+        if (writeError != null)
+        {
+            fail(writeError);
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        synchronized(this)
+        {
+            if (closed)
+            {
+                // closed under the write, nothing to report
+                return;
+            }
+            error = e;
+        }
+        LLog.e(e, false);
+        try
+        {
+            close();
+        }
+        catch (IOException e2)
+        {
+            LLog.e(e2, false);
+        }
+    }
+
+    /**
+     * Blocks until at least one byte was read, as a blocking channel would.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        int rval;
+
+        while ((rval = channel.read(dst)) == 0 && dst.hasRemaining())
+        {
+            try
+            {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+            }
+            catch (ClosedSelectorException e)
+            {
+                throw new ClosedChannelException();
+            }
+        }
+
+        return rval;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * @return the total number of bytes accepted for writing, frame headers
+     *         included, whether or not the socket has taken them yet
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of bytes accepted but not yet handed to the socket
+     */
+    public long getBytesQueued()
+    {
+        return bytesWritten - bytesSent;
+    }
+
+    @Override
+    public void flush()
+    {
+        // Do Nothing
+        // Frames are written as they are queued, or by the FrameSelector
+        // as soon as the socket takes more
+    }
+
+    /**
+     * Gives frames still queued up to LINGER_MS to be written, drops the
+     * rest and closes the channel.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        long deadline = System.currentTimeMillis() + LINGER_MS;
+        long remaining;
+
+        synchronized(this)
+        {
+            try
+            {
+                // so a message sent just before killing a client, such as a
+                // refused authorization, still gets out
+                while (!closed && error == null && size > 0 && (remaining = deadline - System.currentTimeMillis()) > 0)
+                {
+                    wait(remaining);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                LLog.e(e);
+            }
+            finally {
+                if (!closed)
+                {
+                    closed = true;
+                    headStarted = false;
+                    for (; size > 0; size--)
+                    {
+                        queue[head].release();
+                        head = (head + 1) % queue.length;
+                    }
+                }
+            }
+        }
+        try
+        {
+            channel.close();
+        }
+        finally {
+            // wakes a blocked read
+            readSelector.close();
+            writeSelector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.jcope.vnc.shared;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import com.jcope.debug.LLog;
+
+/**
+ * The one thread that finishes writing frames for every FrameChannel whose
+ * socket stopped taking them.
+ *
+ * A channel parks here only once its socket pushes back, until then frames
+ * are written by whoever queues them. Channels are registered and their
+ * interest set on this thread alone, so parking never blocks on a select
+ * in progress.
+ */
+final class FrameSelector implements Runnable
+{
+    private static FrameSelector instance = null;
+
+    private final Selector selector;
+    // guarded by this, swapped with spare so parking allocates nothing
+    private ArrayList<FrameChannel> parked = new ArrayList<FrameChannel>();
+    private ArrayList<FrameChannel> spare = new ArrayList<FrameChannel>();
+
+    private FrameSelector() throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    static synchronized FrameSelector getInstance() throws IOException
+    {
+        if (instance == null)
+        {
+            instance = new FrameSelector();
+            Thread thread = new Thread(instance, "Frame writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Has channel written once its socket takes more.
+     *
+     * @param channel
+     */
+    void park(FrameChannel channel)
+    {
+        synchronized(this)
+        {
+            parked.add(channel);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * So keys of closed channels are dropped, and their sockets closed,
+     * without waiting for another channel to become writable.
+     */
+    void wakeup()
+    {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        ArrayList<FrameChannel> tmp;
+        Iterator<SelectionKey> keys;
+        SelectionKey key;
+
+        while (true)
+        {
+            try
+            {
+                selector.select();
+            }
+            catch (IOException e)
+            {
+                LLog.e(e, false);
+                continue;
+            }
+            synchronized(this)
+            {
+                tmp = parked;
+                parked = spare;
+                spare = tmp;
+            }
+            for (int i=0; i<spare.size(); i++)
+            {
+                spare.get(i).register(selector);
+            }
+            spare.clear();
+            keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                key = keys.next();
+                keys.remove();
+                ((FrameChannel) key.attachment()).onWritable(key);
+            }
+        }
+    }
+}
@@ -1,6 +1,25 @@
 package com.jcope.vnc.shared;
 
+import java.nio.ByteBuffer;
+
 public interface JitCompressable
 {
-    abstract byte[] getCompressed();
+    /**
+     * @return a read-only view of the shared compressed payload, positioned
+     *         at its first byte, that the caller may consume
+     */
+    abstract ByteBuffer getCompressed();
+    
+    /**
+     * Takes back a view getCompressed handed out, once consumed and before
+     * the matching release, for the next caller to reuse.
+     */
+    abstract void recycle(ByteBuffer view);
+    
+    /**
+     * Keeps the payload alive until the matching release.
+     */
+    abstract void acquire();
+    
+    abstract void release();
 }
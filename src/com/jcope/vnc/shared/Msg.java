@@ -1,23 +1,33 @@
 package com.jcope.vnc.shared;
 
-import static com.jcope.vnc.shared.MsgCache.bufferPool;
-import static com.jcope.vnc.shared.MsgCache.bufferPoolLock;
+import static com.jcope.debug.Debug.assert_;
 import static com.jcope.vnc.shared.MsgCache.compressionCache;
-import static com.jcope.vnc.shared.MsgCache.compressionResultCache;
-import static com.jcope.vnc.shared.MsgCache.precompRBOS;
+import static com.jcope.vnc.shared.MsgCache.getBufferPool;
+import static com.jcope.vnc.shared.MsgCache.precompWriter;
 import static com.jcope.vnc.shared.MsgCache.precompSema;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.Serializable;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import com.jcope.debug.LLog;
+import com.jcope.util.PackedIntArray;
 import com.jcope.util.ReusableByteArrayOutputStream;
 import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
@@ -36,44 +46,23 @@ public class Msg implements Serializable
 		this.args = args;
 	}
 	
-	private static Object decompress(byte[] bArray, int length)
+	/**
+	 * Stands in for the pixels of a SCREEN_SEGMENT_UPDATE or
+	 * ENTIRE_SCREEN_UPDATE, which follow the serialized object as raw big
+	 * endian ints, so a reader can take them without deserializing an int[].
+	 */
+	private static final class TrailingIntArray implements Serializable
 	{
-	    Object rval = null;
+	    // Generated: serialVersionUID
+	    private static final long serialVersionUID = 4368285047640261638L;
 	    
-	    ByteArrayInputStream bis = new ByteArrayInputStream(bArray, 0, length);
-	    
-	    try
-        {
-            GZIPInputStream gzip_in = new GZIPInputStream(bis);
-            ObjectInputStream ois = new ObjectInputStream(gzip_in);
-            
-            rval = ois.readObject();
-            ois.close();
-            gzip_in.close();
-        }
-        catch (IOException e)
-        {
-            LLog.e(e);
-        }
-        catch (ClassNotFoundException e)
-        {
-            LLog.e(e);
-        }
-	    
-	    try
-        {
-            bis.close();
-        }
-        catch (IOException e)
-        {
-            LLog.e(e);
-        }
-	    
-	    return rval;
+	    int length;
 	}
 	
-	public static ByteBufferPool.PoolRef getCompressed(SERVER_EVENT event, Object... args)
+	public static DirectByteBufferPool.PoolRef getCompressed(SERVER_EVENT event, Object... args)
 	{
+	    DirectByteBufferPool.PoolRef rval = null;
+	    
 	    try
 	    {
 	        precompSema.acquire();
@@ -84,240 +73,780 @@ public class Msg implements Serializable
 	    }
 	    try
 	    {
-	        return compress(null, (args == null) ? event : new Msg(event, args));
+	        if (precompWriter == null)
+	        {
+	            precompWriter = new CompressedObjectWriter();
+	        }
+	        ReusableByteArrayOutputStream compressed = precompWriter.write(event, args);
+	        if (compressed != null)
+	        {
+	            rval = getBufferPool().acquire(compressed.size());
+	            ByteBuffer buffer = rval.get();
+	            buffer.clear();
+	            compressed.toByteBuffer(buffer);
+	            buffer.flip();
+	        }
 	    }
 	    finally {
 	        precompSema.release();
 	    }
+	    
+	    return rval;
 	}
 	
-	private static ByteBufferPool.PoolRef compress(BufferedOutputStream out, Object obj)
+	private static ReusableByteArrayOutputStream compress(BufferedOutputStream out, Object event, Object[] args)
 	{
-	    ByteBufferPool.PoolRef rval = null;
-	    ReusableByteArrayOutputStream rbos;
-	    int resultSize;
+	    CompressedObjectWriter writer;
 	    
-	    if (out == null)
+	    synchronized(compressionCache)
 	    {
-	        if (precompRBOS == null)
+	        writer = compressionCache.get(out);
+	        if (writer == null)
 	        {
-	            precompRBOS = new ReusableByteArrayOutputStream();
+	            writer = new CompressedObjectWriter();
+	            compressionCache.put(out, writer);
 	        }
-	        else
+	    }
+	    
+	    return writer.write(event, args);
+	}
+	
+	/**
+	 * send(out, jce, event) without the empty varargs, for an event that
+	 * is shared
+	 */
+	public static void send(FrameChannel out, JitCompressable jce) throws IOException
+	{
+	    // Shared by every client the event fans out to, never copied
+	    out.write(jce);
+	}
+	
+	public static void send(FrameChannel out, JitCompressable jce, SERVER_EVENT event, Object... args) throws IOException
+	{
+	    if (jce == null)
+	    {
+	        ReusableByteArrayOutputStream compressed = out.writer.write(event, args);
+	        if (compressed == null)
 	        {
-	            precompRBOS.reset();
+	            return;
 	        }
-	        rbos = precompRBOS;
+	        // the channel releases it once written
+	        DirectByteBufferPool.PoolRef ref = getBufferPool().acquire(compressed.size());
+	        ByteBuffer payload = ref.get();
+	        payload.clear();
+	        compressed.toByteBuffer(payload);
+	        payload.flip();
+	        out.write(ref);
 	    }
 	    else
 	    {
-    	    rbos = compressionCache.get(out);
-    	    if (rbos == null)
-    	    {
-    	        rbos = new ReusableByteArrayOutputStream();
-    	        compressionCache.put(out, rbos);
-    	    }
-    	    else
-    	    {
-    	        rbos.reset();
-    	    }
+	        // Shared by every client the event fans out to, never copied
+	        out.write(jce);
 	    }
-	    
-	    try
-        {
-	        GZIPOutputStream gzip_out = new GZIPOutputStream(rbos);
-            ObjectOutputStream oos = new ObjectOutputStream(gzip_out);
-            oos.writeObject(obj);
-            oos.flush();
-            gzip_out.flush();
-            oos.close();
-            gzip_out.close();
-            
-            resultSize = rbos.size();
-            if (out == null)
-            {
-                if (bufferPool == null)
-                {
-                    try
-                    {
-                        bufferPoolLock.acquire();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        LLog.e(e);
-                    }
-                    try
-                    {
-                        if (bufferPool == null)
-                        {
-                            bufferPool = new ByteBufferPool();
-                        }
-                    }
-                    finally {
-                        bufferPoolLock.release();
-                    }
-                }
-                rval = bufferPool.acquire(rbos.size());
-                rbos.toByteArray(rval.get());
-            }
-            else
-            {
-                ByteBufferPool resultCache = compressionResultCache.get(out);
-                if (resultCache == null)
-                {
-                    resultCache = new ByteBufferPool();
-                    compressionResultCache.put(out, resultCache);
-                }
-                rval = resultCache.acquire(resultSize);
-                rbos.toByteArray(rval.get());
-            }
-        }
-        catch (IOException e)
-        {
-            LLog.e(e);
-        }
-	    
-	    return rval;
-	}
-	
-	public static void send(BufferedOutputStream out, JitCompressable jce, SERVER_EVENT event, Object... args) throws IOException
-	{
-		_send(out, jce, event, args);
 	}
 	
 	public static void send(BufferedOutputStream out, CLIENT_EVENT event, Object... args) throws IOException
 	{
-		_send(out, null, event, args);
+		_send(out, event, args);
 	}
 	
-	private static void _send(BufferedOutputStream out, JitCompressable jce, Object event, Object... args) throws IOException
+	private static void _send(BufferedOutputStream out, Object event, Object... args) throws IOException
 	{
-	    ByteBufferPool.PoolRef outBufferRef = null;
+	    ReusableByteArrayOutputStream compressed;
 	    byte[] outBuffer;
+	    int length;
 	    
-	    try
+	    compressed = compress(out, event, args);
+	    if (compressed == null)
 	    {
-    	    if (jce == null)
-    	    {
-    	        if (args == null)
-        		{
-        	        outBufferRef = compress(out, event);
-        		}
-        		else
-        		{
-        		    outBufferRef = compress(out, new Msg(event, args));
-        		}
-        	    outBuffer = outBufferRef.get();
-        	}
-    	    else
-    	    {
-    	        outBuffer = jce.getCompressed();
-    	    }
-    	    
-    	    if (outBuffer.length > 0)
-    	    {
-    	        out.write(outBuffer.length & 0xff);
-    	        out.write((outBuffer.length >> 8) & 0xff);
-    	        out.write((outBuffer.length >> 16) & 0xff);
-    	        out.write((outBuffer.length >> 24) & 0xff);
-        	    out.write(outBuffer);
-        	    
-        		// out.flush();
-        		// Flushing has moved into the higher layer (I/O dispatcher task generation)
-        	    // This layer has full knowledge of all the dispatchers writing to the I/O layers
-        	    // And so a flush can easily occur there when the task see's that
-        	    // the dispatchers have nothing new to write
-    	    }
+	        return;
 	    }
-	    finally {
-    	    if (outBufferRef != null)
-    	    {
-    	        outBufferRef.release();
-    	    }
+	    outBuffer = compressed.getBuffer();
+	    length = compressed.size();
+	    
+	    if (length > 0)
+	    {
+	        out.write(length & 0xff);
+	        out.write((length >> 8) & 0xff);
+	        out.write((length >> 16) & 0xff);
+	        out.write((length >> 24) & 0xff);
+	        out.write(outBuffer, 0, length);
+	        
+	        // out.flush();
+	        // Flushing has moved into the higher layer (I/O dispatcher task generation)
+	        // This layer has full knowledge of all the dispatchers writing to the I/O layers
+	        // And so a flush can easily occur there when the task see's that
+	        // the dispatchers have nothing new to write
 	    }
 	}
 	
+	/**
+	 * Writes objects as gzip frames CompressedObjectReader reads.
+	 *
+	 * All encode state is owned by the writer and reused for every frame:
+	 * one ObjectOutputStream reset between frames, one Deflater/CRC32 pair
+	 * and the buffers for the serialized and compressed bytes. A frame is
+	 * what a fresh ObjectOutputStream wrapped in a fresh GZIPOutputStream
+	 * would have written, except that the pixels of a SCREEN_SEGMENT_UPDATE
+	 * or ENTIRE_SCREEN_UPDATE are replaced by a TrailingIntArray and
+	 * appended to the serialized bytes.
+	 *
+	 * Messages are written through a Msg of the writer's own per event, its
+	 * args copied in and cleared again, so writing one allocates nothing
+	 * beyond what ObjectOutputStream does.
+	 *
+	 * Not thread safe, one instance per stream.
+	 */
+	public static class CompressedObjectWriter
+	{
+	    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+	    private static final byte[] STREAM_HEADER = new byte[]{
+	        (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+	        (byte) (ObjectStreamConstants.STREAM_VERSION >> 8), (byte) ObjectStreamConstants.STREAM_VERSION
+	    };
+	    private static final int CHUNK_SIZE = 4096;
+
+	    private final ReusableByteArrayOutputStream serialized;
+	    private final ReusableByteArrayOutputStream compressed;
+	    private final Deflater deflater;
+	    private final CRC32 crc;
+	    private final byte[] chunk;
+	    private final TrailingIntArray trailer = new TrailingIntArray();
+	    private final HashMap<Object,Msg> msgs = new HashMap<Object,Msg>();
+	    private ObjectOutputStream oos = null;
+
+	    public CompressedObjectWriter()
+	    {
+	        serialized = new ReusableByteArrayOutputStream(CHUNK_SIZE);
+	        compressed = new ReusableByteArrayOutputStream(CHUNK_SIZE);
+	        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	        crc = new CRC32();
+	        chunk = new byte[CHUNK_SIZE];
+	    }
+
+	    /**
+	     * @param obj
+	     * @return the frame, valid until the next call, or null if obj
+	     *         could not be serialized
+	     */
+	    public ReusableByteArrayOutputStream write(Object obj)
+	    {
+	        if (obj instanceof Msg)
+	        {
+	            Msg msg = (Msg) obj;
+	            return write(msg.event, msg.args);
+	        }
+
+	        return encode(obj, null);
+	    }
+
+	    /**
+	     * As write(new Msg(event, args)), or write(event) for null args.
+	     *
+	     * @param event
+	     * @param args only read
+	     * @return the frame, valid until the next call, or null if the
+	     *         message could not be serialized
+	     */
+	    public ReusableByteArrayOutputStream write(Object event, Object[] args)
+	    {
+	        Msg msg;
+	        int idx;
+	        int[] pixels = null;
+
+	        if (args == null)
+	        {
+	            return encode(event, null);
+	        }
+	        msg = msgs.get(event);
+	        if (msg == null || msg.args.length != args.length)
+	        {
+	            msg = new Msg(event, new Object[args.length]);
+	            msgs.put(event, msg);
+	        }
+	        System.arraycopy(args, 0, msg.args, 0, args.length);
+	        try
+	        {
+	            idx = getPixelsIndex(msg);
+	            if (idx >= 0)
+	            {
+	                pixels = (int[]) msg.args[idx];
+	                trailer.length = pixels.length;
+	                msg.args[idx] = trailer;
+	            }
+
+	            return encode(msg, pixels);
+	        }
+	        finally {
+	            Arrays.fill(msg.args, null);
+	        }
+	    }
+
+	    /**
+	     * @param obj
+	     * @param pixels appended to the serialized bytes, may be null
+	     */
+	    private ReusableByteArrayOutputStream encode(Object obj, int[] pixels)
+	    {
+	        int length, dp;
+	        byte[] buffer;
+
+	        try
+	        {
+	            if (oos == null)
+	            {
+	                oos = new ObjectOutputStream(serialized);
+	            }
+	            // the stream header written by hand, the open stream was reset
+	            // after the previous frame and so has no handles to refer back to
+	            serialized.reset();
+	            serialized.write(STREAM_HEADER, 0, STREAM_HEADER.length);
+	            oos.writeObject(obj);
+	            oos.flush();
+	            if (pixels != null)
+	            {
+	                serialized.writeInts(pixels, 0, pixels.length);
+	            }
+	            length = serialized.size();
+	            oos.reset();
+	        }
+	        catch (IOException e)
+	        {
+	            LLog.e(e);
+	            oos = null;
+	            return null;
+	        }
+
+	        buffer = serialized.getBuffer();
+	        crc.reset();
+	        crc.update(buffer, 0, length);
+	        deflater.reset();
+	        deflater.setInput(buffer, 0, length);
+	        deflater.finish();
+
+	        compressed.reset();
+	        compressed.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+	        while (!deflater.finished())
+	        {
+	            dp = deflater.deflate(chunk, 0, chunk.length);
+	            compressed.write(chunk, 0, dp);
+	        }
+	        writeInt(compressed, (int) crc.getValue());
+	        writeInt(compressed, length);
+
+	        return compressed;
+	    }
+
+	    /**
+	     * @return the index of the int[] argument carrying the pixels of a
+	     *         SCREEN_SEGMENT_UPDATE or ENTIRE_SCREEN_UPDATE, -1 for any other message
+	     */
+	    private static int getPixelsIndex(Msg msg)
+	    {
+	        int rval = -1;
+	        
+	        if (msg.args != null && (msg.event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE || msg.event == SERVER_EVENT.ENTIRE_SCREEN_UPDATE))
+	        {
+	            for (int i=0; i<msg.args.length; i++)
+	            {
+	                if (msg.args[i] instanceof int[])
+	                {
+	                    rval = i;
+	                    break;
+	                }
+	            }
+	        }
+	        
+	        return rval;
+	    }
+
+	    private static void writeInt(ReusableByteArrayOutputStream out, int value)
+	    {
+	        out.write(value & 0xff);
+	        out.write((value >> 8) & 0xff);
+	        out.write((value >> 16) & 0xff);
+	        out.write((value >> 24) & 0xff);
+	    }
+	}
+	
+	/**
+	 * Reads length-prefixed gzip frames straight off a channel.
+	 *
+	 * All decode state is owned by the reader and reused for every frame:
+	 * a pooled direct buffer for the frame, one Inflater/CRC32 pair, one
+	 * decode buffer and one ObjectInputStream for the whole connection.
+	 *
+	 * The pixels a TrailingIntArray stands in for are read from the end of
+	 * the frame. With setIntArrayDetachThreshold they are not copied at all
+	 * once large enough, but handed out as a PackedIntArray over the decode
+	 * buffer.
+	 *
+	 * Not thread safe, one instance per connection.
+	 */
 	public static class CompressedObjectReader
 	{
-	    private BufferedInputStream in;
-	    private byte[] buffer;
-	    private int pos,
-            dp,
-            size;
-        
+	    private static final int GZIP_HEADER_SIZE = 10;
+	    private static final int GZIP_TRAILER_SIZE = 8;
+	    private static final int FHCRC = 2;
+	    private static final int FEXTRA = 4;
+	    private static final int FNAME = 8;
+	    private static final int FCOMMENT = 16;
+	    private static final int MIN_BUFFER_SIZE = 4096;
+
+	    private final ByteBuffer header;
+	    private DirectByteBufferPool.PoolRef frameRef = null;
+	    private ByteBuffer frame = null;
+
+	    private final Inflater inflater;
+	    private final CRC32 crc;
+	    private final byte[] chunk;
+	    private byte[] decoded;
+
+	    private final FrameInputStream frameIn;
+	    private ObjectInputStream ois = null;
+	    private int intArrayDetachThreshold = -1;
+	    private final PackedIntArray detached = new PackedIntArray();
+
+	    private volatile long bytesRead = 0L;
+
         public CompressedObjectReader()
         {
-            buffer = new byte[4];
+            header = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+            inflater = new Inflater(true);
+            crc = new CRC32();
+            chunk = new byte[MIN_BUFFER_SIZE];
+            decoded = new byte[MIN_BUFFER_SIZE];
+            frameIn = new FrameInputStream();
+        }
+
+        /**
+         * Detaches the pixels of SCREEN_SEGMENT_UPDATE and ENTIRE_SCREEN_UPDATE
+         * once there are at least minLength of them, the object read holds
+         * them as a PackedIntArray valid only until the next read. Set before
+         * the first read, negative to always have them copied into an int[].
+         * 
+         * @param minLength
+         */
+        public void setIntArrayDetachThreshold(int minLength)
+        {
+            assert_(ois == null);
+            intArrayDetachThreshold = minLength;
+        }
+
+        /**
+         * @return the total number of bytes consumed from the channel, frame
+         *         headers included
+         */
+        public long getBytesRead()
+        {
+            return bytesRead;
         }
-        
-        private void fillBuffer() throws IOException
+
+        private boolean fillBuffer(ReadableByteChannel in, ByteBuffer buffer) throws IOException
         {
-            do
+            int dp;
+
+            while (buffer.hasRemaining())
             {
-                
-                dp = in.read(buffer, pos, size-pos);
+                dp = in.read(buffer);
                 if (dp < 0)
                 {
-                    break;
+                    return false;
+                }
+                bytesRead += dp;
+            }
+
+            return true;
+        }
+
+        private static int nextBufferSize(int size)
+        {
+            int rval = MIN_BUFFER_SIZE;
+
+            while (rval < size && rval > 0)
+            {
+                rval <<= 1;
+            }
+
+            return (rval > 0) ? rval : size;
+        }
+
+        private ByteBuffer getFrameBuffer(int size)
+        {
+            ByteBuffer rval = frame;
+
+            if (rval == null || rval.capacity() < size)
+            {
+                if (frameRef != null)
+                {
+                    frameRef.release();
+                    frameRef = null;
+                    frame = null;
                 }
-                pos += dp;
-                
-            } while (pos < size);
+                frameRef = getBufferPool().acquire(nextBufferSize(size));
+                rval = frameRef.get();
+                frame = rval;
+            }
+
+            rval.clear();
+            rval.limit(size);
+            rval.order(ByteOrder.LITTLE_ENDIAN);
+
+            return rval;
         }
-        
-        public Object readObject(BufferedInputStream in) throws IOException
+
+        public Object readObject(ReadableByteChannel in) throws IOException
+        {
+            return readFrame(in) ? decodeFrame() : null;
+        }
+
+        /**
+         * Reads the next frame off the channel into the frame buffer
+         * without decoding it, see decodeFrame.
+         *
+         * @return false at the end of the stream
+         */
+        boolean readFrame(ReadableByteChannel in) throws IOException
+        {
+            int size;
+            ByteBuffer l_frame;
+
+            header.clear();
+            if (!fillBuffer(in, header))
+            {
+                return false;
+            }
+
+            size = header.getInt(0);
+            if (size <= 0)
+            {
+                throw new StreamCorruptedException(String.format("Invalid frame length: %d", size));
+            }
+
+            l_frame = getFrameBuffer(size);
+            if (!fillBuffer(in, l_frame))
+            {
+                return false;
+            }
+            l_frame.flip();
+
+            return true;
+        }
+
+        /**
+         * Inflates and deserializes the frame last read by readFrame.
+         *
+         * @return the object, null if the frame could not be decoded
+         */
+        Object decodeFrame()
         {
             Object rval = null;
-            
-            this.in = in;
-            
+            int length;
+
+            try
+            {
+                length = inflate(frame);
+                rval = deserialize(decoded, length);
+            }
+            catch (IOException e)
+            {
+                LLog.e(e);
+            }
+            catch (ClassNotFoundException e)
+            {
+                LLog.e(e);
+            }
+
+            return rval;
+        }
+
+        /**
+         * Inflates the gzip member in frame into the decode buffer.
+         *
+         * @return the number of decoded bytes
+         */
+        private int inflate(ByteBuffer frame) throws IOException
+        {
+            int size = frame.limit();
+            int pos, trailer, flags, expectedCRC, expectedSize, produced, dp;
+
+            if (size < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE
+                    || (0xff & frame.get(0)) != 0x1f
+                    || (0xff & frame.get(1)) != 0x8b)
+            {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (frame.get(2) != Deflater.DEFLATED)
+            {
+                throw new ZipException("Unsupported compression method");
+            }
+            flags = 0xff & frame.get(3);
+            pos = GZIP_HEADER_SIZE;
+            trailer = size - GZIP_TRAILER_SIZE;
+            if ((flags & FEXTRA) != 0)
+            {
+                pos += 2 + (0xffff & frame.getShort(pos));
+            }
+            if ((flags & FNAME) != 0)
+            {
+                while (pos < trailer && frame.get(pos++) != 0);
+            }
+            if ((flags & FCOMMENT) != 0)
+            {
+                while (pos < trailer && frame.get(pos++) != 0);
+            }
+            if ((flags & FHCRC) != 0)
+            {
+                pos += 2;
+            }
+            if (pos > trailer)
+            {
+                throw new EOFException("Truncated GZIP header");
+            }
+
+            expectedCRC = frame.getInt(trailer);
+            expectedSize = frame.getInt(trailer + 4);
+            if (expectedSize < 0)
+            {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+
+            // one spare byte so a lying trailer cannot stall the inflater
+            if (decoded.length <= expectedSize)
+            {
+                decoded = new byte[nextBufferSize(expectedSize + 1)];
+            }
+
+            frame.position(pos);
+            frame.limit(trailer);
+            inflater.reset();
+            crc.reset();
+            produced = 0;
+
             try
             {
-                
-                do
+                while (!inflater.finished())
                 {
-                    pos = 0;
-                    size = 4;
-                    
-                    fillBuffer();
-                    
-                    if (dp < 1)
+                    if (inflater.needsInput())
                     {
-                        // why would it ever be zero and allowed to continue?
-                        break;
+                        dp = Math.min(chunk.length, frame.remaining());
+                        if (dp <= 0)
+                        {
+                            throw new EOFException("Unexpected end of ZLIB input stream");
+                        }
+                        frame.get(chunk, 0, dp);
+                        inflater.setInput(chunk, 0, dp);
                     }
-                    
-                    pos = 0;
-                    size = (0xff & buffer[0])
-                        | ((0xff & buffer[1]) << 8)
-                        | ((0xff & buffer[2]) << 16)
-                        | ((0xff & buffer[3]) << 24);
-                    
-                    if (buffer.length < size)
+                    dp = inflater.inflate(decoded, produced, decoded.length - produced);
+                    produced += dp;
+                    if (produced > expectedSize || (dp == 0 && inflater.needsDictionary()))
                     {
-                        buffer = new byte[size];
+                        throw new ZipException("Corrupt GZIP trailer");
                     }
-                    
-                    fillBuffer();
-                    
-                    if (dp < 1)
+                }
+            }
+            catch (DataFormatException e)
+            {
+                String msg = e.getMessage();
+                throw new ZipException((msg == null) ? "Invalid ZLIB data format" : msg);
+            }
+
+            crc.update(decoded, 0, produced);
+            if (produced != expectedSize || ((int) crc.getValue()) != expectedCRC)
+            {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+
+            return produced;
+        }
+
+        private Object deserialize(byte[] buffer, int length) throws IOException, ClassNotFoundException
+        {
+            Object rval;
+            boolean success = false;
+
+            try
+            {
+                if (ois == null)
+                {
+                    frameIn.set(buffer, 0, length, false);
+                    ois = new DetachingObjectInputStream(frameIn);
+                }
+                else
+                {
+                    // Every frame was written by a fresh ObjectOutputStream
+                    // Swap its stream header for a reset marker so the open
+                    // stream drops the previous frame's handles instead of being rebuilt
+                    if (length < 4
+                            || (((0xff & buffer[0]) << 8) | (0xff & buffer[1])) != (0xffff & ObjectStreamConstants.STREAM_MAGIC)
+                            || (((0xff & buffer[2]) << 8) | (0xff & buffer[3])) != ObjectStreamConstants.STREAM_VERSION)
                     {
-                        // why would it ever be zero and allowed to continue?
-                        break;
+                        throw new StreamCorruptedException("invalid stream header");
                     }
-                    
-                    rval = decompress(buffer, size);
-                    
-                } while (Boolean.FALSE);
-                
+                    frameIn.set(buffer, 4, length - 4, true);
+                }
+                rval = ois.readObject();
+                success = true;
             }
             finally {
-                
-                this.in = null;
-                
+                if (!success)
+                {
+                    ois = null;
+                }
             }
-            
+
+            return rval;
+        }
+
+        /**
+         * Takes the pixels a TrailingIntArray stands in for off the end of
+         * the frame, which the stream then ends before.
+         */
+        private Object takeTrailingIntArray(int count) throws StreamCorruptedException
+        {
+            int start = frameIn.getEnd() - 4 * count;
+            int[] rval;
+
+            if (count < 0 || start < frameIn.getPosition())
+            {
+                throw new StreamCorruptedException(String.format("Invalid trailing int array length: %d", count));
+            }
+            frameIn.setEnd(start);
+            detached.set(frameIn.getBuffer(), start, count);
+            if (intArrayDetachThreshold >= 0 && count >= intArrayDetachThreshold)
+            {
+                return detached;
+            }
+            rval = new int[count];
+            detached.copyTo(0, rval, 0, count);
+
             return rval;
         }
+
+        private class DetachingObjectInputStream extends ObjectInputStream
+        {
+            DetachingObjectInputStream(InputStream in) throws IOException
+            {
+                super(in);
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException
+            {
+                if (obj instanceof TrailingIntArray)
+                {
+                    return takeTrailingIntArray(((TrailingIntArray) obj).length);
+                }
+
+                return obj;
+            }
+        }
+
+        /**
+         * Returns the pooled frame buffer and native inflater state.
+         * The reader must not be used afterwards.
+         */
+        public void release()
+        {
+            try
+            {
+                if (frameRef != null)
+                {
+                    frameRef.release();
+                }
+            }
+            finally {
+                frameRef = null;
+                frame = null;
+                ois = null;
+                inflater.end();
+            }
+        }
+
+        private static class FrameInputStream extends InputStream
+        {
+            private byte[] buffer = null;
+            private int pos = 0;
+            private int end = 0;
+            private boolean pendingReset = false;
+
+            void set(byte[] buffer, int offset, int length, boolean prependReset)
+            {
+                this.buffer = buffer;
+                pos = offset;
+                end = offset + length;
+                pendingReset = prependReset;
+            }
+
+            byte[] getBuffer()
+            {
+                return buffer;
+            }
+
+            int getPosition()
+            {
+                return pos;
+            }
+
+            int getEnd()
+            {
+                return end;
+            }
+
+            /**
+             * @param end the stream ends here, the bytes past it are read
+             *        from the buffer directly
+             */
+            void setEnd(int end)
+            {
+                this.end = end;
+            }
+
+            @Override
+            public int read()
+            {
+                if (pendingReset)
+                {
+                    pendingReset = false;
+                    return 0xff & ObjectStreamConstants.TC_RESET;
+                }
+
+                return (pos < end) ? (0xff & buffer[pos++]) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                int rval;
+
+                if (len <= 0)
+                {
+                    return 0;
+                }
+
+                if (pendingReset)
+                {
+                    b[off] = (byte) read();
+                    return 1;
+                }
+
+                rval = Math.min(len, end - pos);
+                if (rval <= 0)
+                {
+                    return -1;
+                }
+                System.arraycopy(buffer, pos, b, off, rval);
+                pos += rval;
+
+                return rval;
+            }
+
+            @Override
+            public int available()
+            {
+                return (pendingReset ? 1 : 0) + end - pos;
+            }
+        }
 	}
 }
@@ -4,14 +4,44 @@ import java.io.BufferedOutputStream;
 import java.util.WeakHashMap;
 import java.util.concurrent.Semaphore;
 
-import com.jcope.util.ReusableByteArrayOutputStream;
+import com.jcope.debug.LLog;
 
 public class MsgCache
 {
-    protected static WeakHashMap<BufferedOutputStream, ReusableByteArrayOutputStream> compressionCache = new WeakHashMap<BufferedOutputStream, ReusableByteArrayOutputStream>(1);
-    protected static WeakHashMap<BufferedOutputStream, ByteBufferPool> compressionResultCache = new WeakHashMap<BufferedOutputStream, ByteBufferPool>(1);
-    protected static volatile ReusableByteArrayOutputStream precompRBOS = null;
+    protected static WeakHashMap<BufferedOutputStream, Msg.CompressedObjectWriter> compressionCache = new WeakHashMap<BufferedOutputStream, Msg.CompressedObjectWriter>(1);
+    protected static volatile Msg.CompressedObjectWriter precompWriter = null;
     protected static final Semaphore bufferPoolLock = new Semaphore(1, true);
-    public static volatile ByteBufferPool bufferPool = null;
+    public static volatile DirectByteBufferPool bufferPool = null;
     protected static final Semaphore precompSema = new Semaphore(1, true);
+    
+    public static DirectByteBufferPool getBufferPool()
+    {
+        DirectByteBufferPool rval = bufferPool;
+        
+        if (rval == null)
+        {
+            try
+            {
+                bufferPoolLock.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                LLog.e(e);
+            }
+            try
+            {
+                rval = bufferPool;
+                if (rval == null)
+                {
+                    rval = new DirectByteBufferPool();
+                    bufferPool = rval;
+                }
+            }
+            finally {
+                bufferPoolLock.release();
+            }
+        }
+        
+        return rval;
+    }
 }
@@ -0,0 +1,242 @@
+package com.jcope.vnc.shared;
+
+import static com.jcope.debug.Debug.assert_;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.shared.Msg.CompressedObjectReader;
+
+/**
+ *
+ * Reads frames off a channel on its own thread and has them inflated and
+ * deserialized on a decoder pool, while readObject hands the objects out
+ * in the order the frames arrived.
+ *
+ * Frames go round a ring of slots, each with its own CompressedObjectReader.
+ * Every frame carries its own stream header so slots decode independently,
+ * and a slot is only refilled once the object taken from it is done with:
+ * a detached PackedIntArray stays valid until the next readObject, as with
+ * a plain CompressedObjectReader.
+ *
+ * readObject and release are for one consumer thread only.
+ *
+ */
+
+public class PipelinedObjectReader
+{
+    private static class Slot implements Runnable
+    {
+        final CompressedObjectReader reader = new CompressedObjectReader();
+        // released once the slot holds a result
+        final Semaphore done = new Semaphore(0, true);
+        // held while the slot is being read into and decoded
+        final Semaphore idle = new Semaphore(1, true);
+        Object obj = null;
+        IOException error = null;
+        boolean end = false;
+        long bytesRead = 0L;
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                obj = reader.decodeFrame();
+            }
+            finally {
+                idle.release();
+                done.release();
+            }
+        }
+    }
+
+    private final ReadableByteChannel in;
+    private final Executor decoders;
+    private final Slot[] slots;
+    private final Semaphore freeSlots;
+    private Thread readerThread = null;
+    private volatile boolean closed = false;
+    private int nextSlot = 0;
+    private Slot current = null;
+    private volatile long bytesApplied = 0L;
+
+    /**
+     * @param in the channel frames are read from
+     * @param decoders runs the decoding
+     * @param depth frames read ahead of the consumer at most
+     */
+    public PipelinedObjectReader(ReadableByteChannel in, Executor decoders, int depth)
+    {
+        assert_(depth > 0);
+        this.in = in;
+        this.decoders = decoders;
+        slots = new Slot[depth];
+        for (int i=0; i<depth; i++)
+        {
+            slots[i] = new Slot();
+        }
+        freeSlots = new Semaphore(depth, true);
+    }
+
+    /**
+     * See CompressedObjectReader.setIntArrayDetachThreshold, set before the
+     * first read.
+     *
+     * @param minLength
+     */
+    public void setIntArrayDetachThreshold(int minLength)
+    {
+        assert_(readerThread == null);
+        for (Slot slot : slots)
+        {
+            slot.reader.setIntArrayDetachThreshold(minLength);
+        }
+    }
+
+    /**
+     * @return the number of bytes consumed from the channel up to the end
+     *         of the frame last returned by readObject
+     */
+    public long getBytesRead()
+    {
+        return bytesApplied;
+    }
+
+    private void start()
+    {
+        readerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                readFrames();
+            }
+
+        }, "Frame reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private void readFrames()
+    {
+        Slot slot;
+        int idx = 0;
+        long bytesRead = 0L, before;
+
+        while (true)
+        {
+            freeSlots.acquireUninterruptibly();
+            if (closed)
+            {
+                break;
+            }
+            slot = slots[idx];
+            idx = (idx + 1) % slots.length;
+            slot.idle.acquireUninterruptibly();
+            slot.obj = null;
+            try
+            {
+                before = slot.reader.getBytesRead();
+                if (!slot.reader.readFrame(in))
+                {
+                    slot.end = true;
+                }
+                bytesRead += slot.reader.getBytesRead() - before;
+                slot.bytesRead = bytesRead;
+            }
+            catch (IOException e)
+            {
+                slot.error = e;
+            }
+            catch (RuntimeException e)
+            {
+                slot.error = new IOException(e);
+            }
+            if (slot.end || slot.error != null)
+            {
+                slot.idle.release();
+                slot.done.release();
+                break;
+            }
+            decoders.execute(slot);
+        }
+    }
+
+    /**
+     * @return the next object in frame order, null at the end of the stream
+     *         or when a frame could not be decoded
+     * @throws IOException if reading the channel failed
+     */
+    public Object readObject() throws IOException
+    {
+        Slot slot;
+
+        if (readerThread == null)
+        {
+            start();
+        }
+
+        if (current != null)
+        {
+            current.obj = null;
+            current = null;
+            freeSlots.release();
+        }
+
+        slot = slots[nextSlot];
+        slot.done.acquireUninterruptibly();
+        nextSlot = (nextSlot + 1) % slots.length;
+
+        if (slot.error != null)
+        {
+            throw slot.error;
+        }
+        if (slot.end)
+        {
+            return null;
+        }
+        bytesApplied = slot.bytesRead;
+        current = slot;
+
+        return slot.obj;
+    }
+
+    /**
+     * Stops reading ahead and releases every slot's buffers, close the
+     * channel first so a blocked read returns.
+     */
+    public void release()
+    {
+        closed = true;
+        freeSlots.release(slots.length);
+        if (readerThread != null)
+        {
+            try
+            {
+                readerThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                LLog.e(e);
+            }
+        }
+        current = null;
+        for (Slot slot : slots)
+        {
+            // wait out a decode still in flight
+            slot.idle.acquireUninterruptibly();
+            try
+            {
+                slot.reader.release();
+            }
+            finally {
+                slot.obj = null;
+                slot.idle.release();
+            }
+        }
+    }
+}
@@ -29,14 +29,37 @@ public class ScreenSelector
 {
     public static final Color transparent = new Color(0, true);
     
+    // when set these are offered in place of the local screens, see setScreenDevices
+    private static volatile GraphicsDevice[] screenDevices = null;
+    
     public static GraphicsDevice[] getScreenDevices()
     {
-        GraphicsDevice[] rval = GraphicsEnvironment
+        GraphicsDevice[] rval = screenDevices;
+        
+        if (rval == null)
+        {
+            rval = GraphicsEnvironment
                 .getLocalGraphicsEnvironment().getScreenDevices();
+        }
+        else
+        {
+            rval = rval.clone();
+        }
         
         return rval;
     }
     
+    /**
+     * Used by a relay to serve the screens it receives from upstream
+     * instead of the screens of the machine it runs on.
+     * 
+     * @param devices null to restore the local screens
+     */
+    public static void setScreenDevices(GraphicsDevice[] devices)
+    {
+        screenDevices = (devices == null) ? null : devices.clone();
+    }
+    
     public static GraphicsDevice[] getScreenDevicesOrdered()
     {
         GraphicsDevice[] rval = getScreenDevices();
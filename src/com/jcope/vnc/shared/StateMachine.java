@@ -29,7 +29,13 @@ public class StateMachine
         GET_CLIPBOARD,
         CLIPBOARD_CHANGED,
         SET_CLIPBOARD,
-        SET_SCREEN_MONITOR_PAUSED
+        SET_SCREEN_MONITOR_PAUSED,
+        ACKNOWLEDGE_BYTES, // running total of bytes consumed from the server
+        PONG, // echoes the stamp of a PING
+        ENABLE_SERVER_PUSH, // server sends changed segments without waiting for GET_SCREEN_SEGMENT
+        REQUEST_INTERACTIVE_CHANNEL, // asks for a token to open a second connection for interactive events
+        ATTACH_INTERACTIVE_CHANNEL, // first event on the second connection, carries the token
+        RESUME_SESSION // sent before SELECT_SCREEN with the session token and last applied frame
         
         ;
     };
@@ -72,7 +78,12 @@ public class StateMachine
         
         ENTIRE_SCREEN_UPDATE,
         
-        END_OF_FRAME
+        END_OF_FRAME,
+        
+        PING, // round trip probe, answered by client event PONG
+        
+        INTERACTIVE_CHANNEL_TOKEN, // response to client event REQUEST_INTERACTIVE_CHANNEL
+        SESSION_TOKEN // identifies the session for RESUME_SESSION after a reconnect
         
         ;
         
@@ -102,6 +113,7 @@ public class StateMachine
                 case SET_CLIPBOARD:
                 case ENTIRE_SCREEN_UPDATE:
                 case END_OF_FRAME:
+                case PING:
                     rval = Boolean.FALSE;
                     break;
                 
@@ -116,6 +128,8 @@ public class StateMachine
                 case CONNECTION_ESTABLISHED:
                 case FAILED_AUTHORIZATION:
                 case ALIAS_CHANGED:
+                case INTERACTIVE_CHANNEL_TOKEN:
+                case SESSION_TOKEN:
                     rval = Boolean.TRUE;
                     break;
             }
@@ -150,6 +164,10 @@ public class StateMachine
                 case CLIENT_ALIAS_UPDATE:
                 case READ_INPUT_EVENTS:
                 case SET_CLIPBOARD:
+                case PING:
+                case END_OF_FRAME: // running count of answered frame requests
+                case INTERACTIVE_CHANNEL_TOKEN:
+                case SESSION_TOKEN:
                     rval = Boolean.TRUE;
                     break;
                 
@@ -164,7 +182,6 @@ public class StateMachine
                 case SCREEN_SEGMENT_CHANGED:
                 case CLIPBOARD_CHANGED:
                 case GET_CLIPBOARD:
-                case END_OF_FRAME:
                 case ENTIRE_SCREEN_UPDATE:
                     rval = Boolean.FALSE;
                     break;
@@ -213,6 +230,57 @@ public class StateMachine
                 case FAILED_AUTHORIZATION:
                 case ALIAS_CHANGED:
                 case ENTIRE_SCREEN_UPDATE:
+                case PING:
+                case INTERACTIVE_CHANNEL_TOKEN:
+                case SESSION_TOKEN:
+                    rval = Boolean.FALSE;
+                    break;
+            }
+            
+            return rval;
+        }
+        
+        public boolean isInteractive()
+        {
+            Boolean rval = null;
+            
+            switch (this)
+            {
+                // Small latency sensitive events that may travel on the
+                // interactive channel, when one is attached, so they never
+                // queue behind screen segment data
+                case CURSOR_GONE:
+                case CURSOR_MOVE:
+                case READ_INPUT_EVENTS:
+                    rval = Boolean.TRUE;
+                    break;
+                
+                // Everything else stays on the primary connection
+                case SCREEN_SEGMENT_CHANGED:
+                case SCREEN_SEGMENT_UPDATE:
+                case NUM_SCREENS_CHANGED:
+                case SCREEN_GONE:
+                case SCREEN_RESIZED:
+                case AUTHORIZATION_UPDATE:
+                case SCREEN_SEGMENT_SIZE_UPDATE:
+                case CLIENT_ALIAS_UPDATE:
+                case CLIPBOARD_CHANGED:
+                case GET_CLIPBOARD:
+                case SET_CLIPBOARD:
+                case END_OF_FRAME:
+                case ALIAS_DISCONNECTED:
+                case ALIAS_REGISTERED:
+                case ALIAS_UNREGISTERED:
+                case CHAT_MSG_TO_ALL:
+                case CHAT_MSG_TO_USER:
+                case CONNECTION_CLOSED:
+                case CONNECTION_ESTABLISHED:
+                case FAILED_AUTHORIZATION:
+                case ALIAS_CHANGED:
+                case ENTIRE_SCREEN_UPDATE:
+                case PING:
+                case INTERACTIVE_CHANNEL_TOKEN:
+                case SESSION_TOKEN:
                     rval = Boolean.FALSE;
                     break;
             }